@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// compares a JMH json result against the committed baseline and fails the build when a score or
+// the normalized allocation rate moved the wrong way by more than the threshold. Both files are
+// JMH's own json output, an array with one result per benchmark and parameter combination. Results
+// the baseline has no entry for are skipped and only go into the candidate baseline under target,
+// the committed one is written only when an update is asked for
+public final class BaselineCheck {
+  private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  public static void main(String[] args) throws IOException {
+    Path results = Path.of(args[0]);
+    Path baseline = Path.of(args[1]);
+    double threshold = Double.parseDouble(args[2]);
+    boolean update = Boolean.parseBoolean(args[3]);
+    Path candidate = Path.of(args[4]);
+
+    if (update) {
+      Files.createDirectories(baseline.toAbsolutePath().getParent());
+      Files.copy(results, baseline, StandardCopyOption.REPLACE_EXISTING);
+      System.out.printf("Recorded %s as the benchmark baseline%n", baseline);
+      return;
+    }
+
+    ArrayNode recorded =
+        Files.exists(baseline)
+            ? (ArrayNode) OBJECT_MAPPER.readTree(baseline.toFile())
+            : OBJECT_MAPPER.createArrayNode();
+    Map<String, JsonNode> expected = index(recorded);
+    List<String> regressions = new ArrayList<>();
+    List<String> skipped = new ArrayList<>();
+    int compared = 0;
+
+    for (Map.Entry<String, JsonNode> entry :
+        index(OBJECT_MAPPER.readTree(results.toFile())).entrySet()) {
+      JsonNode before = expected.get(entry.getKey());
+
+      if (before == null) {
+        recorded.add(entry.getValue());
+        skipped.add(entry.getKey());
+        continue;
+      }
+
+      JsonNode after = entry.getValue();
+      boolean higherIsBetter = "thrpt".equals(after.path("mode").asText());
+      compared++;
+
+      compare(
+          regressions,
+          entry.getKey(),
+          before.path("primaryMetric"),
+          after.path("primaryMetric"),
+          higherIsBetter,
+          threshold);
+
+      JsonNode allocationBefore = allocation(before);
+      JsonNode allocationAfter = allocation(after);
+
+      if (allocationBefore != null && allocationAfter != null) {
+        compare(
+            regressions,
+            entry.getKey() + " " + ALLOCATION,
+            allocationBefore,
+            allocationAfter,
+            false,
+            threshold);
+      }
+    }
+
+    if (!skipped.isEmpty()) {
+      Files.createDirectories(candidate.toAbsolutePath().getParent());
+      OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(candidate.toFile(), recorded);
+      skipped.forEach(name -> System.out.printf("SKIPPED %s: no baseline entry%n", name));
+      System.out.printf(
+          "%d benchmarks not checked, %s has no entry for them. %s holds the baseline with these"
+              + " results added, run with -Dupdate on the reference machine to record them%n",
+          skipped.size(), baseline, candidate);
+    }
+
+    if (!regressions.isEmpty()) {
+      regressions.forEach(System.out::println);
+      System.out.printf("%d benchmark regressions over %.1f%%%n", regressions.size(), threshold);
+      System.exit(1);
+    }
+
+    if (compared > 0) {
+      System.out.printf(
+          "None of %d benchmarks regressed by more than %.1f%%%n", compared, threshold);
+    }
+  }
+
+  private static void compare(
+      List<String> regressions,
+      String name,
+      JsonNode before,
+      JsonNode after,
+      boolean higherIsBetter,
+      double threshold) {
+    double baseline = before.path("score").asDouble();
+    double score = after.path("score").asDouble();
+
+    if (baseline == 0) {
+      return;
+    }
+
+    double change = (score - baseline) / baseline * 100;
+    double regression = higherIsBetter ? -change : change;
+    String line =
+        "%s: %.3f -> %.3f %s (%+.1f%%)"
+            .formatted(name, baseline, score, after.path("scoreUnit").asText(), change);
+
+    System.out.println(line);
+
+    if (regression > threshold) {
+      regressions.add("REGRESSION " + line);
+    }
+  }
+
+  private static JsonNode allocation(JsonNode result) {
+    Iterator<Map.Entry<String, JsonNode>> metrics = result.path("secondaryMetrics").fields();
+
+    while (metrics.hasNext()) {
+      Map.Entry<String, JsonNode> metric = metrics.next();
+
+      if (metric.getKey().endsWith(ALLOCATION)) {
+        return metric.getValue();
+      }
+    }
+
+    return null;
+  }
+
+  // benchmark name and its parameters, sorted so the key does not depend on json field order
+  private static Map<String, JsonNode> index(JsonNode results) {
+    Map<String, JsonNode> index = new HashMap<>();
+
+    for (JsonNode result : results) {
+      Map<String, String> params = new TreeMap<>();
+      result
+          .path("params")
+          .fields()
+          .forEachRemaining(param -> params.put(param.getKey(), param.getValue().asText()));
+      index.put(result.path("benchmark").asText() + params, result);
+    }
+
+    return index;
+  }
+}
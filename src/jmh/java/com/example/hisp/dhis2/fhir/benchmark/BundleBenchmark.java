@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.example.hisp.dhis2.fhir.camel.common.BundleAggregationStrategy;
+import com.example.hisp.dhis2.fhir.camel.common.BundleStreamWriter;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientTypeConverter;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// a search Bundle of converted Patients, assembled the way the routes do it and through the HAPI
+// model for comparison
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleBenchmark {
+  @Param({"50", "1000"})
+  int entries;
+
+  private CamelContext camelContext;
+
+  private IParser jsonParser;
+
+  private List<Patient> patients;
+
+  private byte[][] fragments;
+
+  private List<Exchange> exchanges;
+
+  @Setup
+  public void setUp() {
+    MainProperties properties = SyntheticData.properties();
+    PatientTypeConverter converter =
+        new PatientTypeConverter(
+            properties, new PatientMapping(properties), SyntheticData.organizationReferences());
+    SyntheticData data = new SyntheticData();
+
+    camelContext = new DefaultCamelContext();
+    jsonParser = FhirContext.forR4().newJsonParser();
+    patients = new ArrayList<>(entries);
+    fragments = new byte[entries][];
+    exchanges = new ArrayList<>(entries);
+
+    for (int i = 0; i < entries; i++) {
+      TrackedEntityInstance te =
+          SyntheticData.bind(data.trackedEntity(1, 2, false), TrackedEntityInstance.class);
+      Patient patient = converter.toPatient(te, null);
+
+      patients.add(patient);
+      fragments[i] = jsonParser.encodeResourceToString(patient).getBytes(StandardCharsets.UTF_8);
+
+      Exchange exchange = new DefaultExchange(camelContext);
+      exchange.setProperty(Exchange.SPLIT_INDEX, i);
+      exchange.setProperty(Exchange.SPLIT_SIZE, entries);
+      exchanges.add(exchange);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    camelContext.stop();
+  }
+
+  // aggregation of the cached fragments and splicing them into the Bundle
+  @Benchmark
+  public byte[] aggregateFragments() throws IOException {
+    BundleAggregationStrategy strategy = new BundleAggregationStrategy();
+    Exchange result = null;
+
+    for (int i = 0; i < entries; i++) {
+      Exchange exchange = exchanges.get(i);
+      exchange.getIn().setBody(fragments[i]);
+      result = strategy.aggregate(result, exchange);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<byte[]> aggregated = result.getIn().getBody(List.class);
+
+    return splice(aggregated);
+  }
+
+  // the uncached path, every entry is serialized before it is spliced in
+  @Benchmark
+  public byte[] serializeAndSplice() throws IOException {
+    List<byte[]> serialized = new ArrayList<>(entries);
+
+    for (Patient patient : patients) {
+      serialized.add(jsonParser.encodeResourceToString(patient).getBytes(StandardCharsets.UTF_8));
+    }
+
+    return splice(serialized);
+  }
+
+  // the whole Bundle as one HAPI resource, how the routes built it before
+  @Benchmark
+  public byte[] hapiBundle() {
+    Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET).setTotal(entries);
+
+    for (Patient patient : patients) {
+      bundle.addEntry().setResource(patient);
+    }
+
+    return jsonParser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] splice(List<byte[]> entries) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    BundleStreamWriter writer = new BundleStreamWriter(outputStream);
+    writer.start("benchmark", new Date(0));
+
+    for (byte[] fragment : entries) {
+      writer.add(fragment);
+    }
+
+    writer.finish(entries.size(), List.of());
+
+    return outputStream.toByteArray();
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.example.hisp.dhis2.fhir.camel.converters.CodeSystemTypeConverter;
+import com.example.hisp.dhis2.fhir.camel.converters.LocationTypeConverter;
+import com.example.hisp.dhis2.fhir.camel.converters.OrganizationTypeConverter;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientTypeConverter;
+import com.example.hisp.dhis2.fhir.camel.converters.ValueSetTypeConverter;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.hisp.dhis.api.model.v2_39_1.OptionSet;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// one converter call per operation, run with -prof gc for the allocation rate
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+  @State(Scope.Benchmark)
+  public static class Converters {
+    OrganizationTypeConverter organization;
+
+    LocationTypeConverter location;
+
+    CodeSystemTypeConverter codeSystem;
+
+    ValueSetTypeConverter valueSet;
+
+    PatientTypeConverter patient;
+
+    HandWrittenPatientConverter handWrittenPatient;
+
+    IParser jsonParser;
+
+    @Setup
+    public void setUp() {
+      MainProperties properties = SyntheticData.properties();
+
+      organization = new OrganizationTypeConverter(properties);
+      location = new LocationTypeConverter(properties);
+      codeSystem = new CodeSystemTypeConverter(properties);
+      valueSet = new ValueSetTypeConverter(properties);
+      patient =
+          new PatientTypeConverter(
+              properties, new PatientMapping(properties), SyntheticData.organizationReferences());
+      handWrittenPatient = new HandWrittenPatientConverter(SyntheticData.BASE_URL);
+      jsonParser = FhirContext.forR4().newJsonParser();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class OrganisationUnits {
+    OrganisationUnit organisationUnit;
+
+    @Setup
+    public void setUp() {
+      organisationUnit =
+          SyntheticData.bind(new SyntheticData().organisationUnit(), OrganisationUnit.class);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class OptionSets {
+    @Param({"10", "200"})
+    int options;
+
+    @Param({"3"})
+    int locales;
+
+    OptionSet optionSet;
+
+    @Setup
+    public void setUp() {
+      optionSet =
+          SyntheticData.bind(new SyntheticData().optionSet(options, locales), OptionSet.class);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class TrackedEntities {
+    @Param({"1", "5"})
+    int enrollments;
+
+    @Param({"2", "20"})
+    int events;
+
+    TrackedEntityInstance trackedEntity;
+
+    @Setup
+    public void setUp() {
+      trackedEntity =
+          SyntheticData.bind(
+              new SyntheticData().trackedEntity(enrollments, events, false),
+              TrackedEntityInstance.class);
+    }
+  }
+
+  @Benchmark
+  public Organization organization(Converters converters, OrganisationUnits data) {
+    return converters.organization.toOrganization(data.organisationUnit, null);
+  }
+
+  @Benchmark
+  public Location location(Converters converters, OrganisationUnits data) {
+    return converters.location.toLocation(data.organisationUnit, null);
+  }
+
+  @Benchmark
+  public CodeSystem codeSystem(Converters converters, OptionSets data) {
+    return converters.codeSystem.toCodeSystem(data.optionSet, null);
+  }
+
+  @Benchmark
+  public ValueSet valueSet(Converters converters, OptionSets data) {
+    return converters.valueSet.toValueSet(data.optionSet, null);
+  }
+
+  // the compiled, configuration driven mapping
+  @Benchmark
+  public Patient patient(Converters converters, TrackedEntities data) {
+    return converters.patient.toPatient(data.trackedEntity, null);
+  }
+
+  @Benchmark
+  public Patient patientHandWritten(Converters converters, TrackedEntities data) {
+    return converters.handWrittenPatient.toPatient(data.trackedEntity);
+  }
+
+  // conversion plus FHIR JSON serialization, what an uncached Bundle entry costs
+  @Benchmark
+  public byte[] organizationJson(Converters converters, OrganisationUnits data) {
+    return encode(converters, converters.organization.toOrganization(data.organisationUnit, null));
+  }
+
+  @Benchmark
+  public byte[] codeSystemJson(Converters converters, OptionSets data) {
+    return encode(converters, converters.codeSystem.toCodeSystem(data.optionSet, null));
+  }
+
+  @Benchmark
+  public byte[] valueSetJson(Converters converters, OptionSets data) {
+    return encode(converters, converters.valueSet.toValueSet(data.optionSet, null));
+  }
+
+  @Benchmark
+  public byte[] patientJson(Converters converters, TrackedEntities data) {
+    return encode(converters, converters.patient.toPatient(data.trackedEntity, null));
+  }
+
+  private static byte[] encode(Converters converters, Resource resource) {
+    return converters.jsonParser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.benchmark;
+
+import java.sql.Date;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.hisp.dhis.api.model.v2_39_1.Attribute__1;
+import org.hisp.dhis.api.model.v2_39_1.DataValue__2;
+import org.hisp.dhis.api.model.v2_39_1.Enrollment;
+import org.hisp.dhis.api.model.v2_39_1.Event;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Address.AddressType;
+import org.hl7.fhir.r4.model.Address.AddressUse;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+
+// the Patient converter as it was before the mapping became configurable, kept as the reference
+// the compiled PatientMapping is measured against
+public class HandWrittenPatientConverter {
+  private static final String BIRTH_PLACE = "gWTETHreVph";
+
+  private static final String CONSENT_TO_BE_CONTACTED = "YsxExAltfIE";
+
+  private static final String NATIONAL_ID = "Ewi7FUfcHAD";
+
+  private static final String FAMILY_NAME = "ENRjVGxVL6l";
+
+  private static final String GIVEN_NAME = "sB1IHYu2xQT";
+
+  private static final String GENDER = "Jt68iauILtD";
+
+  private static final String BIRTH_DATE = "NI0QRzJvQ0k";
+
+  private static final String BIRTH_DATE_IS_ESTIMATED = "Z1rLc1rVHK8";
+
+  private static final String ADDRESS = "Xhdn49gUd52";
+
+  private static final String PHONE = "fctSQp5nAYl";
+
+  private static final Set<String> VALUES =
+      Set.of(
+          BIRTH_PLACE,
+          CONSENT_TO_BE_CONTACTED,
+          NATIONAL_ID,
+          FAMILY_NAME,
+          GIVEN_NAME,
+          GENDER,
+          BIRTH_DATE,
+          BIRTH_DATE_IS_ESTIMATED,
+          ADDRESS,
+          PHONE);
+
+  private final String baseUrl;
+
+  public HandWrittenPatientConverter(String baseUrl) {
+    this.baseUrl = baseUrl;
+  }
+
+  public Patient toPatient(TrackedEntityInstance te) {
+    Map<String, String> teData = getPatientData(te);
+
+    String namespace = baseUrl + "/trackedEntityInstances";
+
+    Patient patient = new Patient();
+    patient.setId(te.getTrackedEntityInstance());
+
+    patient
+        .getIdentifier()
+        .add(new Identifier().setSystem(namespace).setValue(te.getTrackedEntityInstance()));
+
+    patient
+        .getMeta()
+        .setLastUpdated(
+            Date.from(LocalDateTime.parse(te.getLastUpdated()).toInstant(ZoneOffset.UTC)))
+        .addProfile("http://example.com/fhir/example/StructureDefinition/DHIS2BasePatient");
+
+    patient.setManagingOrganization(new Reference("Organization?identifier=" + te.getOrgUnit()));
+
+    patient.addExtension(
+        "http://hl7.org/fhir/StructureDefinition/patient-birthPlace",
+        new Address().setCountry(teData.get(BIRTH_PLACE)));
+
+    patient.addExtension(
+        "http://example.com/fhir/example/StructureDefinition/ConsentToBeContacted",
+        new BooleanType(teData.get(CONSENT_TO_BE_CONTACTED)));
+
+    CodeableConcept codeableConcept = new CodeableConcept();
+    codeableConcept
+        .addCoding()
+        .setSystem("http://dhis2.org/identifiertypes")
+        .setCode("nationalidentifier");
+
+    if (teData.containsKey(NATIONAL_ID)) {
+      patient.addIdentifier(
+          new Identifier()
+              .setType(codeableConcept)
+              .setSystem("http://whatever.country/nationalidnamespace")
+              .setValue(teData.get(NATIONAL_ID)));
+    }
+
+    patient.addName().setFamily(teData.get(FAMILY_NAME)).addGiven(teData.get(GIVEN_NAME));
+
+    patient.setGender(getGender(teData.get(GENDER)));
+
+    if (teData.containsKey(BIRTH_DATE)) {
+      patient.setBirthDate(
+          Date.from(
+              LocalDateTime.parse(teData.get(BIRTH_DATE) + "T00:00:00")
+                  .toInstant(ZoneOffset.UTC)));
+    }
+
+    if (teData.containsKey(BIRTH_DATE_IS_ESTIMATED)) {
+      patient
+          .getBirthDateElement()
+          .addExtension(
+              "http://example.com/fhir/example/StructureDefinition/DateOfBirthIsEstimated",
+              new BooleanType(teData.get(BIRTH_DATE_IS_ESTIMATED)));
+    }
+
+    if (teData.containsKey(ADDRESS)) {
+      patient
+          .addAddress()
+          .setUse(AddressUse.HOME)
+          .setType(AddressType.PHYSICAL)
+          .setText(teData.get(ADDRESS));
+    }
+
+    if (teData.containsKey(PHONE)) {
+      patient
+          .addContact()
+          .addTelecom()
+          .setSystem(ContactPointSystem.PHONE)
+          .setValue(teData.get(PHONE));
+    }
+
+    return patient;
+  }
+
+  private AdministrativeGender getGender(String gender) {
+    if (gender == null) {
+      return AdministrativeGender.UNKNOWN;
+    }
+
+    return switch (gender) {
+      case "FEMALE" -> AdministrativeGender.FEMALE;
+      case "MALE" -> AdministrativeGender.MALE;
+      case "TG", "OTHER" -> AdministrativeGender.OTHER;
+      default -> AdministrativeGender.UNKNOWN;
+    };
+  }
+
+  private Map<String, String> getPatientData(TrackedEntityInstance te) {
+    Map<String, String> data = new HashMap<>();
+
+    te.getAttributes()
+        .ifPresent(
+            attributes -> {
+              for (Attribute__1 attribute : attributes) {
+                keep(data, attribute.getAttribute().get(), attribute.getValue());
+              }
+            });
+
+    te.getEnrollments()
+        .ifPresent(
+            en -> {
+              for (Enrollment enrollment : en) {
+                enrollment
+                    .getEvents()
+                    .ifPresent(
+                        e -> {
+                          for (Event event : e) {
+                            event
+                                .getDataValues()
+                                .ifPresent(
+                                    dv -> {
+                                      for (DataValue__2 v : dv) {
+                                        keep(data, v.getDataElement().get(), v.getValue());
+                                      }
+                                    });
+                          }
+                        });
+              }
+            });
+
+    return data;
+  }
+
+  private static void keep(Map<String, String> data, String key, Optional<String> value) {
+    if (VALUES.contains(key) && value.isPresent()) {
+      data.put(key, value.get());
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.benchmark;
+
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientTypeConverter;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// a page of tracked entities per operation: the streaming decoder against binding through a
+// JsonNode tree, and the projected payload against what fields=* returns
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PageDecoderBenchmark {
+  private static final String ARRAY_NAME = "trackedEntityInstances";
+
+  @Param({"10000"})
+  int trackedEntities;
+
+  @Param({"projected", "full"})
+  String shape;
+
+  private Dhis2PageDecoder pageDecoder;
+
+  private PatientTypeConverter converter;
+
+  private byte[] page;
+
+  @Setup
+  public void setUp() {
+    MainProperties properties = SyntheticData.properties();
+    SyntheticData data = new SyntheticData();
+    List<ObjectNode> items = new ArrayList<>(trackedEntities);
+
+    for (int i = 0; i < trackedEntities; i++) {
+      items.add(data.trackedEntity(1, 3, "full".equals(shape)));
+    }
+
+    pageDecoder = new Dhis2PageDecoder(SyntheticData.OBJECT_MAPPER);
+    converter =
+        new PatientTypeConverter(
+            properties, new PatientMapping(properties), SyntheticData.organizationReferences());
+    page = SyntheticData.page(ARRAY_NAME, items);
+
+    System.out.printf(
+        "%n%s page of %d tracked entities: %d bytes, %d bytes per tracked entity%n",
+        shape, trackedEntities, page.length, page.length / trackedEntities);
+  }
+
+  @Benchmark
+  public void streaming(Blackhole blackhole) throws IOException {
+    Iterator<TrackedEntityInstance> items =
+        pageDecoder.decode(page, ARRAY_NAME, TrackedEntityInstance.class);
+
+    while (items.hasNext()) {
+      blackhole.consume(items.next());
+    }
+  }
+
+  // the whole page as a tree first, then each item bound from it
+  @Benchmark
+  public void tree(Blackhole blackhole) throws IOException {
+    JsonNode root = SyntheticData.OBJECT_MAPPER.readTree(page);
+
+    for (JsonNode item : root.get(ARRAY_NAME)) {
+      blackhole.consume(
+          SyntheticData.OBJECT_MAPPER.convertValue(item, TrackedEntityInstance.class));
+    }
+  }
+
+  // decode and convert, the per page cost the projection is meant to bring down
+  @Benchmark
+  public void streamingToPatients(Blackhole blackhole) throws IOException {
+    Iterator<TrackedEntityInstance> items =
+        pageDecoder.decode(page, ARRAY_NAME, TrackedEntityInstance.class);
+
+    while (items.hasNext()) {
+      blackhole.consume(converter.toPatient(items.next(), null));
+    }
+  }
+}
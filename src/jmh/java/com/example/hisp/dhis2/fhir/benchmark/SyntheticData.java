@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.benchmark;
+
+import com.example.hisp.dhis2.fhir.camel.converters.OrganizationReferences;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties.ExtensionMapping;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties.Mapping;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Random;
+
+// DHIS2 payloads shaped like the real API responses, generated from a fixed seed so every run
+// measures the same data
+public final class SyntheticData {
+  public static final ObjectMapper OBJECT_MAPPER =
+      new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+  public static final String BASE_URL = "https://dhis2.example.org/api";
+
+  private static final String ALPHABET =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+  private static final List<String> LOCALES = List.of("fr", "es", "pt", "ar", "ru", "zh");
+
+  // attributes and data elements the Patient mapping never reads, DHIS2 returns them anyway
+  private static final int UNMAPPED_ATTRIBUTES = 8;
+
+  private static final int DATA_VALUES_PER_EVENT = 10;
+
+  private final Random random = new Random(42);
+
+  private final Mapping mapping = properties().getPatient().getMapping();
+
+  public static MainProperties properties() {
+    MainProperties.Api dhis2 = new MainProperties.Api();
+    dhis2.setBaseUrl(BASE_URL);
+
+    MainProperties properties = new MainProperties();
+    properties.setDhis2(dhis2);
+
+    return properties;
+  }
+
+  // every org unit counts as known, the converters then emit direct Organization references
+  public static OrganizationReferences organizationReferences() {
+    return new OrganizationReferences(null) {
+      @Override
+      public boolean isKnown(String orgUnit) {
+        return true;
+      }
+    };
+  }
+
+  public static <T> T bind(ObjectNode node, Class<T> type) {
+    return OBJECT_MAPPER.convertValue(node, type);
+  }
+
+  // a DHIS2 collection response with a pager, the way the search endpoints return it
+  public static byte[] page(String arrayName, List<ObjectNode> items) {
+    ObjectNode page = OBJECT_MAPPER.createObjectNode();
+    page.putObject("pager")
+        .put("page", 1)
+        .put("pageSize", items.size())
+        .put("pageCount", 1)
+        .put("total", items.size());
+    page.putArray(arrayName).addAll(items);
+
+    try {
+      return OBJECT_MAPPER.writeValueAsBytes(page);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public ObjectNode organisationUnit() {
+    ObjectNode ou = OBJECT_MAPPER.createObjectNode();
+    ou.put("id", uid())
+        .put("code", "OU_" + random.nextInt(100000))
+        .put("name", "Health Facility " + random.nextInt(100000))
+        .put("shortName", "HF " + random.nextInt(1000))
+        .put("created", timestamp())
+        .put("lastUpdated", timestamp())
+        .put("description", "Synthetic organisation unit")
+        .put("openingDate", timestamp());
+    ou.putObject("parent").put("id", uid());
+    translations(ou.putArray("translations"), "NAME", 3);
+
+    return ou;
+  }
+
+  public ObjectNode optionSet(int options, int locales) {
+    ObjectNode optionSet = OBJECT_MAPPER.createObjectNode();
+    optionSet
+        .put("id", uid())
+        .put("code", "OS_" + random.nextInt(100000))
+        .put("name", "Option set " + random.nextInt(100000))
+        .put("version", random.nextInt(10))
+        .put("created", timestamp())
+        .put("lastUpdated", timestamp())
+        .put("description", "Synthetic option set");
+    translations(optionSet.putArray("translations"), "NAME", locales);
+
+    ArrayNode array = optionSet.putArray("options");
+
+    for (int i = 0; i < options; i++) {
+      ObjectNode option = array.addObject();
+      option
+          .put("id", uid())
+          .put("code", "OPTION_" + i)
+          .put("name", "Option " + i)
+          .put("created", timestamp())
+          .put("lastUpdated", timestamp())
+          .put("description", "Synthetic option " + i);
+      translations(option.putArray("translations"), "NAME", locales);
+    }
+
+    return optionSet;
+  }
+
+  // full adds what DHIS2 returns for fields=* on top of the projection the routes ask for
+  public ObjectNode trackedEntity(int enrollments, int events, boolean full) {
+    ObjectNode te = OBJECT_MAPPER.createObjectNode();
+    String id = uid();
+    String orgUnit = uid();
+
+    te.put("trackedEntityInstance", id).put("orgUnit", orgUnit).put("lastUpdated", timestamp());
+
+    if (full) {
+      te.put("trackedEntityType", "nEenWmSyUEp")
+          .put("created", timestamp())
+          .put("createdAtClient", timestamp())
+          .put("lastUpdatedAtClient", timestamp())
+          .put("inactive", false)
+          .put("deleted", false)
+          .put("potentialDuplicate", false)
+          .put("featureType", "NONE")
+          .put("storedBy", "admin");
+      te.putArray("relationships");
+      te.putArray("programOwners")
+          .addObject()
+          .put("ownerOrgUnit", orgUnit)
+          .put("program", "Xh88p1nyefp")
+          .put("trackedEntityInstance", id);
+    }
+
+    ArrayNode attributes = te.putArray("attributes");
+    String nationalId = mapping.getNationalId().getValue();
+    attribute(attributes, nationalId, "NID" + random.nextInt(1000000), full);
+    attribute(attributes, mapping.getFamilyName(), "Family" + random.nextInt(1000), full);
+    attribute(attributes, mapping.getGivenName(), "Given" + random.nextInt(1000), full);
+    attribute(attributes, mapping.getGender(), random.nextBoolean() ? "FEMALE" : "MALE", full);
+    attribute(attributes, mapping.getBirthDate(), "1990-05-12", full);
+    attribute(attributes, mapping.getBirthDateIsEstimated().getValue(), "false", full);
+    attribute(attributes, mapping.getAddress(), random.nextInt(100) + " Main Street", full);
+    attribute(attributes, mapping.getPhone(), "+47" + random.nextInt(100000000), full);
+
+    for (ExtensionMapping extension : mapping.getExtensions()) {
+      attribute(attributes, extension.getValue(), extensionValue(extension), full);
+    }
+
+    for (int i = 0; i < UNMAPPED_ATTRIBUTES; i++) {
+      attribute(attributes, uid(), "value " + i, full);
+    }
+
+    ArrayNode enrollmentArray = te.putArray("enrollments");
+
+    for (int i = 0; i < enrollments; i++) {
+      ObjectNode enrollment = enrollmentArray.addObject().put("lastUpdated", timestamp());
+
+      if (full) {
+        enrollment
+            .put("enrollment", uid())
+            .put("program", "Xh88p1nyefp")
+            .put("orgUnit", orgUnit)
+            .put("orgUnitName", "Health Facility")
+            .put("status", "ACTIVE")
+            .put("enrollmentDate", timestamp())
+            .put("incidentDate", timestamp())
+            .put("created", timestamp())
+            .put("followup", false)
+            .put("deleted", false);
+        enrollment.putArray("notes");
+      }
+
+      ArrayNode eventArray = enrollment.putArray("events");
+
+      for (int j = 0; j < events; j++) {
+        ObjectNode event = eventArray.addObject().put("lastUpdated", timestamp());
+
+        if (full) {
+          event
+              .put("event", uid())
+              .put("program", "Xh88p1nyefp")
+              .put("programStage", "sAV9jAajr8x")
+              .put("orgUnit", orgUnit)
+              .put("orgUnitName", "Health Facility")
+              .put("status", "COMPLETED")
+              .put("eventDate", timestamp())
+              .put("dueDate", timestamp())
+              .put("created", timestamp())
+              .put("storedBy", "admin")
+              .put("deleted", false);
+          event.putArray("notes");
+        }
+
+        ArrayNode dataValues = event.putArray("dataValues");
+
+        for (int k = 0; k < DATA_VALUES_PER_EVENT; k++) {
+          ObjectNode dataValue =
+              dataValues.addObject().put("dataElement", uid()).put("value", "value " + k);
+
+          if (full) {
+            dataValue
+                .put("created", timestamp())
+                .put("lastUpdated", timestamp())
+                .put("storedBy", "admin")
+                .put("providedElsewhere", false);
+          }
+        }
+      }
+    }
+
+    return te;
+  }
+
+  private void attribute(ArrayNode attributes, String id, String value, boolean full) {
+    if (id == null || id.isEmpty()) {
+      return;
+    }
+
+    ObjectNode attribute = attributes.addObject().put("attribute", id).put("value", value);
+
+    if (full) {
+      attribute
+          .put("displayName", "Attribute " + id)
+          .put("valueType", "TEXT")
+          .put("created", timestamp())
+          .put("lastUpdated", timestamp())
+          .put("storedBy", "admin");
+    }
+  }
+
+  private String extensionValue(ExtensionMapping extension) {
+    return switch (extension.getType()) {
+      case BOOLEAN -> String.valueOf(random.nextBoolean());
+      case ADDRESS_COUNTRY -> "NO";
+      case STRING -> "value " + random.nextInt(1000);
+    };
+  }
+
+  private void translations(ArrayNode translations, String property, int locales) {
+    for (int i = 0; i < locales; i++) {
+      String locale = LOCALES.get(i % LOCALES.size());
+      translations
+          .addObject()
+          .put("property", property)
+          .put("locale", locale)
+          .put("value", "Translated " + locale + " " + random.nextInt(1000));
+    }
+  }
+
+  // DHIS2 timestamps carry no zone
+  private String timestamp() {
+    return "20%02d-%02d-%02dT%02d:%02d:%02d.%03d"
+        .formatted(
+            10 + random.nextInt(14),
+            1 + random.nextInt(12),
+            1 + random.nextInt(28),
+            random.nextInt(24),
+            random.nextInt(60),
+            random.nextInt(60),
+            random.nextInt(1000));
+  }
+
+  private String uid() {
+    StringBuilder uid = new StringBuilder(11);
+    uid.append(ALPHABET.charAt(random.nextInt(52)));
+
+    for (int i = 1; i < 11; i++) {
+      uid.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    }
+
+    return uid.toString();
+  }
+}
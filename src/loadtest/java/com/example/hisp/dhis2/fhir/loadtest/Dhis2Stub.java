@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.loadtest;
+
+import com.example.hisp.dhis2.fhir.benchmark.SyntheticData;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// a DHIS2 API serving generated organisation units, option sets and tracked entities, with a
+// configurable response latency. Only the query parameters the gateway sends are understood:
+// page, pageSize, paging, skipPaging, trackedEntityInstance, ou with ouMode SELECTED or
+// DESCENDANTS, lastUpdated[Start|End]Date and filter with eq, !eq, in, lt, le, gt, ge, like and
+// $ilike, and order by fields of the items. Under /fhir it also takes the sync's transaction
+// Bundles and keeps count of the patients written, nothing is stored.
+public class Dhis2Stub implements AutoCloseable {
+  // the id of an option set on the DHIS2 demo server, reads written against it work here too
+  private static final String OPTION_SET_ID = "P0RAq93jsi9";
+
+  private static final int DEFAULT_PAGE_SIZE = 50;
+
+  private static final int BRANCHING = 10;
+
+  private static final byte[] CAPABILITY_STATEMENT =
+      ("{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\","
+              + "\"date\":\"2023-01-01\",\"kind\":\"instance\",\"fhirVersion\":\"4.0.1\","
+              + "\"format\":[\"json\"]}")
+          .getBytes(StandardCharsets.UTF_8);
+
+  private final Map<String, Items> collections = new HashMap<>();
+
+  // unit id to its /root/.../unit path, for ouMode=DESCENDANTS
+  private final Map<String, String> unitPaths = new HashMap<>();
+
+  private final Set<String> patientsWritten = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong patientWrites = new AtomicLong();
+
+  private final long latencyMillis;
+
+  private final long jitterMillis;
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+  private final HttpServer server;
+
+  public Dhis2Stub(
+      int organisationUnits,
+      int optionSets,
+      int options,
+      int trackedEntities,
+      long latencyMillis,
+      long jitterMillis)
+      throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+
+    SyntheticData data = new SyntheticData();
+    List<ObjectNode> units = new ArrayList<>(organisationUnits);
+
+    // a tree BRANCHING wide, the way a country, its districts and their facilities nest
+    for (int i = 0; i < organisationUnits; i++) {
+      ObjectNode unit = data.organisationUnit();
+
+      if (i == 0) {
+        unit.remove("parent");
+        unit.put("level", 1).put("path", "/" + unit.get("id").asText());
+      } else {
+        ObjectNode parent = units.get((i - 1) / BRANCHING);
+        unit.putObject("parent").put("id", parent.get("id").asText());
+        unit.put("level", parent.get("level").asInt() + 1)
+            .put("path", parent.get("path").asText() + "/" + unit.get("id").asText());
+      }
+
+      units.add(unit);
+      unitPaths.put(unit.get("id").asText(), unit.get("path").asText());
+    }
+
+    List<ObjectNode> sets = new ArrayList<>(optionSets);
+
+    for (int i = 0; i < optionSets; i++) {
+      ObjectNode optionSet = data.optionSet(options, 3);
+
+      if (i == 0) {
+        optionSet.put("id", OPTION_SET_ID);
+      }
+
+      sets.add(optionSet);
+    }
+
+    List<ObjectNode> entities = new ArrayList<>(trackedEntities);
+
+    for (int i = 0; i < trackedEntities; i++) {
+      ObjectNode entity = data.trackedEntity(1, 2, false);
+
+      if (!units.isEmpty()) {
+        entity.put("orgUnit", units.get(i % units.size()).get("id").asText());
+      }
+
+      entities.add(entity);
+    }
+
+    collections.put("organisationUnits", new Items("id", units));
+    collections.put("optionSets", new Items("id", sets));
+    collections.put("trackedEntityInstances", new Items("trackedEntityInstance", entities));
+
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(executorService);
+    server.createContext("/api/", this::handle);
+    server.createContext("/fhir", this::handleFhir);
+    server.start();
+  }
+
+  public String getBaseUrl() {
+    return "http://localhost:%d/api".formatted(server.getAddress().getPort());
+  }
+
+  public String getFhirBaseUrl() {
+    return "http://localhost:%d/fhir".formatted(server.getAddress().getPort());
+  }
+
+  // distinct patients, and every write of one; the two differ when a patient was written twice
+  public int getPatientsWritten() {
+    return patientsWritten.size();
+  }
+
+  public long getPatientWrites() {
+    return patientWrites.get();
+  }
+
+  public List<String> getIds(String path) {
+    return collections.get(path).ids();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executorService.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+
+    try (exchange) {
+      delay();
+
+      String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+      Items items = collections.get(path[0]);
+
+      if (!"GET".equals(exchange.getRequestMethod()) || items == null || path.length > 2) {
+        respond(exchange, 404, error(404, "Not found"));
+        return;
+      }
+
+      if (path.length == 2) {
+        byte[] item = items.byId().get(path[1]);
+
+        if (item == null) {
+          respond(exchange, 404, error(404, "Object not found: " + path[1]));
+        } else {
+          respond(exchange, 200, item);
+        }
+
+        return;
+      }
+
+      respond(exchange, 200, items.page(path[0], query(exchange), nextPage(exchange), unitPaths));
+    }
+  }
+
+  // the capability statement the FHIR client checks first, then transactions answered entry by
+  // entry with 200 OK
+  private void handleFhir(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if ("GET".equals(exchange.getRequestMethod())
+          && exchange.getRequestURI().getPath().endsWith("/metadata")) {
+        respond(exchange, 200, CAPABILITY_STATEMENT);
+        return;
+      }
+
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 404, error(404, "Not found"));
+        return;
+      }
+
+      JsonNode bundle = SyntheticData.OBJECT_MAPPER.readTree(exchange.getRequestBody());
+      StringBuilder response =
+          new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\"");
+      response.append(",\"entry\":[");
+
+      for (JsonNode entry : bundle.path("entry")) {
+        String url = entry.path("request").path("url").asText();
+
+        if (url.startsWith("Patient/")) {
+          patientsWritten.add(url);
+          patientWrites.incrementAndGet();
+        }
+
+        response.append(response.charAt(response.length() - 1) == '[' ? "" : ",");
+        response.append("{\"response\":{\"status\":\"200 OK\"}}");
+      }
+
+      response.append("]}");
+      respond(exchange, 200, response.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private void delay() {
+    long millis =
+        latencyMillis
+            + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0);
+
+    if (millis <= 0) {
+      return;
+    }
+
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+
+    try (OutputStream outputStream = exchange.getResponseBody()) {
+      outputStream.write(body);
+    }
+  }
+
+  private static byte[] error(int status, String message) {
+    return "{\"httpStatusCode\":%d,\"status\":\"ERROR\",\"message\":\"%s\"}"
+        .formatted(status, message)
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static Map<String, List<String>> query(HttpExchange exchange) {
+    Map<String, List<String>> query = new LinkedHashMap<>();
+    String raw = exchange.getRequestURI().getRawQuery();
+
+    if (raw == null) {
+      return query;
+    }
+
+    for (String pair : raw.split("&")) {
+      int idx = pair.indexOf('=');
+      String name = idx < 0 ? pair : pair.substring(0, idx);
+      String value = idx < 0 ? "" : pair.substring(idx + 1);
+
+      query
+          .computeIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8), k -> new ArrayList<>())
+          .add(URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+
+    return query;
+  }
+
+  // the same request for the following page, clients follow pager.nextPage
+  private String nextPage(HttpExchange exchange) {
+    String query = exchange.getRequestURI().getRawQuery();
+    String uri =
+        "http://localhost:%d%s?%s"
+            .formatted(
+                server.getAddress().getPort(),
+                exchange.getRequestURI().getRawPath(),
+                query == null ? "" : query.replaceAll("(^|&)page=\\d+", ""));
+
+    return uri + (uri.endsWith("?") ? "" : "&") + "page=";
+  }
+
+  private static String first(Map<String, List<String>> query, String name, String defaultValue) {
+    List<String> values = query.get(name);
+    return values == null || values.isEmpty() ? defaultValue : values.get(0);
+  }
+
+  // items are serialized once up front, a page is then only a concatenation of their bytes
+  private record Items(
+      List<ObjectNode> items,
+      List<byte[]> serialized,
+      Map<String, byte[]> byId,
+      List<String> ids) {
+    Items(String idField, List<ObjectNode> items) {
+      this(items, new ArrayList<>(items.size()), new HashMap<>(), new ArrayList<>(items.size()));
+
+      for (ObjectNode item : items) {
+        byte[] bytes = write(item);
+        serialized.add(bytes);
+        byId.put(item.get(idField).asText(), bytes);
+        ids.add(item.get(idField).asText());
+      }
+    }
+
+    byte[] page(
+        String arrayName,
+        Map<String, List<String>> query,
+        String nextPage,
+        Map<String, String> unitPaths) {
+      List<Integer> matches = matching(query, unitPaths);
+      boolean paging =
+          Boolean.parseBoolean(first(query, "paging", "true"))
+              && !Boolean.parseBoolean(first(query, "skipPaging", "false"));
+      int pageSize =
+          paging
+              ? Integer.parseInt(first(query, "pageSize", String.valueOf(DEFAULT_PAGE_SIZE)))
+              : matches.size();
+      int page = paging ? Integer.parseInt(first(query, "page", "1")) : 1;
+      int pageCount = pageSize == 0 ? 1 : Math.max(1, (matches.size() + pageSize - 1) / pageSize);
+      int from = Math.min(matches.size(), (page - 1) * pageSize);
+      int to = Math.min(matches.size(), from + pageSize);
+
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+      if (paging) {
+        String next = page < pageCount ? ",\"nextPage\":\"" + nextPage + (page + 1) + "\"" : "";
+        outputStream.writeBytes(
+            "{\"pager\":{\"page\":%d,\"pageCount\":%d,\"total\":%d,\"pageSize\":%d%s},"
+                .formatted(page, pageCount, matches.size(), pageSize, next)
+                .getBytes(StandardCharsets.UTF_8));
+      } else {
+        outputStream.write('{');
+      }
+
+      outputStream.writeBytes(("\"" + arrayName + "\":[").getBytes(StandardCharsets.UTF_8));
+
+      for (int i = from; i < to; i++) {
+        if (i > from) {
+          outputStream.write(',');
+        }
+
+        outputStream.writeBytes(serialized.get(matches.get(i)));
+      }
+
+      outputStream.writeBytes("]}".getBytes(StandardCharsets.UTF_8));
+
+      return outputStream.toByteArray();
+    }
+
+    private List<Integer> matching(
+        Map<String, List<String>> query, Map<String, String> unitPaths) {
+      List<Predicate<ObjectNode>> predicates = new ArrayList<>();
+
+      for (String filter : query.getOrDefault("filter", List.of())) {
+        predicates.add(filter(filter));
+      }
+
+      String trackedEntities = first(query, "trackedEntityInstance", null);
+
+      if (trackedEntities != null) {
+        List<String> ids = List.of(trackedEntities.split(";"));
+        predicates.add(item -> ids.contains(item.path("trackedEntityInstance").asText()));
+      }
+
+      String ou = first(query, "ou", null);
+
+      if (ou != null) {
+        List<String> selected = List.of(ou.split(";"));
+        boolean descendants = "DESCENDANTS".equals(first(query, "ouMode", "SELECTED"));
+
+        predicates.add(
+            item -> {
+              String orgUnit = item.path("orgUnit").asText();
+              String path = unitPaths.getOrDefault(orgUnit, "");
+
+              return selected.contains(orgUnit)
+                  || descendants && selected.stream().anyMatch(id -> path.contains("/" + id + "/"));
+            });
+      }
+
+      String start = first(query, "lastUpdatedStartDate", null);
+      String end = first(query, "lastUpdatedEndDate", null);
+
+      if (start != null) {
+        predicates.add(item -> item.path("lastUpdated").asText().compareTo(start) >= 0);
+      }
+
+      if (end != null) {
+        predicates.add(item -> item.path("lastUpdated").asText().compareTo(end) <= 0);
+      }
+
+      List<Integer> matches = new ArrayList<>();
+
+      for (int i = 0; i < items.size(); i++) {
+        ObjectNode item = items.get(i);
+
+        if (predicates.stream().allMatch(predicate -> predicate.test(item))) {
+          matches.add(i);
+        }
+      }
+
+      String order = first(query, "order", null);
+
+      if (order != null) {
+        matches.sort(order(order));
+      }
+
+      return matches;
+    }
+
+    // field:asc,field:desc
+    private Comparator<Integer> order(String order) {
+      Comparator<Integer> comparator = (a, b) -> 0;
+
+      for (String field : order.split(",")) {
+        String[] parts = field.split(":");
+        Comparator<Integer> byField =
+            Comparator.<Integer, String>comparing(
+                i -> Objects.toString(value(items.get(i), parts[0]), ""), Items::compare);
+
+        comparator =
+            comparator.thenComparing(
+                parts.length > 1 && "desc".equals(parts[1]) ? byField.reversed() : byField);
+      }
+
+      return comparator;
+    }
+
+    // property:operator:value, tracked entity attributes are addressed by their id
+    private static Predicate<ObjectNode> filter(String filter) {
+      String[] parts = filter.split(":", 3);
+
+      if (parts.length < 3) {
+        return item -> true;
+      }
+
+      String property = parts[0];
+      String value = parts[2];
+
+      return item -> {
+        String actual = value(item, property);
+
+        return switch (parts[1]) {
+          case "eq" -> value.equals(actual);
+          case "!eq" -> !value.equals(actual);
+          case "in" -> actual != null && in(actual, value);
+          case "lt" -> actual != null && compare(actual, value) < 0;
+          case "le" -> actual != null && compare(actual, value) <= 0;
+          case "gt" -> actual != null && compare(actual, value) > 0;
+          case "ge" -> actual != null && compare(actual, value) >= 0;
+          case "like", "$ilike" -> actual != null && like(actual, value);
+          default -> true;
+        };
+      };
+    }
+
+    private static String value(ObjectNode item, String property) {
+      JsonNode field = item.get(property);
+
+      if (field != null) {
+        return field.asText();
+      }
+
+      for (JsonNode attribute : item.path("attributes")) {
+        if (property.equals(attribute.path("attribute").asText())) {
+          return attribute.path("value").asText();
+        }
+      }
+
+      return null;
+    }
+
+    // [a,b,c]
+    private static boolean in(String actual, String value) {
+      return List.of(value.substring(1, value.length() - 1).split(",")).contains(actual);
+    }
+
+    private static boolean like(String actual, String value) {
+      return actual.toLowerCase(Locale.ROOT).contains(value.toLowerCase(Locale.ROOT));
+    }
+
+    private static int compare(String actual, String value) {
+      try {
+        return Long.compare(Long.parseLong(actual), Long.parseLong(value));
+      } catch (NumberFormatException e) {
+        return actual.compareTo(value);
+      }
+    }
+
+    private static byte[] write(ObjectNode item) {
+      try {
+        return SyntheticData.OBJECT_MAPPER.writeValueAsBytes(item);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
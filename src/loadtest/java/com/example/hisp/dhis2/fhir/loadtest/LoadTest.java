@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.loadtest;
+
+import com.example.hisp.dhis2.fhir.MainApp;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+// starts the gateway against a Dhis2Stub and sends a fixed rate of requests to /fhir/baseR4. The
+// rate is open, requests are sent on schedule whether or not earlier ones have returned, and
+// latency is taken from the scheduled time so a stalled gateway is not hidden by a stalled client.
+// Configured through loadtest.* system properties, any program arguments go to the gateway.
+public final class LoadTest {
+  private static final String DEFAULT_PATHS =
+      String.join(
+          ",",
+          "/fhir/baseR4/Organization",
+          "/fhir/baseR4/Organization/{organisationUnit}",
+          "/fhir/baseR4/Location",
+          "/fhir/baseR4/CodeSystem",
+          "/fhir/baseR4/ValueSet",
+          "/fhir/baseR4/Patient?_count=50",
+          "/fhir/baseR4/Patient/{trackedEntity}");
+
+  // placeholders in the paths, replaced round robin with ids the stub serves
+  private static final Map<String, String> PLACEHOLDERS =
+      Map.of(
+          "{organisationUnit}", "organisationUnits", "{trackedEntity}", "trackedEntityInstances");
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final int rate = Integer.getInteger("loadtest.rate", 50);
+
+  private final Duration duration = Duration.ofSeconds(Long.getLong("loadtest.duration", 60));
+
+  private final Duration warmup = Duration.ofSeconds(Long.getLong("loadtest.warmup", 15));
+
+  private final int maxInFlight = Integer.getInteger("loadtest.maxInFlight", 512);
+
+  private final List<String> paths =
+      List.of(
+          System.getProperty("loadtest.paths", "").isBlank()
+              ? DEFAULT_PATHS.split(",")
+              : System.getProperty("loadtest.paths").split(","));
+
+  private final Path report =
+      Path.of(System.getProperty("loadtest.report", "target/loadtest-report.json"));
+
+  private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private final AtomicLong peakHeap = new AtomicLong();
+
+  private final HttpClient httpClient =
+      HttpClient.newBuilder()
+          .connectTimeout(Duration.ofSeconds(5))
+          .executor(Executors.newFixedThreadPool(16))
+          .build();
+
+  private Dhis2Stub stub;
+
+  private String gatewayUrl;
+
+  private volatile boolean measuring;
+
+  public static void main(String[] args) throws Exception {
+    try (Dhis2Stub stub =
+        new Dhis2Stub(
+            Integer.getInteger("loadtest.organisationUnits", 1000),
+            Integer.getInteger("loadtest.optionSets", 20),
+            Integer.getInteger("loadtest.options", 100),
+            Integer.getInteger("loadtest.trackedEntities", 5000),
+            Long.getLong("loadtest.latency", 50),
+            Long.getLong("loadtest.jitter", 20))) {
+      List<String> gatewayArgs = new ArrayList<>(Arrays.asList(args));
+      gatewayArgs.add("--integration.dhis2.base-url=" + stub.getBaseUrl());
+      gatewayArgs.add("--server.port=0");
+      gatewayArgs.add("--integration.sync.enabled=false");
+
+      try (ConfigurableApplicationContext context =
+          new SpringApplicationBuilder(MainApp.class).run(gatewayArgs.toArray(String[]::new))) {
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+
+        LoadTest loadTest = new LoadTest();
+        loadTest.stub = stub;
+        loadTest.gatewayUrl = "http://localhost:" + port;
+        loadTest.run();
+      }
+    }
+
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    for (String path : paths) {
+      recorders.put(path, new Recorder());
+    }
+
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    long origin = System.nanoTime();
+    AtomicLong sequence = new AtomicLong();
+
+    scheduler.scheduleAtFixedRate(
+        () -> {
+          long next = sequence.getAndIncrement();
+          send(next, origin + next * periodNanos);
+        },
+        0,
+        periodNanos,
+        TimeUnit.NANOSECONDS);
+    scheduler.scheduleAtFixedRate(this::sampleHeap, 0, 250, TimeUnit.MILLISECONDS);
+
+    System.out.printf(
+        "Warming up for %ds at %d requests/s against %s%n",
+        warmup.toSeconds(), rate, gatewayUrl);
+    Thread.sleep(warmup.toMillis());
+
+    GcTotals gcBefore = GcTotals.now();
+    long upstreamBefore = stub.getRequests();
+    long started = System.nanoTime();
+    peakHeap.set(0);
+    measuring = true;
+
+    System.out.printf("Measuring for %ds%n", duration.toSeconds());
+    Thread.sleep(duration.toMillis());
+
+    measuring = false;
+    long elapsed = System.nanoTime() - started;
+    scheduler.shutdownNow();
+
+    // give the requests still in flight a moment to be counted
+    for (int i = 0; i < 100 && inFlight.get() > 0; i++) {
+      Thread.sleep(100);
+    }
+
+    report(elapsed, GcTotals.now().minus(gcBefore), stub.getRequests() - upstreamBefore);
+  }
+
+  private void send(long sequence, long scheduled) {
+    String template = paths.get((int) (sequence % paths.size()));
+    Recorder recorder = recorders.get(template);
+    boolean counted = measuring;
+
+    if (inFlight.incrementAndGet() > maxInFlight) {
+      inFlight.decrementAndGet();
+
+      if (counted) {
+        dropped.incrementAndGet();
+      }
+
+      return;
+    }
+
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(gatewayUrl + resolve(template, sequence)))
+            .timeout(Duration.ofSeconds(60))
+            .header("Accept", "application/fhir+json")
+            .GET()
+            .build();
+
+    httpClient
+        .sendAsync(request, HttpResponse.BodyHandlers.discarding())
+        .whenComplete(
+            (response, failure) -> {
+              inFlight.decrementAndGet();
+
+              if (counted) {
+                recorder.record(
+                    System.nanoTime() - scheduled,
+                    failure == null && response.statusCode() < 400);
+              }
+            });
+  }
+
+  private String resolve(String template, long sequence) {
+    String path = template;
+
+    for (Map.Entry<String, String> placeholder : PLACEHOLDERS.entrySet()) {
+      if (path.contains(placeholder.getKey())) {
+        List<String> ids = stub.getIds(placeholder.getValue());
+        path = path.replace(placeholder.getKey(), ids.get((int) (sequence % ids.size())));
+      }
+    }
+
+    return path;
+  }
+
+  private void sampleHeap() {
+    long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    peakHeap.accumulateAndGet(used, Math::max);
+  }
+
+  private void report(long elapsedNanos, GcTotals gc, long upstreamRequests) throws IOException {
+    double seconds = elapsedNanos / 1e9;
+    long heapMax = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+    ObjectNode json = OBJECT_MAPPER.createObjectNode().put("rate", rate).put("seconds", seconds);
+    ObjectNode byPath = json.putObject("paths");
+
+    System.out.printf(
+        "%n%-50s %8s %8s %9s %9s %9s %9s%n",
+        "path", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms");
+
+    for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+      Recorder.Summary summary = entry.getValue().summary();
+      print(entry.getKey(), summary, seconds);
+      summary.write(byPath.putObject(entry.getKey()), seconds);
+    }
+
+    Recorder.Summary all = Recorder.merge(recorders.values()).summary();
+    print("all", all, seconds);
+    all.write(json, seconds);
+
+    System.out.printf(
+        "%ndropped (over %d in flight): %d, upstream requests: %d (%.1f/s)%n",
+        maxInFlight, dropped.get(), upstreamRequests, upstreamRequests / seconds);
+    System.out.printf(
+        "heap peak %d MB of %d MB, gc %d collections, %d ms%n",
+        peakHeap.get() >> 20, heapMax >> 20, gc.count(), gc.millis());
+
+    json.put("dropped", dropped.get())
+        .put("upstreamRequests", upstreamRequests)
+        .put("heapPeakBytes", peakHeap.get())
+        .put("heapMaxBytes", heapMax)
+        .put("gcCount", gc.count())
+        .put("gcMillis", gc.millis());
+
+    Path parent = report.toAbsolutePath().getParent();
+
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+
+    OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(report.toFile(), json);
+    System.out.printf("%nReport written to %s%n", report);
+  }
+
+  private static void print(String name, Recorder.Summary summary, double seconds) {
+    System.out.printf(
+        "%-50s %8d %8d %9.1f %9.1f %9.1f %9.1f%n",
+        name,
+        summary.count(),
+        summary.errors(),
+        summary.count() / seconds,
+        summary.p50(),
+        summary.p99(),
+        summary.max());
+  }
+
+  record GcTotals(long count, long millis) {
+    static GcTotals now() {
+      long count = 0;
+      long millis = 0;
+
+      for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+        count += Math.max(0, bean.getCollectionCount());
+        millis += Math.max(0, bean.getCollectionTime());
+      }
+
+      return new GcTotals(count, millis);
+    }
+
+    GcTotals minus(GcTotals other) {
+      return new GcTotals(count - other.count, millis - other.millis);
+    }
+  }
+}
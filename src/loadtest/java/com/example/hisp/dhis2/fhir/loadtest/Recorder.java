@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.loadtest;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.Arrays;
+import java.util.Collection;
+
+// every latency of a path, kept whole so the percentiles are exact rather than bucketed
+class Recorder {
+  private long[] latencies = new long[1024];
+
+  private int count;
+
+  private int errors;
+
+  synchronized void record(long nanos, boolean success) {
+    if (count == latencies.length) {
+      latencies = Arrays.copyOf(latencies, count * 2);
+    }
+
+    latencies[count++] = nanos;
+
+    if (!success) {
+      errors++;
+    }
+  }
+
+  synchronized Summary summary() {
+    long[] sorted = Arrays.copyOf(latencies, count);
+    Arrays.sort(sorted);
+
+    return new Summary(
+        count,
+        errors,
+        percentile(sorted, 0.5),
+        percentile(sorted, 0.99),
+        sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+  }
+
+  static Recorder merge(Collection<Recorder> recorders) {
+    Recorder merged = new Recorder();
+
+    for (Recorder recorder : recorders) {
+      synchronized (recorder) {
+        for (int i = 0; i < recorder.count; i++) {
+          merged.record(recorder.latencies[i], true);
+        }
+
+        merged.errors += recorder.errors;
+      }
+    }
+
+    return merged;
+  }
+
+  // nearest rank, in milliseconds
+  private static double percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+
+    int rank = (int) Math.ceil(percentile * sorted.length);
+    return sorted[Math.max(0, rank - 1)] / 1e6;
+  }
+
+  record Summary(int count, int errors, double p50, double p99, double max) {
+    void write(ObjectNode json, double seconds) {
+      json.put("requests", count)
+          .put("errors", errors)
+          .put("throughput", count / seconds)
+          .put("p50", p50)
+          .put("p99", p99)
+          .put("max", max);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.loadtest;
+
+import com.example.hisp.dhis2.fhir.MainApp;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// starts a Dhis2Stub and loadtest.shards gateway processes that each sync their own share of the
+// patients into the stub's FHIR sink. Reports how long it took until every tracked entity was
+// written once and whether any was written by more than one shard; runs with different shard
+// counts show how the sync scales. Program arguments go to every gateway.
+public final class ShardedSyncTest {
+  public static void main(String[] args) throws Exception {
+    int shards = Integer.getInteger("loadtest.shards", 2);
+    int trackedEntities = Integer.getInteger("loadtest.trackedEntities", 5000);
+    Duration timeout = Duration.ofSeconds(Long.getLong("loadtest.timeout", 300));
+    boolean complete;
+
+    try (Dhis2Stub stub =
+        new Dhis2Stub(
+            Integer.getInteger("loadtest.organisationUnits", 1000),
+            Integer.getInteger("loadtest.optionSets", 20),
+            Integer.getInteger("loadtest.options", 100),
+            trackedEntities,
+            Long.getLong("loadtest.latency", 50),
+            Long.getLong("loadtest.jitter", 20))) {
+      Path logs = Files.createTempDirectory("sharded-sync");
+      List<Process> processes = new ArrayList<>();
+      long started = System.nanoTime();
+
+      System.out.printf(
+          "Syncing %d tracked entities with %d shards, logs in %s%n",
+          trackedEntities, shards, logs);
+
+      try {
+        for (int index = 0; index < shards; index++) {
+          processes.add(start(stub, shards, index, logs, args));
+        }
+
+        while (stub.getPatientsWritten() < trackedEntities
+            && System.nanoTime() - started < timeout.toNanos()
+            && processes.stream().allMatch(Process::isAlive)) {
+          Thread.sleep(200);
+        }
+      } finally {
+        for (Process process : processes) {
+          process.destroy();
+        }
+
+        for (Process process : processes) {
+          process.waitFor(30, TimeUnit.SECONDS);
+        }
+      }
+
+      double seconds = (System.nanoTime() - started) / 1e9;
+      int written = stub.getPatientsWritten();
+      complete = written >= trackedEntities;
+
+      System.out.printf(
+          "%npatients written %d of %d in %.1fs (%.1f/s), written more than once %d%n",
+          written,
+          trackedEntities,
+          seconds,
+          written / seconds,
+          stub.getPatientWrites() - written);
+
+      if (!complete) {
+        System.out.printf("Not every patient was written, see the shard logs in %s%n", logs);
+      }
+    }
+
+    System.exit(complete ? 0 : 1);
+  }
+
+  private static Process start(Dhis2Stub stub, int shards, int index, Path logs, String[] args)
+      throws Exception {
+    List<String> command =
+        new ArrayList<>(
+            List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx" + System.getProperty("loadtest.shardHeap", "512m"),
+                "-Dspring.devtools.restart.enabled=false",
+                "-classpath",
+                System.getProperty("java.class.path"),
+                MainApp.class.getName(),
+                "--server.port=0",
+                "--integration.dhis2.base-url=" + stub.getBaseUrl(),
+                "--integration.fhir.base-url=" + stub.getFhirBaseUrl(),
+                "--integration.sync.enabled=true",
+                "--integration.sync.delay=0s",
+                "--integration.sync.shard.count=" + shards,
+                "--integration.sync.shard.index=" + index,
+                "--integration.sync.watermark-file="
+                    + logs.resolve("watermarks-%d.properties".formatted(index))));
+
+    command.addAll(Arrays.asList(args));
+
+    return new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .redirectOutput(logs.resolve("shard-%d.log".formatted(index)).toFile())
+        .start();
+  }
+}
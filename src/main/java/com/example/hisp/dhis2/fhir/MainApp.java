@@ -30,12 +30,20 @@ package com.example.hisp.dhis2.fhir;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.example.hisp.dhis2.fhir.camel.common.StaleWhileRevalidate;
+import com.example.hisp.dhis2.fhir.configuration.Dhis2Transport;
 import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.Servlet;
 import lombok.RequiredArgsConstructor;
 import org.apache.camel.component.servlet.CamelHttpTransportServlet;
-import org.hisp.dhis.integration.sdk.Dhis2ClientBuilder;
+import org.hisp.dhis.integration.sdk.DefaultDhis2Client;
+import org.hisp.dhis.integration.sdk.JacksonConverterFactory;
 import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.sdk.internal.security.BasicCredentialsSecurityContext;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -60,13 +68,31 @@ public class MainApp {
     return registration;
   }
 
+  // the builder's transport can be neither sized, compressed nor measured, the client is built on
+  // the configured one instead; the credentials are applied per request by the client as the
+  // builder would
   @Bean
-  public Dhis2Client dhis2Client() {
-    return Dhis2ClientBuilder.newClient(
-            properties.getDhis2().getBaseUrl(),
-            properties.getDhis2().getUsername(),
-            properties.getDhis2().getPassword())
-        .build();
+  public Dhis2Client dhis2Client(Dhis2Transport dhis2Transport) {
+    MainProperties.Api api = properties.getDhis2();
+
+    return new DefaultDhis2Client(
+        api.getBaseUrl(),
+        new BasicCredentialsSecurityContext(api.getUsername(), api.getPassword()),
+        new JacksonConverterFactory(),
+        dhis2Transport.getHttpClient());
+  }
+
+  // runs the upstream half of the search routes, a call that timed out keeps its thread here and
+  // not a servlet thread. The bulkheads only count calls that have not timed out yet, so the pool
+  // has a bound of its own; with every thread stuck in DHIS2 a call is refused rather than queued
+  // and the route falls back to its stale Bundle
+  @Bean(name = StaleWhileRevalidate.UPSTREAM_EXECUTOR, destroyMethod = "shutdownNow")
+  public ExecutorService upstreamExecutor() {
+    int threads = properties.getResilience().getUpstreamThreads();
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new SynchronousQueue<>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   @Bean
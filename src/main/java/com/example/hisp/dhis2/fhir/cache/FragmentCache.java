@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.hisp.dhis2.fhir.camel.common.StageMetrics;
+import com.example.hisp.dhis2.fhir.camel.converters.OrganizationReferences;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hisp.dhis.api.model.v2_39_1.Enrollment;
+import org.hisp.dhis.api.model.v2_39_1.Event;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+// serialized resources keyed by type, id and the lastUpdated of the DHIS2 object they were
+// converted from, an unchanged object is neither converted nor serialized again
+@Component
+public class FragmentCache {
+  private final FhirContext fhirContext;
+
+  private final MainProperties properties;
+
+  private final StageMetrics stageMetrics;
+
+  private final OrganizationReferences organizationReferences;
+
+  private final Map<String, Fragment> fragments;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  public FragmentCache(
+      FhirContext fhirContext,
+      MainProperties properties,
+      StageMetrics stageMetrics,
+      OrganizationReferences organizationReferences) {
+    this.fhirContext = fhirContext;
+    this.properties = properties;
+    this.stageMetrics = stageMetrics;
+    this.organizationReferences = organizationReferences;
+
+    int maxSize = properties.getCache().getFragments().getMaxSize();
+
+    this.fragments =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+            if (size() > maxSize) {
+              evictions.incrementAndGet();
+              return true;
+            }
+
+            return false;
+          }
+        };
+  }
+
+  public Processor encoder(Class<? extends Resource> type) {
+    return exchange -> exchange.getIn().setBody(encode(type, exchange, exchange.getIn().getBody()));
+  }
+
+  public byte[] encode(Class<? extends Resource> type, Exchange exchange, Object source)
+      throws Exception {
+    SourceVersion sourceVersion = sourceVersion(source);
+
+    if (sourceVersion == null) {
+      return serialize(exchange, convert(type, exchange, source));
+    }
+
+    String key = type.getSimpleName() + "/" + sourceVersion.id();
+    Instant now = Instant.now();
+    Fragment fragment = lookup(key);
+
+    if (fragment != null
+        && fragment.version().equals(sourceVersion.version())
+        && fragment.createdAt().plus(properties.getCache().getFragments().getTtl()).isAfter(now)) {
+      hits.incrementAndGet();
+      return fragment.json();
+    }
+
+    misses.incrementAndGet();
+
+    byte[] json = serialize(exchange, convert(type, exchange, source));
+    store(key, new Fragment(sourceVersion.version(), json, now));
+
+    return json;
+  }
+
+  public CacheStats getStats() {
+    return new CacheStats(hits.get(), misses.get(), evictions.get(), size());
+  }
+
+  private Resource convert(Class<? extends Resource> type, Exchange exchange, Object source)
+      throws Exception {
+    if (type.isInstance(source)) {
+      return (Resource) source;
+    }
+
+    return stageMetrics.time(
+        StageMetrics.CONVERT,
+        StageMetrics.route(exchange),
+        () ->
+            exchange
+                .getContext()
+                .getTypeConverter()
+                .mandatoryConvertTo(type, exchange, source));
+  }
+
+  private byte[] serialize(Exchange exchange, Resource resource) {
+    return stageMetrics.time(
+        StageMetrics.MARSHAL,
+        StageMetrics.route(exchange),
+        () ->
+            fhirContext
+                .newJsonParser()
+                .encodeResourceToString(resource)
+                .getBytes(StandardCharsets.UTF_8));
+  }
+
+  private SourceVersion sourceVersion(Object source) {
+    if (source instanceof OrganisationUnit ou) {
+      return ou.getId().isEmpty() || ou.getLastUpdated().isEmpty()
+          ? null
+          : new SourceVersion(ou.getId().get(), version(ou.getLastUpdated().get()));
+    }
+
+    if (source instanceof TrackedEntityInstance te) {
+      return te.getLastUpdated() == null
+          ? null
+          : new SourceVersion(te.getTrackedEntityInstance(), trackedEntityVersion(te));
+    }
+
+    if (source instanceof Resource resource && resource.getMeta().getLastUpdated() != null) {
+      return new SourceVersion(
+          resource.getIdElement().getIdPart(), version(resource.getMeta().getLastUpdated()));
+    }
+
+    return null;
+  }
+
+  private static String version(Date lastUpdated) {
+    return String.valueOf(lastUpdated.getTime());
+  }
+
+  // event data values end up on the Patient too, and changing them does not always touch the
+  // tracked entity's own lastUpdated. Neither does its org unit becoming known to the hierarchy,
+  // which turns the managingOrganization reference from conditional into direct
+  private String trackedEntityVersion(TrackedEntityInstance te) {
+    StringBuilder version = new StringBuilder(te.getLastUpdated());
+    version.append(organizationReferences.isKnown(te.getOrgUnit()) ? "|direct" : "|conditional");
+
+    te.getEnrollments()
+        .ifPresent(
+            enrollments -> {
+              for (Enrollment enrollment : enrollments) {
+                version.append('|').append(enrollment.getLastUpdated());
+
+                enrollment
+                    .getEvents()
+                    .ifPresent(
+                        events -> {
+                          for (Event event : events) {
+                            version.append(',').append(event.getLastUpdated());
+                          }
+                        });
+              }
+            });
+
+    return version.toString();
+  }
+
+  private synchronized Fragment lookup(String key) {
+    return fragments.get(key);
+  }
+
+  private synchronized void store(String key, Fragment fragment) {
+    fragments.put(key, fragment);
+  }
+
+  private synchronized int size() {
+    return fragments.size();
+  }
+
+  record SourceVersion(String id, String version) {}
+
+  record Fragment(String version, byte[] json, Instant createdAt) {}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.OU_ENDPOINT;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.formatDate;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.organisationUnitsQuery;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.support.ObjectHelper;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class OrganisationUnitCache {
+  private final ProducerTemplate producerTemplate;
+
+  private final MainProperties properties;
+
+  private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+  public List<OrganisationUnit> getOrganisationUnits() {
+    return current().organisationUnits();
+  }
+
+  public Optional<OrganisationUnit> getOrganisationUnit(String id) {
+    return Optional.ofNullable(current().byId().get(id));
+  }
+
+  // the units of one snapshot, those it does not hold are left out
+  public Map<String, OrganisationUnit> getOrganisationUnits(Collection<String> ids) {
+    Map<String, OrganisationUnit> byId = current().byId();
+    Map<String, OrganisationUnit> found = new HashMap<>();
+
+    for (String id : ids) {
+      OrganisationUnit organisationUnit = byId.get(id);
+
+      if (organisationUnit != null) {
+        found.put(id, organisationUnit);
+      }
+    }
+
+    return found;
+  }
+
+  public synchronized void invalidate() {
+    snapshot = Snapshot.EMPTY;
+  }
+
+  private Snapshot current() {
+    Snapshot current = snapshot;
+
+    if (!current.isFresh(properties.getCache().getOrganisationUnits().getRevalidateAfter())) {
+      current = refresh();
+    }
+
+    if (current.refusal() != null) {
+      throw new IllegalStateException(current.refusal());
+    }
+
+    return current;
+  }
+
+  private synchronized Snapshot refresh() {
+    MainProperties.CacheSettings settings = properties.getCache().getOrganisationUnits();
+    Snapshot current = snapshot;
+
+    // another caller may have refreshed while we were waiting for the lock
+    if (current.isFresh(settings.getRevalidateAfter())) {
+      return current;
+    }
+
+    Instant now = Instant.now();
+    Snapshot next;
+
+    if (current.refusal() != null
+        || current == Snapshot.EMPTY
+        || current.loadedAt().plus(settings.getTtl()).isBefore(now)) {
+      next = Snapshot.of(fetch(), now);
+    } else {
+      // a lastUpdated filter never returns deleted units, the ids that are left tell them apart
+      next =
+          current.merge(
+              fetch("lastUpdated:gt:" + formatDate(current.highWaterMark())), fetchIds(), now);
+    }
+
+    // Rather than fetching every unit again on every call, calls fail with the reason until the
+    // next revalidation looks again
+    if (next.byId().size() > settings.getMaxSize()) {
+      String refusal =
+          ("%d organisation units exceed integration.cache.organisation-units.max-size of %d,"
+                  + " raise it to serve them")
+              .formatted(next.byId().size(), settings.getMaxSize());
+      log.error(refusal);
+
+      snapshot = Snapshot.refused(refusal, now);
+      return snapshot;
+    }
+
+    snapshot = next;
+    return next;
+  }
+
+  private List<OrganisationUnit> fetch(String... filters) {
+    return fetch(organisationUnitsQuery(filters));
+  }
+
+  private Set<String> fetchIds() {
+    Map<String, Object> queryParams = new HashMap<>(organisationUnitsQuery());
+    queryParams.put("fields", "id");
+    queryParams.put("paging", "false");
+
+    Set<String> ids = new HashSet<>();
+
+    for (OrganisationUnit organisationUnit : fetch(queryParams)) {
+      ids.add(organisationUnit.getId().get());
+    }
+
+    return ids;
+  }
+
+  private List<OrganisationUnit> fetch(Map<String, Object> queryParams) {
+    Object body =
+        producerTemplate.requestBodyAndHeader(OU_ENDPOINT, null, QUERY_PARAMS, queryParams);
+
+    List<OrganisationUnit> organisationUnits = new ArrayList<>();
+
+    for (Object organisationUnit : ObjectHelper.createIterable(body)) {
+      organisationUnits.add((OrganisationUnit) organisationUnit);
+    }
+
+    return organisationUnits;
+  }
+
+  record Snapshot(
+      List<OrganisationUnit> organisationUnits,
+      Map<String, OrganisationUnit> byId,
+      Date highWaterMark,
+      Instant loadedAt,
+      Instant validatedAt,
+      String refusal) {
+    static final Snapshot EMPTY =
+        new Snapshot(List.of(), Map.of(), new Date(0), Instant.EPOCH, Instant.EPOCH, null);
+
+    static Snapshot of(List<OrganisationUnit> organisationUnits, Instant now) {
+      return EMPTY.withUnits(new LinkedHashMap<>(), organisationUnits, now, now);
+    }
+
+    // holds no units, only why they are not served
+    static Snapshot refused(String refusal, Instant now) {
+      return new Snapshot(List.of(), Map.of(), new Date(0), Instant.EPOCH, now, refusal);
+    }
+
+    Snapshot merge(List<OrganisationUnit> changed, Set<String> ids, Instant now) {
+      if (changed.isEmpty() && ids.containsAll(byId.keySet())) {
+        return new Snapshot(organisationUnits, byId, highWaterMark, loadedAt, now, null);
+      }
+
+      Map<String, OrganisationUnit> units = new LinkedHashMap<>(byId);
+      units.keySet().retainAll(ids);
+
+      return withUnits(units, changed, loadedAt, now);
+    }
+
+    boolean isFresh(Duration revalidateAfter) {
+      return this != EMPTY && validatedAt.plus(revalidateAfter).isAfter(Instant.now());
+    }
+
+    private Snapshot withUnits(
+        Map<String, OrganisationUnit> units,
+        List<OrganisationUnit> changed,
+        Instant loadedAt,
+        Instant validatedAt) {
+      Date highWaterMark = this.highWaterMark;
+
+      for (OrganisationUnit organisationUnit : changed) {
+        units.put(organisationUnit.getId().get(), organisationUnit);
+
+        Date lastUpdated = organisationUnit.getLastUpdated().orElse(null);
+
+        if (lastUpdated != null && lastUpdated.after(highWaterMark)) {
+          highWaterMark = lastUpdated;
+        }
+      }
+
+      return new Snapshot(
+          Collections.unmodifiableList(new ArrayList<>(units.values())),
+          Collections.unmodifiableMap(units),
+          highWaterMark,
+          loadedAt,
+          validatedAt,
+          null);
+    }
+  }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.formatDate;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.organisationUnitHierarchyQuery;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.resourceEndpoint;
+
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders;
+import com.example.hisp.dhis2.fhir.camel.common.SearchParameters;
+import com.example.hisp.dhis2.fhir.camel.common.StageMetrics;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.ProducerTemplate;
+import org.springframework.stereotype.Component;
+
+// the whole org unit tree as id, parent, level and lastUpdated only. Units are laid out in
+// depth-first order so a subtree is one contiguous range, which makes descendant lookups and
+// subtree searches a slice instead of a walk. Refreshed like OrganisationUnitCache: changed units
+// are merged in after revalidateAfter, the tree is reloaded whole after the ttl to drop deletions.
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class OrganisationUnitHierarchy {
+  private static final String ROUTE = "organisation-unit-hierarchy";
+
+  private final ProducerTemplate producerTemplate;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final MainProperties properties;
+
+  private final StageMetrics stageMetrics;
+
+  private volatile Index index = Index.EMPTY;
+
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  public Optional<Node> get(String id) {
+    return Optional.ofNullable(current().byId().get(id));
+  }
+
+  // what the index holds right now, for lookups made once per converted resource that must not
+  // wait for DHIS2. A stale or missing index is refreshed in the background meanwhile
+  public Optional<Node> peek(String id) {
+    Index current = index;
+
+    if (!current.isFresh(properties.getCache().getHierarchy().getRevalidateAfter())
+        && refreshing.compareAndSet(false, true)) {
+      CompletableFuture.runAsync(
+          () -> {
+            try {
+              refresh();
+            } catch (RuntimeException e) {
+              log.warn("Organisation unit hierarchy could not be refreshed", e);
+            } finally {
+              refreshing.set(false);
+            }
+          });
+    }
+
+    return Optional.ofNullable(current.byId().get(id));
+  }
+
+  // root first, the unit itself excluded
+  public List<Node> getAncestors(String id) {
+    Index current = current();
+    List<Node> ancestors = new ArrayList<>();
+    Node node = current.byId().get(id);
+
+    while (node != null && node.parent() != null) {
+      node = current.byId().get(node.parent());
+
+      if (node != null) {
+        ancestors.add(0, node);
+      }
+    }
+
+    return ancestors;
+  }
+
+  public List<Node> getChildren(String id) {
+    return children(current(), id);
+  }
+
+  public List<Node> getDescendants(String id) {
+    return descendants(current(), id);
+  }
+
+  public boolean isDescendant(String id, String ancestor) {
+    Index current = current();
+    Node node = current.byId().get(id);
+    Node other = current.byId().get(ancestor);
+
+    return node != null
+        && other != null
+        && node.position() > other.position()
+        && node.position() <= other.last();
+  }
+
+  public List<Node> select(SearchParameters search) {
+    return select(
+        search.getReferenceIds(SearchParameters.PART_OF),
+        search.getReferenceIds(SearchParameters.PART_OF_BELOW),
+        Dhis2RouteBuilders.levels(search));
+  }
+
+  // children of partOf and everything below the below units, or the whole tree when neither is
+  // given, in tree order and narrowed down to the levels asked for
+  public List<Node> select(
+      Collection<String> partOf, Collection<String> below, IntPredicate level) {
+    Index current = current();
+    Collection<Node> candidates;
+
+    if (partOf.isEmpty() && below.isEmpty()) {
+      candidates = current.order();
+    } else {
+      Set<Node> selected = new LinkedHashSet<>();
+
+      for (String id : partOf) {
+        selected.addAll(children(current, id));
+      }
+
+      for (String id : below) {
+        selected.addAll(descendants(current, id));
+      }
+
+      // several units may have been asked for, their results are put back into tree order
+      List<Node> sorted = new ArrayList<>(selected);
+      sorted.sort(Comparator.comparingInt(Node::position));
+      candidates = sorted;
+    }
+
+    List<Node> nodes = new ArrayList<>();
+
+    for (Node node : candidates) {
+      if (level.test(node.level())) {
+        nodes.add(node);
+      }
+    }
+
+    return nodes;
+  }
+
+  public synchronized void invalidate() {
+    index = Index.EMPTY;
+  }
+
+  private static List<Node> children(Index index, String id) {
+    Node node = index.byId().get(id);
+
+    if (node == null) {
+      return List.of();
+    }
+
+    List<Node> children = new ArrayList<>();
+
+    // each child is followed by its own subtree, the next child comes right after that
+    for (int i = node.position() + 1; i <= node.last(); i = index.order().get(i).last() + 1) {
+      children.add(index.order().get(i));
+    }
+
+    return children;
+  }
+
+  private static List<Node> descendants(Index index, String id) {
+    Node node = index.byId().get(id);
+
+    return node == null ? List.of() : index.order().subList(node.position() + 1, node.last() + 1);
+  }
+
+  private Index current() {
+    Index current = index;
+
+    if (!current.isFresh(properties.getCache().getHierarchy().getRevalidateAfter())) {
+      current = refresh();
+    }
+
+    if (current.refusal() != null) {
+      throw new IllegalStateException(current.refusal());
+    }
+
+    return current;
+  }
+
+  private synchronized Index refresh() {
+    MainProperties.CacheSettings settings = properties.getCache().getHierarchy();
+    Index current = index;
+
+    // another caller may have refreshed while we were waiting for the lock
+    if (current.isFresh(settings.getRevalidateAfter())) {
+      return current;
+    }
+
+    Instant now = Instant.now();
+    Index next;
+
+    if (current.refusal() != null
+        || current == Index.EMPTY
+        || current.loadedAt().plus(settings.getTtl()).isBefore(now)) {
+      next = Index.build(fetch(), now);
+    } else {
+      next = current.merge(fetch("lastUpdated:gt:" + formatDate(current.highWaterMark())), now);
+    }
+
+    // like OrganisationUnitCache, calls fail with the reason until the next revalidation looks
+    // again rather than the whole tree being fetched on every call
+    if (next.byId().size() > settings.getMaxSize()) {
+      String refusal =
+          ("%d organisation units exceed integration.cache.hierarchy.max-size of %d, raise it to"
+                  + " serve them")
+              .formatted(next.byId().size(), settings.getMaxSize());
+      log.error(refusal);
+
+      index = Index.refused(refusal, now);
+      return index;
+    }
+
+    index = next;
+    return next;
+  }
+
+  private List<Unit> fetch(String... filters) {
+    try {
+      // the whole tree comes in one response, it is bound unit by unit rather than buffered
+      return stageMetrics.fetch(
+          ROUTE,
+          () ->
+              producerTemplate.requestBodyAndHeader(
+                  resourceEndpoint("organisationUnits"),
+                  null,
+                  QUERY_PARAMS,
+                  organisationUnitHierarchyQuery(filters),
+                  InputStream.class),
+          inputStream -> {
+            try (Dhis2PageDecoder.Page<Unit> page =
+                pageDecoder.decode(inputStream, "organisationUnits", Unit.class)) {
+              List<Unit> units = new ArrayList<>();
+              page.forEachRemaining(units::add);
+
+              return units;
+            }
+          });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // position is the unit's index in tree order, last the position of its last descendant
+  public record Node(
+      String id, String parent, int level, Date lastUpdated, int position, int last) {}
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Unit(String id, Integer level, Reference parent, String lastUpdated) {
+    String parentId() {
+      return parent == null ? null : parent.id();
+    }
+
+    Date lastUpdatedDate() {
+      // DHIS2 timestamps carry no zone, read as UTC like the converters do
+      return lastUpdated == null
+          ? null
+          : Date.from(LocalDateTime.parse(lastUpdated).toInstant(ZoneOffset.UTC));
+    }
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Reference(String id) {}
+
+  record Index(
+      Map<String, Unit> units,
+      Map<String, Node> byId,
+      List<Node> order,
+      Date highWaterMark,
+      Instant loadedAt,
+      Instant validatedAt,
+      String refusal) {
+    static final Index EMPTY =
+        new Index(Map.of(), Map.of(), List.of(), new Date(0), Instant.EPOCH, Instant.EPOCH, null);
+
+    // holds no units, only why they are not served
+    static Index refused(String refusal, Instant now) {
+      return new Index(Map.of(), Map.of(), List.of(), new Date(0), Instant.EPOCH, now, refusal);
+    }
+
+    static Index build(Collection<Unit> fetched, Instant now) {
+      Map<String, Unit> units = new LinkedHashMap<>();
+
+      for (Unit unit : fetched) {
+        units.put(unit.id(), unit);
+      }
+
+      return layout(units, new Date(0), now, now);
+    }
+
+    Index merge(List<Unit> changed, Instant now) {
+      if (changed.isEmpty()) {
+        return new Index(units, byId, order, highWaterMark, loadedAt, now, null);
+      }
+
+      Map<String, Unit> merged = new LinkedHashMap<>(units);
+
+      for (Unit unit : changed) {
+        merged.put(unit.id(), unit);
+      }
+
+      return layout(merged, highWaterMark, loadedAt, now);
+    }
+
+    boolean isFresh(Duration revalidateAfter) {
+      return this != EMPTY && validatedAt.plus(revalidateAfter).isAfter(Instant.now());
+    }
+
+    // depth-first from every unit whose parent is not in the tree, that is the roots and the
+    // tops of the branches the DHIS2 user can see
+    private static Index layout(
+        Map<String, Unit> units, Date highWaterMark, Instant loadedAt, Instant now) {
+      Map<String, List<Unit>> children = new HashMap<>();
+      List<Unit> roots = new ArrayList<>();
+
+      for (Unit unit : units.values()) {
+        Date lastUpdated = unit.lastUpdatedDate();
+
+        if (lastUpdated != null && lastUpdated.after(highWaterMark)) {
+          highWaterMark = lastUpdated;
+        }
+
+        if (unit.parentId() == null || !units.containsKey(unit.parentId())) {
+          roots.add(unit);
+        } else {
+          children.computeIfAbsent(unit.parentId(), k -> new ArrayList<>()).add(unit);
+        }
+      }
+
+      Node[] nodes = new Node[units.size()];
+      Map<String, Integer> positions = new HashMap<>();
+      int position = 0;
+
+      for (Unit root : roots) {
+        Deque<Unit> stack = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        stack.push(root);
+        depths.push(root.level() == null ? 1 : root.level());
+
+        while (!stack.isEmpty()) {
+          Unit unit = stack.pop();
+          int depth = depths.pop();
+
+          positions.put(unit.id(), position);
+          nodes[position++] =
+              new Node(unit.id(), unit.parentId(), depth, unit.lastUpdatedDate(), 0, 0);
+
+          List<Unit> below = children.getOrDefault(unit.id(), List.of());
+
+          for (int i = below.size() - 1; i >= 0; i--) {
+            stack.push(below.get(i));
+            depths.push(depth + 1);
+          }
+        }
+      }
+
+      // a parent cycle leaves units unreached, they cannot be placed in the tree
+      if (position < nodes.length) {
+        log.warn("{} organisation units are part of a parent cycle", nodes.length - position);
+      }
+
+      // the last descendant of a unit is found walking back from the end of the order
+      int[] last = new int[position];
+
+      for (int i = position - 1; i >= 0; i--) {
+        last[i] = Math.max(last[i], i);
+        Integer parent = nodes[i].parent() == null ? null : positions.get(nodes[i].parent());
+
+        if (parent != null) {
+          last[parent] = Math.max(last[parent], last[i]);
+        }
+      }
+
+      List<Node> order = new ArrayList<>(position);
+      Map<String, Node> byId = new HashMap<>(position * 2);
+
+      for (int i = 0; i < position; i++) {
+        Node node = nodes[i];
+        Node placed =
+            new Node(node.id(), node.parent(), node.level(), node.lastUpdated(), i, last[i]);
+        order.add(placed);
+        byId.put(placed.id(), placed);
+      }
+
+      return new Index(
+          units, byId, Collections.unmodifiableList(order), highWaterMark, loadedAt, now, null);
+    }
+  }
+}
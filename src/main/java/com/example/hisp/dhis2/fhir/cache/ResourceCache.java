@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+@Component
+public class ResourceCache {
+  private final MainProperties properties;
+
+  private final Map<String, CachedResource> entries;
+
+  public ResourceCache(MainProperties properties) {
+    this.properties = properties;
+
+    int maxSize = properties.getCache().getResources().getMaxSize();
+
+    // access ordered, so the least recently read resource is dropped first
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedResource> eldest) {
+            return size() > maxSize;
+          }
+        };
+  }
+
+  // within revalidate-after the cached resource is returned as is, after that the probe is asked
+  // for the current lastUpdated and the resource is only loaded again when that changed. HAPI
+  // resources are mutable, every caller gets its own copy of the cached one.
+  public <R extends Resource> R get(
+      Class<R> type, String id, Source<Optional<String>> versionProbe, Source<R> loader)
+      throws Exception {
+    MainProperties.CacheSettings settings = properties.getCache().getResources();
+    String key = type.getSimpleName() + "/" + id;
+    Instant now = Instant.now();
+    CachedResource entry = lookup(key);
+
+    if (entry != null && entry.loadedAt().plus(settings.getTtl()).isBefore(now)) {
+      entry = null;
+    }
+
+    if (entry != null && entry.validatedAt().plus(settings.getRevalidateAfter()).isAfter(now)) {
+      return type.cast(entry.resource().copy());
+    }
+
+    Optional<String> version = versionProbe.get();
+
+    if (version.isEmpty()) {
+      remove(key);
+      return null;
+    }
+
+    if (entry != null && entry.version().equals(version.get())) {
+      store(key, new CachedResource(entry.version(), entry.resource(), entry.loadedAt(), now));
+      return type.cast(entry.resource().copy());
+    }
+
+    R resource = loader.get();
+
+    if (resource == null) {
+      remove(key);
+      return null;
+    }
+
+    store(key, new CachedResource(version.get(), resource, now, now));
+    return type.cast(resource.copy());
+  }
+
+  private synchronized CachedResource lookup(String key) {
+    return entries.get(key);
+  }
+
+  private synchronized void store(String key, CachedResource entry) {
+    entries.put(key, entry);
+  }
+
+  private synchronized void remove(String key) {
+    entries.remove(key);
+  }
+
+  @FunctionalInterface
+  public interface Source<T> {
+    T get() throws Exception;
+  }
+
+  record CachedResource(String version, Resource resource, Instant loadedAt, Instant validatedAt) {}
+}
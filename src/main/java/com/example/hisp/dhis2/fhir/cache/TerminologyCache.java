@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.OS_ENDPOINT;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.optionSetVersionsQuery;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.optionSetsQuery;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.NoTypeConversionAvailableException;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.RuntimeCamelException;
+import org.apache.camel.support.ObjectHelper;
+import org.hisp.dhis.api.model.v2_39_1.OptionSet;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class TerminologyCache {
+  private static final int ID_BATCH_SIZE = 50;
+
+  private final CamelContext camelContext;
+
+  private final ProducerTemplate producerTemplate;
+
+  private final MainProperties properties;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private volatile Map<String, Entry> entries = Map.of();
+
+  private volatile TerminologyIndex index = TerminologyIndex.EMPTY;
+
+  private volatile Instant refreshedAt = Instant.EPOCH;
+
+  // HAPI resources are mutable, every caller gets its own copy of the cached ones
+  public List<CodeSystem> getCodeSystems() {
+    return get(entry -> entry.codeSystem().copy());
+  }
+
+  public List<ValueSet> getValueSets() {
+    return get(entry -> entry.valueSet().copy());
+  }
+
+  public Optional<CodeSystem> getCodeSystem(String id) {
+    return getOne(id, entry -> entry.codeSystem().copy());
+  }
+
+  public Optional<ValueSet> getValueSet(String id) {
+    return getOne(id, entry -> entry.valueSet().copy());
+  }
+
+  // the operations never load in the caller, they answer from what the background refresh built
+  public TerminologyIndex getIndex() {
+    return index;
+  }
+
+  public CacheStats getStats() {
+    return new CacheStats(hits.get(), misses.get(), evictions.get(), entries.size());
+  }
+
+  public synchronized void refresh() {
+    Map<String, Date> versions = fetchVersions();
+    Map<String, Entry> current = entries;
+    Map<String, Entry> next = new LinkedHashMap<>();
+    List<String> changed = new ArrayList<>();
+
+    for (Map.Entry<String, Date> version : versions.entrySet()) {
+      Entry entry = current.get(version.getKey());
+
+      if (entry != null && Objects.equals(entry.lastUpdated(), version.getValue())) {
+        next.put(version.getKey(), entry);
+      } else {
+        // keeps the upstream order, the placeholder is filled in below
+        next.put(version.getKey(), null);
+        changed.add(version.getKey());
+      }
+    }
+
+    // a changed option set is replaced, only those gone from DHIS2 are evicted
+    for (String id : current.keySet()) {
+      if (!next.containsKey(id)) {
+        evictions.incrementAndGet();
+      }
+    }
+
+    for (int i = 0; i < changed.size(); i += ID_BATCH_SIZE) {
+      List<String> batch = changed.subList(i, Math.min(i + ID_BATCH_SIZE, changed.size()));
+
+      for (OptionSet optionSet : fetchOptionSets("id:in:[" + String.join(",", batch) + "]")) {
+        next.put(optionSet.getId().get(), toEntry(optionSet));
+      }
+    }
+
+    next.values().removeIf(Objects::isNull);
+
+    int maxSize = properties.getCache().getOptionSets().getMaxSize();
+
+    if (next.size() > maxSize) {
+      log.warn("{} option sets exceed the cache size limit of {}", next.size(), maxSize);
+
+      Iterator<String> iterator = next.keySet().iterator();
+
+      for (int i = 0; iterator.hasNext(); i++) {
+        iterator.next();
+
+        if (i >= maxSize) {
+          iterator.remove();
+          evictions.incrementAndGet();
+        }
+      }
+    }
+
+    if (!next.equals(current)) {
+      index =
+          TerminologyIndex.build(
+              next.values().stream().map(Entry::codeSystem).toList(),
+              next.values().stream().map(Entry::valueSet).toList());
+    }
+
+    entries = Collections.unmodifiableMap(next);
+    refreshedAt = Instant.now();
+
+    log.debug(
+        "Terminology cache refreshed, {} of {} option sets converted", changed.size(), next.size());
+  }
+
+  private <T> List<T> get(Function<Entry, T> mapper) {
+    boolean loaded = loadIfExpired();
+    (loaded ? misses : hits).incrementAndGet();
+
+    return entries.values().stream().map(mapper).toList();
+  }
+
+  // an id the cache does not hold is a miss too
+  private <T> Optional<T> getOne(String id, Function<Entry, T> mapper) {
+    boolean loaded = loadIfExpired();
+    Entry entry = entries.get(id);
+    (loaded || entry == null ? misses : hits).incrementAndGet();
+
+    return Optional.ofNullable(entry).map(mapper);
+  }
+
+  // the background refresh has not run yet or keeps failing, load in the caller
+  private boolean loadIfExpired() {
+    if (!isExpired()) {
+      return false;
+    }
+
+    refreshIfExpired();
+    return true;
+  }
+
+  private synchronized void refreshIfExpired() {
+    if (isExpired()) {
+      refresh();
+    }
+  }
+
+  private boolean isExpired() {
+    return refreshedAt.plus(properties.getCache().getOptionSets().getTtl()).isBefore(Instant.now());
+  }
+
+  private Map<String, Date> fetchVersions() {
+    Map<String, Date> versions = new LinkedHashMap<>();
+
+    for (Object item : fetch(optionSetVersionsQuery())) {
+      OptionSet optionSet = (OptionSet) item;
+      versions.put(optionSet.getId().get(), optionSet.getLastUpdated().orElse(null));
+    }
+
+    return versions;
+  }
+
+  private List<OptionSet> fetchOptionSets(String filter) {
+    List<OptionSet> optionSets = new ArrayList<>();
+
+    for (Object item : fetch(optionSetsQuery(filter))) {
+      optionSets.add((OptionSet) item);
+    }
+
+    return optionSets;
+  }
+
+  private Iterable<?> fetch(Map<String, Object> queryParams) {
+    return ObjectHelper.createIterable(
+        producerTemplate.requestBodyAndHeader(OS_ENDPOINT, null, QUERY_PARAMS, queryParams));
+  }
+
+  private Entry toEntry(OptionSet optionSet) {
+    try {
+      return new Entry(
+          optionSet.getLastUpdated().orElse(null),
+          camelContext.getTypeConverter().mandatoryConvertTo(CodeSystem.class, optionSet),
+          camelContext.getTypeConverter().mandatoryConvertTo(ValueSet.class, optionSet));
+    } catch (NoTypeConversionAvailableException e) {
+      throw new RuntimeCamelException(e);
+    }
+  }
+
+  record Entry(Date lastUpdated, CodeSystem codeSystem, ValueSet valueSet) {}
+}
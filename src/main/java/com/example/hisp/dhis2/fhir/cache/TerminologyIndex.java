@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionDesignationComponent;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+
+// The terminology operations are answered from this index alone. Codes are looked up by
+// system|code in a hash map, and every word of the displays and the translated designations is
+// kept in a sorted array per code system, so a filter is a binary search for the prefix. The
+// index is immutable and rebuilt by the terminology cache whenever the option sets change.
+public final class TerminologyIndex {
+  public static final TerminologyIndex EMPTY = build(List.of(), List.of());
+
+  private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+  private final Map<String, Concept> concepts;
+
+  private final Map<String, IndexedSystem> systems;
+
+  // value set url and id to the code system they include
+  private final Map<String, String> valueSets;
+
+  private TerminologyIndex(
+      Map<String, Concept> concepts,
+      Map<String, IndexedSystem> systems,
+      Map<String, String> valueSets) {
+    this.concepts = concepts;
+    this.systems = systems;
+    this.valueSets = valueSets;
+  }
+
+  public static TerminologyIndex build(
+      Collection<CodeSystem> codeSystems, Collection<ValueSet> valueSets) {
+    Map<String, Concept> concepts = new HashMap<>();
+    Map<String, IndexedSystem> systems = new HashMap<>();
+    Map<String, String> valueSetSystems = new HashMap<>();
+
+    for (CodeSystem codeSystem : codeSystems) {
+      IndexedSystem system = IndexedSystem.of(codeSystem);
+      systems.put(system.url(), system);
+
+      for (Concept concept : system.concepts()) {
+        concepts.put(key(system.url(), concept.code()), concept);
+      }
+    }
+
+    for (ValueSet valueSet : valueSets) {
+      for (ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+        if (include.hasSystem()) {
+          valueSetSystems.put(valueSet.getUrl(), include.getSystem());
+          valueSetSystems.put(valueSet.getIdElement().getIdPart(), include.getSystem());
+        }
+      }
+    }
+
+    return new TerminologyIndex(
+        Map.copyOf(concepts), Map.copyOf(systems), Map.copyOf(valueSetSystems));
+  }
+
+  public Optional<Concept> lookup(String system, String code) {
+    return Optional.ofNullable(concepts.get(key(unversioned(system), code)));
+  }
+
+  public Optional<IndexedSystem> getSystem(String url) {
+    return Optional.ofNullable(systems.get(unversioned(url)));
+  }
+
+  // accepts the canonical url, with or without a version, and the plain value set id
+  public Optional<IndexedSystem> getValueSetSystem(String valueSet) {
+    return Optional.ofNullable(valueSets.get(unversioned(valueSet))).map(systems::get);
+  }
+
+  public int size() {
+    return concepts.size();
+  }
+
+  private static String key(String system, String code) {
+    return system + "|" + code;
+  }
+
+  private static String unversioned(String url) {
+    int idx = url == null ? -1 : url.indexOf('|');
+    return idx < 0 ? url : url.substring(0, idx);
+  }
+
+  // lowercase without diacritics, so "eleve" finds "Élève"
+  static String normalize(String value) {
+    String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+    return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+  }
+
+  static String[] words(String value) {
+    if (value == null) {
+      return new String[0];
+    }
+
+    return Arrays.stream(SEPARATOR.split(normalize(value)))
+        .filter(word -> !word.isEmpty())
+        .toArray(String[]::new);
+  }
+
+  public record Designation(String language, String value) {}
+
+  public record Concept(
+      String system,
+      String code,
+      String display,
+      List<Designation> designations,
+      int position,
+      String[] words) {
+    // DHIS2 locales use an underscore, fr_FR, and a bare language matches any of its regions
+    public String display(String language) {
+      if (language == null) {
+        return display;
+      }
+
+      String wanted = language.replace('-', '_');
+
+      // a designation without a language cannot be told apart from the display, it is not picked
+      for (Designation designation : designations) {
+        if (wanted.equalsIgnoreCase(designation.language())) {
+          return designation.value();
+        }
+      }
+
+      String region = wanted + "_";
+
+      for (Designation designation : designations) {
+        String designationLanguage = designation.language();
+
+        if (designationLanguage != null
+            && designationLanguage.regionMatches(true, 0, region, 0, region.length())) {
+          return designation.value();
+        }
+      }
+
+      return display;
+    }
+
+    public boolean hasDisplay(String value) {
+      return value.equalsIgnoreCase(display)
+          || designations.stream().anyMatch(d -> value.equalsIgnoreCase(d.value()));
+    }
+
+    // every filter word has to start one of the words of the display or a designation
+    boolean matches(String[] filter) {
+      for (String prefix : filter) {
+        if (Arrays.stream(words).noneMatch(word -> word.startsWith(prefix))) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+
+  public record IndexedSystem(
+      String url,
+      String name,
+      String version,
+      List<Concept> concepts,
+      String[] terms,
+      Concept[] termConcepts) {
+    static IndexedSystem of(CodeSystem codeSystem) {
+      List<Concept> concepts = new ArrayList<>();
+      List<Map.Entry<String, Concept>> terms = new ArrayList<>();
+
+      for (ConceptDefinitionComponent definition : codeSystem.getConcept()) {
+        List<Designation> designations = new ArrayList<>();
+        Set<String> words = new LinkedHashSet<>(List.of(words(definition.getDisplay())));
+
+        for (ConceptDefinitionDesignationComponent designation : definition.getDesignation()) {
+          designations.add(new Designation(designation.getLanguage(), designation.getValue()));
+          words.addAll(List.of(words(designation.getValue())));
+        }
+
+        Concept concept =
+            new Concept(
+                codeSystem.getUrl(),
+                definition.getCode(),
+                definition.getDisplay(),
+                List.copyOf(designations),
+                concepts.size(),
+                words.toArray(String[]::new));
+
+        concepts.add(concept);
+
+        for (String word : concept.words()) {
+          terms.add(Map.entry(word, concept));
+        }
+      }
+
+      terms.sort(Map.Entry.comparingByKey());
+
+      return new IndexedSystem(
+          codeSystem.getUrl(),
+          codeSystem.getName(),
+          codeSystem.getVersion(),
+          List.copyOf(concepts),
+          terms.stream().map(Map.Entry::getKey).toArray(String[]::new),
+          terms.stream().map(Map.Entry::getValue).toArray(Concept[]::new));
+    }
+
+    // concepts in code system order, all of them when there is no filter
+    public List<Concept> filter(String filter) {
+      String[] prefixes = words(filter);
+
+      if (prefixes.length == 0) {
+        return concepts;
+      }
+
+      // the longest word narrows the candidates the most, the others are checked per concept
+      String longest = prefixes[0];
+
+      for (String prefix : prefixes) {
+        if (prefix.length() > longest.length()) {
+          longest = prefix;
+        }
+      }
+
+      Set<Concept> candidates = new LinkedHashSet<>();
+
+      for (int i = lowerBound(longest); i < terms.length && terms[i].startsWith(longest); i++) {
+        if (termConcepts[i].matches(prefixes)) {
+          candidates.add(termConcepts[i]);
+        }
+      }
+
+      List<Concept> matches = new ArrayList<>(candidates);
+      matches.sort(Comparator.comparingInt(Concept::position));
+
+      return matches;
+    }
+
+    private int lowerBound(String prefix) {
+      int low = 0;
+      int high = terms.length;
+
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+
+        if (terms[mid].compareTo(prefix) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+
+      return low;
+    }
+  }
+}
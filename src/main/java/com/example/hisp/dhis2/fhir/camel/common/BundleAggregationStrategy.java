@@ -27,40 +27,53 @@
  */
 package com.example.hisp.dhis2.fhir.camel.common;
 
-import java.util.Date;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.camel.AggregationStrategy;
 import org.apache.camel.Exchange;
-import org.apache.camel.component.fhir.internal.FhirConstants;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Bundle.BundleType;
-import org.hl7.fhir.r4.model.Resource;
 
+// collects the serialized entries, SearchBundles splices them into the Bundle on completion
 public class BundleAggregationStrategy implements AggregationStrategy {
   @Override
   public Exchange aggregate(Exchange oldExchange, Exchange newExchange) {
-    Resource resource = newExchange.getIn().getBody(Resource.class);
+    byte[] fragment = newExchange.getIn().getBody(byte[].class);
+    Exchange result = oldExchange == null ? newExchange : oldExchange;
 
-    if (oldExchange == null) {
-      Bundle bundle = new Bundle().setType(BundleType.SEARCHSET);
-      bundle.setId(UUID.randomUUID().toString());
-      bundle.getMeta().setLastUpdated(new Date());
+    @SuppressWarnings("unchecked")
+    List<byte[]> fragments = oldExchange == null ? null : oldExchange.getIn().getBody(List.class);
 
-      bundle.addEntry().setResource(resource);
+    if (fragments == null) {
+      fragments = newFragments(newExchange);
+      result.getIn().setBody(fragments);
+    }
+
+    // a Bundle quietly missing an entry is worse than no Bundle, the failure ends the split's
+    // exchange and its slot stays empty
+    if (newExchange.getException() != null) {
+      result.setException(newExchange.getException());
+      return result;
+    }
 
-      newExchange.getIn().setBody(bundle);
-      newExchange.getIn().setHeader(FhirConstants.PROPERTY_PREFIX + "bundle", bundle);
+    // each entry goes into its own slot, the order does not depend on which worker finished first
+    Integer index = newExchange.getProperty(Exchange.SPLIT_INDEX, Integer.class);
 
-      return newExchange;
+    if (index == null) {
+      fragments.add(fragment);
     } else {
-      Bundle bundle = oldExchange.getIn().getBody(Bundle.class);
-      bundle.setId(UUID.randomUUID().toString());
-      bundle.getMeta().setLastUpdated(new Date());
-
-      bundle.addEntry().setResource(resource);
-      oldExchange.getIn().setHeader(FhirConstants.PROPERTY_PREFIX + "bundle", bundle);
+      while (fragments.size() <= index) {
+        fragments.add(null);
+      }
 
-      return oldExchange;
+      fragments.set(index, fragment);
     }
+
+    return result;
+  }
+
+  // a split that is not streaming knows its size up front, the list is sized once
+  private static List<byte[]> newFragments(Exchange exchange) {
+    Integer size = exchange.getProperty(Exchange.SPLIT_SIZE, Integer.class);
+
+    return size == null ? new ArrayList<>() : new ArrayList<>(size);
   }
 }
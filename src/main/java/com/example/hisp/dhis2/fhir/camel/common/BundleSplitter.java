@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.builder.Builder;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.model.SplitDefinition;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class BundleSplitter {
+  private final CamelContext camelContext;
+
+  private final MainProperties properties;
+
+  private ExecutorService executorService;
+
+  @PostConstruct
+  public void init() {
+    MainProperties.Conversion conversion = properties.getConversion();
+
+    if (conversion.isParallel()) {
+      executorService =
+          camelContext
+              .getExecutorServiceManager()
+              .newFixedThreadPool(this, "BundleConversion", conversion.getWorkers());
+    }
+  }
+
+  @PreDestroy
+  public void destroy() {
+    if (executorService != null) {
+      camelContext.getExecutorServiceManager().shutdown(executorService);
+    }
+  }
+
+  // one pool shared by all routes, a parallel split that is not streaming still aggregates in
+  // source order
+  public SplitDefinition split(RouteDefinition routeDefinition) {
+    SplitDefinition split = routeDefinition.split(Builder.body(), new BundleAggregationStrategy());
+
+    if (executorService != null) {
+      split.parallelProcessing().executorService(executorService);
+    }
+
+    return split;
+  }
+}
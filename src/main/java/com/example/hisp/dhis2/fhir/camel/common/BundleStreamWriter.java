@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.http.common.HttpMessage;
+import org.hl7.fhir.r4.model.Bundle.BundleLinkComponent;
+import org.hl7.fhir.r4.model.InstantType;
+
+// splices already serialized resources into a searchset envelope, the FHIR serializer never sees
+// the Bundle itself
+@Slf4j
+public class BundleStreamWriter {
+  public static final String RESPONSE_PROPERTY = "Dhis2Fhir.servletResponse";
+
+  public static final String WRITER_PROPERTY = "Dhis2Fhir.bundleStreamWriter";
+
+  private static final byte[] ENTRY_START = "{\"resource\":".getBytes(StandardCharsets.UTF_8);
+
+  private OutputStream outputStream;
+
+  // what was written before the response was committed, null once it is
+  private ByteArrayOutputStream pending;
+
+  private int count;
+
+  public BundleStreamWriter(OutputStream outputStream) {
+    this.outputStream = new BufferedOutputStream(outputStream);
+  }
+
+  private BundleStreamWriter() {
+    this.pending = new ByteArrayOutputStream();
+    this.outputStream = pending;
+  }
+
+  private boolean isCommitted() {
+    return pending == null;
+  }
+
+  private void commit(OutputStream target) throws IOException {
+    outputStream = new BufferedOutputStream(target);
+    pending.writeTo(outputStream);
+    pending = null;
+  }
+
+  public void start(String id, Date lastUpdated) throws IOException {
+    write("{\"resourceType\":\"Bundle\",\"id\":\"");
+    write(id);
+    write("\",\"meta\":{\"lastUpdated\":\"");
+    write(new InstantType(lastUpdated).getValueAsString());
+    write("\"},\"type\":\"searchset\",\"entry\":[");
+  }
+
+  public void add(byte[] fragment) throws IOException {
+    if (count++ > 0) {
+      outputStream.write(',');
+    }
+
+    outputStream.write(ENTRY_START);
+    outputStream.write(fragment);
+    outputStream.write('}');
+  }
+
+  public void finish(int total, List<BundleLinkComponent> links) throws IOException {
+    write("],\"total\":");
+    write(String.valueOf(total));
+
+    if (!links.isEmpty()) {
+      write(",\"link\":[");
+
+      for (int i = 0; i < links.size(); i++) {
+        write(i == 0 ? "{\"relation\":\"" : ",{\"relation\":\"");
+        write(quote(links.get(i).getRelation()));
+        write("\",\"url\":\"");
+        write(quote(links.get(i).getUrl()));
+        write("\"}");
+      }
+
+      outputStream.write(']');
+    }
+
+    outputStream.write('}');
+    outputStream.flush();
+  }
+
+  private void write(String value) throws IOException {
+    outputStream.write(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String quote(String value) {
+    return new String(JsonStringEncoder.getInstance().quoteAsString(value));
+  }
+
+  public static Processor bindResponse() {
+    return exchange -> {
+      HttpMessage message = exchange.getIn(HttpMessage.class);
+
+      if (message == null) {
+        throw new IllegalStateException(
+            "Streaming bundles can only be written to a servlet response");
+      }
+
+      exchange.setProperty(RESPONSE_PROPERTY, message.getResponse());
+    };
+  }
+
+  // nothing goes to the response until the first entry converted, so a failure in the DHIS2 request
+  // or on the first tracked entity still becomes an ordinary error response
+  public static void start(Exchange exchange) throws IOException {
+    BundleStreamWriter writer = new BundleStreamWriter();
+    writer.start(ConditionalRequests.bundleId(exchange), ConditionalRequests.lastUpdated(exchange));
+
+    exchange.setProperty(WRITER_PROPERTY, writer);
+  }
+
+  public static void add(Exchange exchange) throws IOException {
+    BundleStreamWriter writer = exchange.getProperty(WRITER_PROPERTY, BundleStreamWriter.class);
+    writer.add(exchange.getIn().getBody(byte[].class));
+
+    if (!writer.isCommitted()) {
+      commit(exchange, writer);
+    }
+  }
+
+  public static void finish(Exchange exchange) throws IOException {
+    BundleStreamWriter writer = exchange.getProperty(WRITER_PROPERTY, BundleStreamWriter.class);
+
+    if (!writer.isCommitted()) {
+      commit(exchange, writer);
+    }
+
+    writer.finish(
+        SearchBundles.getTotal(exchange, writer.count), SearchBundles.getLinks(exchange));
+
+    // the response is already written, nothing left for the servlet binding to do
+    exchange.getMessage().setBody(null);
+  }
+
+  // A failure after the 200 went out can no longer become an error response. The exception is
+  // rethrown so it escapes the servlet, and the container then closes the connection instead of
+  // ending the chunked body; a client sees a broken transfer rather than a short Bundle.
+  public static void abort(Exchange exchange) throws Exception {
+    BundleStreamWriter writer = exchange.getProperty(WRITER_PROPERTY, BundleStreamWriter.class);
+    Exception cause = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+
+    // outside an onException block there is no caught exception, only the one still on the exchange
+    if (cause == null) {
+      cause = exchange.getException();
+    }
+
+    if (cause == null) {
+      cause =
+          new IllegalStateException(
+              "Bundle stream aborted after %d entries"
+                  .formatted(writer == null ? 0 : writer.count));
+    }
+
+    if (writer != null && writer.isCommitted()) {
+      log.warn("Aborting the Bundle stream after {} entries", writer.count, cause);
+      writer.outputStream.flush();
+    }
+
+    throw cause;
+  }
+
+  private static void commit(Exchange exchange, BundleStreamWriter writer) throws IOException {
+    HttpServletResponse response =
+        exchange.getProperty(RESPONSE_PROPERTY, HttpServletResponse.class);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(SearchBundles.FHIR_JSON);
+
+    // headers set on the message are never copied once the body has been streamed
+    for (String header : List.of(ConditionalRequests.ETAG, ConditionalRequests.LAST_MODIFIED)) {
+      String value = exchange.getIn().getHeader(header, String.class);
+
+      if (value != null) {
+        response.setHeader(header, value);
+      }
+    }
+
+    writer.commit(response.getOutputStream());
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Function;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+
+public class ConditionalRequests {
+  public static final String VERSION_PROPERTY = "Dhis2Fhir.version";
+
+  public static final String NOT_MODIFIED_PROPERTY = "Dhis2Fhir.notModified";
+
+  public static final String ETAG = "ETag";
+
+  public static final String LAST_MODIFIED = "Last-Modified";
+
+  private static final String IF_NONE_MATCH = "If-None-Match";
+
+  private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+  // total and newest lastUpdated of everything a response is built from, and for a single page a
+  // digest of the ids and lastUpdated of its items. Without the digest a delete next to an insert
+  // with an older lastUpdated goes unnoticed, which is accepted where only the two are known: the
+  // cached lists and the unpaged tracked entity listing
+  public record Version(int total, Date lastUpdated, long digest) {
+    public Version(int total, Date lastUpdated) {
+      this(total, lastUpdated, 0);
+    }
+  }
+
+  // the version of a page from its items in the order DHIS2 returned them
+  public static <T> Version pageVersion(
+      Integer total, List<T> items, Function<T, String> id, Function<T, Date> lastUpdated) {
+    Date newest = null;
+    long digest = 1;
+
+    for (T item : items) {
+      Date itemLastUpdated = lastUpdated.apply(item);
+      digest = 31 * digest + Objects.hashCode(id.apply(item));
+      digest = 31 * digest + (itemLastUpdated == null ? 0 : itemLastUpdated.getTime());
+
+      if (itemLastUpdated != null && (newest == null || itemLastUpdated.after(newest))) {
+        newest = itemLastUpdated;
+      }
+    }
+
+    return new Version(total == null ? items.size() : total, newest, digest);
+  }
+
+  public static void evaluate(Exchange exchange) {
+    Version version = exchange.getProperty(VERSION_PROPERTY, Version.class);
+
+    if (version == null) {
+      return;
+    }
+
+    Message message = exchange.getIn();
+    String ifNoneMatch = message.getHeader(IF_NONE_MATCH, String.class);
+    String ifModifiedSince = message.getHeader(IF_MODIFIED_SINCE, String.class);
+
+    // the request headers would otherwise be echoed back on the response
+    message.removeHeader(IF_NONE_MATCH);
+    message.removeHeader(IF_MODIFIED_SINCE);
+
+    String etag = describe(exchange, version);
+    boolean notModified =
+        ifNoneMatch != null
+            ? matches(ifNoneMatch, etag)
+            : ifModifiedSince != null && notModifiedSince(version, ifModifiedSince);
+
+    if (notModified) {
+      exchange.setProperty(NOT_MODIFIED_PROPERTY, true);
+      message.setHeader(Exchange.HTTP_RESPONSE_CODE, 304);
+      message.setBody(null);
+    }
+  }
+
+  public static void evaluateResource(Exchange exchange) {
+    Object body = exchange.getIn().getBody();
+
+    if (body instanceof Resource resource && !(body instanceof OperationOutcome)) {
+      exchange.setProperty(VERSION_PROPERTY, new Version(1, resource.getMeta().getLastUpdated()));
+      evaluate(exchange);
+    }
+  }
+
+  // replaces the version a probe found with the one of what was actually fetched, the data may
+  // have changed in between and the ETag has to describe the body it goes out with
+  public static String describe(Exchange exchange, Version version) {
+    Message message = exchange.getIn();
+    String etag = "W/\"" + versionId(exchange, version) + "\"";
+
+    exchange.setProperty(VERSION_PROPERTY, version);
+    message.setHeader(ETAG, etag);
+
+    if (version.lastUpdated() != null) {
+      message.setHeader(LAST_MODIFIED, formatHttpDate(version.lastUpdated()));
+    } else {
+      message.removeHeader(LAST_MODIFIED);
+    }
+
+    return etag;
+  }
+
+  public static boolean isNotModified(Exchange exchange) {
+    return exchange.getProperty(NOT_MODIFIED_PROPERTY, false, Boolean.class);
+  }
+
+  // the same request against the same upstream data always yields the same Bundle id
+  public static String bundleId(Exchange exchange) {
+    Version version = exchange.getProperty(VERSION_PROPERTY, Version.class);
+    return version == null ? UUID.randomUUID().toString() : versionId(exchange, version);
+  }
+
+  public static Date lastUpdated(Exchange exchange) {
+    Version version = exchange.getProperty(VERSION_PROPERTY, Version.class);
+    return version == null || version.lastUpdated() == null ? new Date() : version.lastUpdated();
+  }
+
+  private static String versionId(Exchange exchange, Version version) {
+    String key =
+        exchange.getIn().getHeader(Exchange.HTTP_URI, String.class)
+            + "?"
+            + exchange.getIn().getHeader(Exchange.HTTP_QUERY, "", String.class)
+            + "|"
+            + version.total()
+            + "|"
+            + (version.lastUpdated() == null ? 0 : version.lastUpdated().getTime())
+            + "|"
+            + version.digest();
+
+    return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+  }
+
+  private static boolean matches(String ifNoneMatch, String etag) {
+    String opaque = etag.substring(2);
+
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.trim();
+
+      // weak comparison, W/ prefixes are ignored on both sides
+      if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(opaque)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean notModifiedSince(Version version, String ifModifiedSince) {
+    if (version.lastUpdated() == null) {
+      return false;
+    }
+
+    try {
+      Instant since =
+          ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+
+      // HTTP dates only carry seconds
+      return version.lastUpdated().getTime() / 1000 <= since.getEpochSecond();
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  private static String formatHttpDate(Date date) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(date.toInstant().atZone(ZoneOffset.UTC));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import java.io.IOException;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeoutException;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+
+// tells apart what DHIS2 answered from what never got an answer
+public class Dhis2Failures {
+  private Dhis2Failures() {}
+
+  // the HTTP status DHIS2 answered with, empty when the call failed before or without a response
+  public static OptionalInt status(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof RemoteDhis2ClientException remote) {
+        return OptionalInt.of(remote.getHttpStatusCode());
+      }
+    }
+
+    return OptionalInt.empty();
+  }
+
+  // a 4xx comes back the same however often the request is sent, apart from timeouts and
+  // rate limiting
+  public static boolean isRetryable(Throwable e) {
+    OptionalInt status = status(e);
+
+    if (status.isEmpty()) {
+      return true;
+    }
+
+    int code = status.getAsInt();
+
+    return code < 400 || code >= 500 || code == 408 || code == 429;
+  }
+
+  // DHIS2 did not answer in time or at all, or said it can't right now. A request it turned down
+  // or a failure on this side of the call says nothing about how DHIS2 is doing
+  public static boolean isUpstream(Throwable e) {
+    OptionalInt status = status(e);
+
+    if (status.isPresent()) {
+      int code = status.getAsInt();
+
+      return code >= 500 || code == 408 || code == 429;
+    }
+
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof IOException || cause instanceof TimeoutException) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
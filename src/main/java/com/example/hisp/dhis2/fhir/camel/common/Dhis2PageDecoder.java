@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class Dhis2PageDecoder {
+  private static final String PAGER = "pager";
+
+  private final ObjectMapper objectMapper;
+
+  public Pager readPager(byte[] page) throws IOException {
+    try (JsonParser parser = objectMapper.getFactory().createParser(page)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT
+          || !moveTo(parser, PAGER, JsonToken.START_OBJECT)) {
+        return null;
+      }
+
+      return objectMapper.readValue(parser, Pager.class);
+    }
+  }
+
+  public <T> Iterator<T> decode(byte[] page, String arrayName, Class<T> itemType)
+      throws IOException {
+    return decode(objectMapper.getFactory().createParser(page), arrayName, itemType);
+  }
+
+  // reads the items off the response as they arrive, the page is never held whole
+  public <T> Page<T> decode(InputStream page, String arrayName, Class<T> itemType)
+      throws IOException {
+    return decode(objectMapper.getFactory().createParser(page), arrayName, itemType);
+  }
+
+  private <T> Page<T> decode(JsonParser parser, String arrayName, Class<T> itemType)
+      throws IOException {
+    Page<T> page = new Page<>(parser, objectMapper.readerFor(itemType), arrayName);
+
+    try {
+      page.start();
+    } catch (IOException | RuntimeException e) {
+      parser.close();
+      throw e;
+    }
+
+    return page;
+  }
+
+  // skips over every other field of the current object without binding it
+  private static boolean moveTo(JsonParser parser, String fieldName, JsonToken expected)
+      throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+
+      if (fieldName.equals(name) && token == expected) {
+        return true;
+      }
+
+      parser.skipChildren();
+    }
+
+    return false;
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public record Pager(Integer page, Integer pageSize, Integer pageCount, Integer total) {
+    public int pageCount(int pageSize) {
+      if (pageCount != null) {
+        return pageCount;
+      }
+
+      return total == null ? 1 : (total + pageSize - 1) / pageSize;
+    }
+  }
+
+  // The items of one page, bound one at a time. DHIS2 sends the pager ahead of the items, so it
+  // is known from the start; one sent after them is picked up once the items are read. The parser
+  // is closed as soon as the last item is read, or right away when there are none.
+  public class Page<T> implements Iterator<T>, Closeable {
+    private final JsonParser parser;
+
+    private final ObjectReader reader;
+
+    private final String arrayName;
+
+    private Pager pager;
+
+    private JsonToken token;
+
+    Page(JsonParser parser, ObjectReader reader, String arrayName) {
+      this.parser = parser;
+      this.reader = reader;
+      this.arrayName = arrayName;
+    }
+
+    public Pager pager() {
+      return pager;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return token == JsonToken.START_OBJECT;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      try {
+        T item = reader.readValue(parser);
+        token = parser.nextToken();
+
+        if (!hasNext()) {
+          finish();
+        }
+
+        return item;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      parser.close();
+    }
+
+    private void start() throws IOException {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        close();
+        return;
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+
+        if (PAGER.equals(name) && value == JsonToken.START_OBJECT) {
+          pager = objectMapper.readValue(parser, Pager.class);
+        } else if (arrayName.equals(name) && value == JsonToken.START_ARRAY) {
+          token = parser.nextToken();
+
+          if (!hasNext()) {
+            finish();
+          }
+
+          return;
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+      close();
+    }
+
+    // only the pager can still follow the items
+    private void finish() throws IOException {
+      try {
+        if (pager == null && moveTo(parser, PAGER, JsonToken.START_OBJECT)) {
+          pager = objectMapper.readValue(parser, Pager.class);
+        }
+      } finally {
+        close();
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.resourceEndpoint;
+
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitCache;
+import com.example.hisp.dhis2.fhir.cache.ResourceCache;
+import com.example.hisp.dhis2.fhir.cache.TerminologyCache;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Header;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.api.model.v2_39_1.OptionSet;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class Dhis2Read {
+  private final ProducerTemplate producerTemplate;
+
+  private final ObjectMapper objectMapper;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final OrganisationUnitCache organisationUnitCache;
+
+  private final TerminologyCache terminologyCache;
+
+  private final ResourceCache resourceCache;
+
+  private final MainProperties properties;
+
+  private final StageMetrics stageMetrics;
+
+  public Organization organization(@Header("id") String id, Exchange exchange)
+      throws Exception {
+    return readOrganisationUnit(Organization.class, id, exchange);
+  }
+
+  public Location location(@Header("id") String id, Exchange exchange) throws Exception {
+    return readOrganisationUnit(Location.class, id, exchange);
+  }
+
+  // terminology is kept current by the background refresh, only an option set the cache does not
+  // hold, past its size limit or created since the last refresh, is read from DHIS2
+  public CodeSystem codeSystem(@Header("id") String id, Exchange exchange) throws Exception {
+    Optional<CodeSystem> cached = terminologyCache.getCodeSystem(id);
+    return cached.isPresent() ? cached.get() : readOptionSet(CodeSystem.class, id, exchange);
+  }
+
+  public ValueSet valueSet(@Header("id") String id, Exchange exchange) throws Exception {
+    Optional<ValueSet> cached = terminologyCache.getValueSet(id);
+    return cached.isPresent() ? cached.get() : readOptionSet(ValueSet.class, id, exchange);
+  }
+
+  public Patient patient(@Header("id") String id, Exchange exchange) throws Exception {
+    // anything else cannot be a tracked entity and must not end up in the query or the path
+    if (!Dhis2RouteBuilders.isUid(id)) {
+      return null;
+    }
+
+    String program = properties.getPatient().getProgram();
+
+    return resourceCache.get(
+        Patient.class,
+        id,
+        () -> {
+          Iterator<TrackedEntityInstance> versions =
+              fetchList(
+                  exchange,
+                  "trackedEntityInstances",
+                  Dhis2RouteBuilders.trackedEntityVersionQuery(program, id),
+                  TrackedEntityInstance.class);
+
+          return versions.hasNext()
+              ? Optional.ofNullable(versions.next().getLastUpdated())
+              : Optional.empty();
+        },
+        () -> {
+          TrackedEntityInstance trackedEntity =
+              fetchIfExists(
+                  exchange,
+                  "trackedEntityInstances/" + id,
+                  Dhis2RouteBuilders.trackedEntityQuery(program),
+                  TrackedEntityInstance.class);
+
+          return trackedEntity == null ? null : convert(Patient.class, exchange, trackedEntity);
+        });
+  }
+
+  private <R extends Resource> R readOptionSet(Class<R> type, String id, Exchange exchange)
+      throws Exception {
+    // anything else cannot be an option set and must not end up in the filter
+    if (!Dhis2RouteBuilders.isUid(id)) {
+      return null;
+    }
+
+    Iterator<OptionSet> optionSets =
+        fetchList(
+            exchange,
+            "optionSets",
+            Dhis2RouteBuilders.optionSetsQuery("id:eq:" + id),
+            OptionSet.class);
+
+    return optionSets.hasNext() ? convert(type, exchange, optionSets.next()) : null;
+  }
+
+  private <R extends Resource> R readOrganisationUnit(Class<R> type, String id, Exchange exchange)
+      throws Exception {
+    // anything else cannot be an org unit and must not end up in the filter or the path
+    if (!Dhis2RouteBuilders.isUid(id)) {
+      return null;
+    }
+
+    // the shared org unit cache answers without an upstream call for the units it holds
+    Optional<OrganisationUnit> cached = organisationUnitCache.getOrganisationUnit(id);
+
+    return resourceCache.get(
+        type,
+        id,
+        () -> {
+          Optional<OrganisationUnit> current = cached;
+
+          if (current.isEmpty()) {
+            Iterator<OrganisationUnit> versions =
+                fetchList(
+                    exchange,
+                    "organisationUnits",
+                    Dhis2RouteBuilders.organisationUnitVersionQuery(id),
+                    OrganisationUnit.class);
+
+            current = versions.hasNext() ? Optional.of(versions.next()) : Optional.empty();
+          }
+
+          // a unit without lastUpdated still exists, it is then only refreshed after the ttl
+          return current.map(
+              ou -> ou.getLastUpdated().map(Dhis2RouteBuilders::formatDate).orElse(""));
+        },
+        () -> {
+          OrganisationUnit organisationUnit =
+              cached.isPresent()
+                  ? cached.get()
+                  : fetchIfExists(
+                      exchange,
+                      "organisationUnits/" + id,
+                      Dhis2RouteBuilders.organisationUnitQuery(),
+                      OrganisationUnit.class);
+
+          return organisationUnit == null ? null : convert(type, exchange, organisationUnit);
+        });
+  }
+
+  private <T> T fetch(
+      Exchange exchange, String path, Map<String, Object> queryParams, Class<T> type)
+      throws Exception {
+    byte[] body = request(exchange, path, queryParams);
+
+    return stageMetrics.time(
+        StageMetrics.DECODE,
+        StageMetrics.route(exchange),
+        () -> objectMapper.readValue(body, type));
+  }
+
+  // deleted in DHIS2 between the version probe and this fetch, read as not found
+  private <T> T fetchIfExists(
+      Exchange exchange, String path, Map<String, Object> queryParams, Class<T> type)
+      throws Exception {
+    try {
+      return fetch(exchange, path, queryParams, type);
+    } catch (Exception e) {
+      if (Dhis2Failures.status(e).orElse(0) == 404) {
+        return null;
+      }
+
+      throw e;
+    }
+  }
+
+  private <T> Iterator<T> fetchList(
+      Exchange exchange, String path, Map<String, Object> queryParams, Class<T> type)
+      throws Exception {
+    byte[] body = request(exchange, path, queryParams);
+
+    return stageMetrics.time(
+        StageMetrics.DECODE,
+        StageMetrics.route(exchange),
+        () -> pageDecoder.decode(body, path, type));
+  }
+
+  private byte[] request(Exchange exchange, String path, Map<String, Object> queryParams)
+      throws IOException {
+    return stageMetrics.fetch(
+        StageMetrics.route(exchange),
+        () ->
+            producerTemplate.requestBodyAndHeader(
+                resourceEndpoint(path), null, QUERY_PARAMS, queryParams, InputStream.class));
+  }
+
+  private <R> R convert(Class<R> type, Exchange exchange, Object value) throws Exception {
+    return stageMetrics.time(
+        StageMetrics.CONVERT,
+        StageMetrics.route(exchange),
+        () -> exchange.getContext().getTypeConverter().mandatoryConvertTo(type, exchange, value));
+  }
+}
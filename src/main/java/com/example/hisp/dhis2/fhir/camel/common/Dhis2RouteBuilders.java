@@ -27,17 +27,35 @@
  */
 package com.example.hisp.dhis2.fhir.camel.common;
 
+import static org.apache.camel.builder.Builder.header;
+
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+import org.apache.camel.Exchange;
 import org.apache.camel.model.RouteDefinition;
+import org.hl7.fhir.r4.model.DateTimeType;
 
 public class Dhis2RouteBuilders {
+  public static final String QUERY_PARAMS = "CamelDhis2.queryParams";
+
+  private static final String OU_HIERARCHY_FIELDS = "id,level,parent[id],lastUpdated";
+
   private static final String OU_FIELDS =
       "id,code,name,shortName,translations,created,lastUpdated,description,openingDate,parent[id]";
 
   private static final String OS_FIELDS =
       "id,code,name,translations,created,lastUpdated,description,options[id,code,name,translations,created,lastUpdated,description]";
 
-  private static final String TE_FIELDS = "*,enrollments[*,events[*]]";
+  private static final String TE_FIELDS = PatientMapping.FIELDS;
 
   private static final String OU_ITEM_TYPE = "org.hisp.dhis.api.model.v2_39_1.OrganisationUnit";
 
@@ -46,46 +64,468 @@ public class Dhis2RouteBuilders {
   private static final String TE_ITEM_TYPE =
       "org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance";
 
-  public static RouteDefinition getOrganisationUnits(RouteDefinition routeDefinition) {
-    Map<String, String> queryParams =
-        Map.of(
-            "fields", OU_FIELDS,
-            "order", "level",
-            "filter", "level:le:2",
-            "paging", "true");
+  private static final Pattern UID_PATTERN = Pattern.compile("^[a-zA-Z][a-zA-Z0-9]{10}$");
+
+  private static final Map<String, String> PREFIX_OPERATORS =
+      Map.of(
+          "eq", "eq", "ne", "!eq", "gt", "gt", "lt", "lt", "ge", "ge", "le", "le", "sa", "gt", "eb",
+          "lt");
+
+  private static final DateTimeFormatter DATE_FORMATTER =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneOffset.UTC);
+
+  public static final String OU_ENDPOINT =
+      "dhis2://get/collection?path=organisationUnits&itemType=%s&client=#dhis2Client"
+          .formatted(OU_ITEM_TYPE);
+
+  public static final String OS_ENDPOINT =
+      "dhis2://get/collection?path=optionSets&itemType=%s&client=#dhis2Client"
+          .formatted(OS_ITEM_TYPE);
+
+  public static final String TE_ENDPOINT =
+      "dhis2://get/resource?path=trackedEntityInstances&client=#dhis2Client";
+
+  public static Map<String, Object> organisationUnitsQuery(String... filters) {
+    List<String> filter = new ArrayList<>(List.of("level:le:2"));
+    filter.addAll(List.of(filters));
+
+    return Map.of(
+        "fields", OU_FIELDS,
+        "order", "level",
+        "filter", filter,
+        "paging", "true");
+  }
+
+  // searches that say where in the tree to look replace the default of the top two levels
+  public static Map<String, Object> organisationUnitsQuery(SearchParameters search) {
+    Map<String, Object> baseQuery =
+        search.isHierarchySearch()
+            ? Map.of("filter", hierarchyFilters(search))
+            : organisationUnitsQuery();
+    Map<String, Object> queryParams = pagedQuery(OU_FIELDS, baseQuery, search);
+    queryParams.put("order", "level");
+
+    return queryParams;
+  }
+
+  // every level of the tree, for copies kept outside DHIS2
+  public static Map<String, Object> allOrganisationUnitsQuery(SearchParameters search) {
+    Map<String, Object> queryParams = pagedQuery(OU_FIELDS, Map.of("filter", List.of()), search);
+    queryParams.put("order", "id");
+
+    return queryParams;
+  }
+
+  // Metadata changed at or after since, oldest first. Paging resumes from the last record seen
+  // rather than by page number, which the changes themselves would shift while it runs.
+  public static Map<String, Object> metadataChangesQuery(
+      Map<String, Object> queryParams, Date since, int page, int pageSize) {
+    Map<String, Object> changesQueryParams = new HashMap<>(queryParams);
+    @SuppressWarnings("unchecked")
+    List<String> filter = new ArrayList<>((List<String>) queryParams.get("filter"));
+
+    if (since != null) {
+      filter.add("lastUpdated:ge:" + formatDate(since));
+    }
+
+    changesQueryParams.put("filter", filter);
+    changesQueryParams.put("order", "lastUpdated:asc,id:asc");
+    changesQueryParams.put("paging", "true");
+    changesQueryParams.put("page", String.valueOf(page));
+    changesQueryParams.put("pageSize", String.valueOf(pageSize));
+
+    return changesQueryParams;
+  }
+
+  // the same for tracked entities, DHIS2 reads the start date to the second
+  public static Map<String, Object> trackedEntityChangesQuery(
+      Map<String, Object> queryParams, Date since, int page, int pageSize) {
+    Map<String, Object> changesQueryParams = new HashMap<>(queryParams);
+
+    if (since != null) {
+      changesQueryParams.put("lastUpdatedStartDate", formatDate(since));
+    }
+
+    changesQueryParams.put("order", "lastUpdated:asc,trackedEntityInstance:asc");
+    changesQueryParams.put("skipPaging", "false");
+    changesQueryParams.put("page", String.valueOf(page));
+    changesQueryParams.put("pageSize", String.valueOf(pageSize));
+
+    return changesQueryParams;
+  }
+
+  // a page of units picked from the hierarchy index, in the order the ids are given
+  public static Map<String, Object> organisationUnitsQuery(List<String> ids) {
+    return Map.of(
+        "fields", OU_FIELDS, "filter", "id:in:[" + String.join(",", ids) + "]", "paging", "false");
+  }
+
+  // the whole tree, or the units changed since, cut down to what the hierarchy index keeps
+  public static Map<String, Object> organisationUnitHierarchyQuery(String... filters) {
+    return Map.of("fields", OU_HIERARCHY_FIELDS, "filter", List.of(filters), "paging", "false");
+  }
+
+  // the level search parameter as a test against an org unit level
+  public static IntPredicate levels(SearchParameters search) {
+    IntPredicate levels = level -> true;
+
+    for (String value : search.get(SearchParameters.LEVEL)) {
+      String[] prefixed = splitPrefix(value);
+      int bound = Integer.parseInt(prefixed[1]);
+
+      IntPredicate test =
+          switch (prefixed[0]) {
+            case "ne" -> level -> level != bound;
+            case "gt", "sa" -> level -> level > bound;
+            case "lt", "eb" -> level -> level < bound;
+            case "ge" -> level -> level >= bound;
+            case "le" -> level -> level <= bound;
+            default -> level -> level == bound;
+          };
+
+      levels = levels.and(test);
+    }
+
+    return levels;
+  }
+
+  public static Map<String, Object> organisationUnitQuery() {
+    return Map.of("fields", OU_FIELDS);
+  }
+
+  public static Map<String, Object> organisationUnitVersionQuery(String id) {
+    return Map.of("fields", "id,lastUpdated", "filter", "id:eq:" + id, "paging", "false");
+  }
+
+  public static Map<String, Object> optionSetsQuery(String... filters) {
+    return optionSetsQuery(OS_FIELDS, filters);
+  }
+
+  public static Map<String, Object> optionSetVersionsQuery() {
+    return optionSetsQuery("id,lastUpdated", new String[0]);
+  }
+
+  public static Map<String, Object> optionSetsQuery(SearchParameters search) {
+    return pagedQuery(OS_FIELDS, optionSetsQuery(), search);
+  }
+
+  private static Map<String, Object> optionSetsQuery(String fields, String[] filters) {
+    return Map.of("fields", fields, "paging", "true", "filter", List.of(filters));
+  }
+
+  // pages are fetched concurrently and each one is a separate query, without a total order the
+  // same tracked entity could land on two pages and another on none. Creation order keeps new ones
+  // at the end instead of shifting the pages already being read
+  public static Map<String, Object> trackedEntitiesQuery(String program) {
+    return Map.of(
+        "fields", TE_FIELDS,
+        "program", program,
+        "ouMode", "ACCESSIBLE",
+        "order", "created:asc,trackedEntityInstance:asc");
+  }
+
+  public static Map<String, Object> trackedEntityQuery(String program) {
+    return Map.of("fields", TE_FIELDS, "program", program);
+  }
+
+  public static Map<String, Object> trackedEntityVersionQuery(String program, String id) {
+    return Map.of(
+        "fields", "trackedEntityInstance,lastUpdated",
+        "program", program,
+        "ouMode", "ACCESSIBLE",
+        "trackedEntityInstance", id,
+        "skipPaging", "true");
+  }
+
+  public static Map<String, Object> trackedEntitiesQuery(
+      Map<String, Object> queryParams, SearchParameters search, PatientMapping mapping) {
+    Map<String, Object> searchQueryParams = new HashMap<>(queryParams);
+    List<String> filter = new ArrayList<>();
+    List<String> ids = new ArrayList<>(search.getIds());
+
+    for (String identifier : search.get(SearchParameters.IDENTIFIER)) {
+      String[] token = splitToken(identifier);
+
+      if (token[0] != null && token[0].endsWith("/trackedEntityInstances")) {
+        ids.add(token[1]);
+      } else if (mapping.getNationalId() != null) {
+        filter.add(mapping.getNationalId() + ":eq:" + token[1]);
+      } else {
+        throw new IllegalArgumentException("No national id is mapped: " + identifier);
+      }
+    }
+
+    for (String name : search.get(SearchParameters.NAME)) {
+      if (mapping.getFamilyName() == null) {
+        throw new IllegalArgumentException("No family name is mapped: " + name);
+      }
+
+      filter.add(mapping.getFamilyName() + ":like:" + name);
+    }
+
+    // the value covers its whole precision like on the other routes, DHIS2 takes both dates as
+    // inclusive
+    for (String lastUpdated : search.get(SearchParameters.LAST_UPDATED)) {
+      long[] range = range(lastUpdated);
+      long from = range[0];
+      long to = range[1];
+
+      switch (splitPrefix(lastUpdated)[0]) {
+        case "gt", "sa" -> searchQueryParams.put("lastUpdatedStartDate", formatDate(new Date(to)));
+        case "ge" -> searchQueryParams.put("lastUpdatedStartDate", formatDate(new Date(from)));
+        case "lt", "eb" ->
+            searchQueryParams.put("lastUpdatedEndDate", formatDate(new Date(from - 1)));
+        case "le" -> searchQueryParams.put("lastUpdatedEndDate", formatDate(new Date(to - 1)));
+        case "ne" -> throw new IllegalArgumentException(lastUpdated);
+        default -> {
+          searchQueryParams.put("lastUpdatedStartDate", formatDate(new Date(from)));
+          searchQueryParams.put("lastUpdatedEndDate", formatDate(new Date(to - 1)));
+        }
+      }
+    }
 
+    if (!ids.isEmpty()) {
+      searchQueryParams.put("trackedEntityInstance", String.join(";", ids));
+    }
+
+    if (!filter.isEmpty()) {
+      searchQueryParams.put("filter", filter);
+    }
+
+    searchQueryParams.put("page", String.valueOf(search.getPage()));
+    searchQueryParams.put("pageSize", String.valueOf(search.getCount()));
+    searchQueryParams.put("totalPages", "true");
+    searchQueryParams.put("skipPaging", "false");
+
+    return searchQueryParams;
+  }
+
+  // DHIS2 splits tracked entity attribute filters on colons, values holding one cannot be put
+  // to it at all
+  // a parameter the mapping has no attribute for cannot be searched, leaving it out would answer
+  // with patients that do not match it
+  public static String trackedEntitiesProblem(SearchParameters search, PatientMapping mapping) {
+    String problem = search.problem();
+
+    if (problem != null) {
+      return problem;
+    }
+
+    for (String identifier : search.get(SearchParameters.IDENTIFIER)) {
+      String[] token = splitToken(identifier);
+      boolean id = token[0] != null && token[0].endsWith("/trackedEntityInstances");
+
+      if (!id && mapping.getNationalId() == null) {
+        return "Unsupported identifier, no national id is mapped: " + identifier;
+      }
+
+      if (id ? !isUid(token[1]) : token[1].contains(":")) {
+        return "Unsupported identifier: " + identifier;
+      }
+    }
+
+    for (String name : search.get(SearchParameters.NAME)) {
+      if (mapping.getFamilyName() == null) {
+        return "Unsupported name, no family name is mapped: " + name;
+      }
+
+      if (name.contains(":")) {
+        return "Unsupported name: " + name;
+      }
+    }
+
+    return null;
+  }
+
+  // a malformed search is the client's mistake, answered with a 400 before DHIS2 is asked
+  public static RouteDefinition validateSearch(
+      RouteDefinition routeDefinition, Function<SearchParameters, String> problem) {
     routeDefinition
-        .setHeader("CamelDhis2.queryParams", () -> queryParams)
-        .to(
-            "dhis2://get/collection?path=organisationUnits&itemType=org.hisp.dhis.api.model.v2_39_1.OrganisationUnit&client=#dhis2Client"
-                .formatted(OU_ITEM_TYPE));
+        .process(
+            exchange -> {
+              String message = problem.apply(SearchParameters.from(exchange));
+
+              if (message != null) {
+                OperationOutcomes.error(exchange, 400, message);
+              }
+            })
+        .choice()
+        .when(header(Exchange.HTTP_RESPONSE_CODE).isEqualTo(400))
+        .marshal()
+        .fhirJson("R4")
+        .stop()
+        .end();
 
     return routeDefinition;
   }
 
-  public static RouteDefinition getOptionSets(RouteDefinition routeDefinition) {
-    Map<String, String> queryParams =
-        Map.of("fields", OS_FIELDS, "paging", "true", "filter", "id:eq:P0RAq93jsi9");
+  public static RouteDefinition validateSearch(RouteDefinition routeDefinition) {
+    return validateSearch(routeDefinition, SearchParameters::problem);
+  }
 
+  public static boolean isUid(String id) {
+    return UID_PATTERN.matcher(id).matches();
+  }
+
+  public static String resourceEndpoint(String path) {
+    return "dhis2://get/resource?path=%s&client=#dhis2Client".formatted(path);
+  }
+
+  public static RouteDefinition checkNotModified(RouteDefinition routeDefinition, String method) {
+    // answers 304 from a cheap version probe before anything is fetched or converted
     routeDefinition
-        .setHeader("CamelDhis2.queryParams", () -> queryParams)
-        .to(
-            "dhis2://get/collection?path=optionSets&itemType=%s&client=#dhis2Client"
-                .formatted(OS_ITEM_TYPE));
+        .to("bean:dhis2Versions?method=" + method)
+        .process(ConditionalRequests::evaluate)
+        .choice()
+        .when(ConditionalRequests::isNotModified)
+        .stop()
+        .end();
+
+    return routeDefinition;
+  }
+
+  public static RouteDefinition getOrganisationUnits(RouteDefinition routeDefinition) {
+    // served from the shared cache unless search parameters are given
+    routeDefinition.to("bean:dhis2Search?method=organisationUnits");
+
+    return routeDefinition;
+  }
+
+  public static RouteDefinition getCodeSystems(RouteDefinition routeDefinition) {
+    routeDefinition.to("bean:dhis2Search?method=codeSystems");
+
+    return routeDefinition;
+  }
+
+  public static RouteDefinition getValueSets(RouteDefinition routeDefinition) {
+    routeDefinition.to("bean:dhis2Search?method=valueSets");
 
     return routeDefinition;
   }
 
   public static RouteDefinition getTrackedEntities(
       RouteDefinition routeDefinition, String program) {
-    Map<String, String> queryParams =
-        Map.of(
-            "fields", TE_FIELDS, "program", program, "ouMode", "ACCESSIBLE", "skipPaging", "false");
+    Map<String, Object> queryParams = trackedEntitiesQuery(program);
 
+    // without search parameters all pages are fetched concurrently and handed over to the split
+    // as they arrive
     routeDefinition
-        .setHeader("CamelDhis2.queryParams", () -> queryParams)
-        .to("dhis2://get/resource?path=trackedEntityInstances&client=#dhis2Client");
+        .setHeader(QUERY_PARAMS, () -> queryParams)
+        .to("bean:dhis2Search?method=trackedEntities");
 
     return routeDefinition;
   }
+
+  // DHIS2 paths are /root/.../unit, a unit is below another when that one is on its path
+  private static List<String> hierarchyFilters(SearchParameters search) {
+    List<String> filter = new ArrayList<>();
+    List<String> partOf = search.getReferenceIds(SearchParameters.PART_OF);
+
+    if (!partOf.isEmpty()) {
+      filter.add("parent.id:in:[" + String.join(",", partOf) + "]");
+    }
+
+    for (String id : search.getReferenceIds(SearchParameters.PART_OF_BELOW)) {
+      filter.add("path:like:/" + id + "/");
+    }
+
+    for (String level : search.get(SearchParameters.LEVEL)) {
+      String[] prefixed = splitPrefix(level);
+      filter.add("level:" + PREFIX_OPERATORS.get(prefixed[0]) + ":" + prefixed[1]);
+    }
+
+    return filter;
+  }
+
+  public static String formatDate(Date date) {
+    return DATE_FORMATTER.format(date.toInstant());
+  }
+
+  private static Map<String, Object> pagedQuery(
+      String fields, Map<String, Object> baseQuery, SearchParameters search) {
+    @SuppressWarnings("unchecked")
+    List<String> filter = new ArrayList<>((List<String>) baseQuery.get("filter"));
+    filter.addAll(metadataFilters(search));
+
+    Map<String, Object> queryParams = new HashMap<>();
+    queryParams.put("fields", fields);
+    queryParams.put("filter", filter);
+    queryParams.put("paging", "true");
+    queryParams.put("page", String.valueOf(search.getPage()));
+    queryParams.put("pageSize", String.valueOf(search.getCount()));
+
+    return queryParams;
+  }
+
+  private static List<String> metadataFilters(SearchParameters search) {
+    List<String> filter = new ArrayList<>();
+    List<String> ids = search.getIds();
+
+    if (!ids.isEmpty()) {
+      filter.add("id:in:[" + String.join(",", ids) + "]");
+    }
+
+    for (String identifier : search.get(SearchParameters.IDENTIFIER)) {
+      String[] token = splitToken(identifier);
+      boolean code = token[0] != null && token[0].endsWith("/code");
+
+      if (!code && isUid(token[1])) {
+        filter.add("id:eq:" + token[1]);
+      } else {
+        filter.add("code:eq:" + token[1]);
+      }
+    }
+
+    for (String name : search.get(SearchParameters.NAME)) {
+      filter.add("name:$ilike:" + name);
+    }
+
+    // the value covers its whole precision, in UTC as formatDate writes it
+    for (String lastUpdated : search.get(SearchParameters.LAST_UPDATED)) {
+      long[] range = range(lastUpdated);
+      String from = formatDate(new Date(range[0]));
+      String to = formatDate(new Date(range[1]));
+
+      switch (splitPrefix(lastUpdated)[0]) {
+        case "gt", "sa" -> filter.add("lastUpdated:ge:" + to);
+        case "ge" -> filter.add("lastUpdated:ge:" + from);
+        case "lt", "eb" -> filter.add("lastUpdated:lt:" + from);
+        case "le" -> filter.add("lastUpdated:lt:" + to);
+        case "ne" -> throw new IllegalArgumentException(lastUpdated);
+        default -> {
+          filter.add("lastUpdated:ge:" + from);
+          filter.add("lastUpdated:lt:" + to);
+        }
+      }
+    }
+
+    return filter;
+  }
+
+  // the first instant a _lastUpdated value covers and the first one after it, eq2023-01 is all
+  // of January
+  private static long[] range(String value) {
+    DateTimeType date = SearchParameters.getDate(value);
+
+    return new long[] {
+      date.getValue().getTime(), date.getPrecision().add(date.getValue(), 1).getTime()
+    };
+  }
+
+  // system|value, the system is optional
+  public static String[] splitToken(String token) {
+    int idx = token.indexOf('|');
+    return idx < 0
+        ? new String[] {null, token}
+        : new String[] {token.substring(0, idx), token.substring(idx + 1)};
+  }
+
+  // ge2023-01-01 -> [ge, 2023-01-01], no prefix means eq
+  public static String[] splitPrefix(String value) {
+    if (value.length() > 2 && PREFIX_OPERATORS.containsKey(value.substring(0, 2))) {
+      return new String[] {value.substring(0, 2), value.substring(2)};
+    }
+
+    return new String[] {"eq", value};
+  }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.resourceEndpoint;
+
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitCache;
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitHierarchy;
+import com.example.hisp.dhis2.fhir.cache.TerminologyCache;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.api.model.v2_39_1.OptionSet;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class Dhis2Search {
+  public static final String PAGER_PROPERTY = "Dhis2Fhir.pager";
+
+  private final ProducerTemplate producerTemplate;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final OrganisationUnitCache organisationUnitCache;
+
+  private final OrganisationUnitHierarchy organisationUnitHierarchy;
+
+  private final TerminologyCache terminologyCache;
+
+  private final TrackedEntityPageFetcher trackedEntityPageFetcher;
+
+  private final PatientMapping patientMapping;
+
+  private final StageMetrics stageMetrics;
+
+  public List<OrganisationUnit> organisationUnits(Exchange exchange) throws IOException {
+    SearchParameters search = SearchParameters.from(exchange);
+
+    if (!search.isSearch()) {
+      return organisationUnitCache.getOrganisationUnits();
+    }
+
+    if (search.isHierarchyOnly()) {
+      return organisationUnitsFromHierarchy(exchange, search);
+    }
+
+    return versioned(
+        exchange,
+        fetchPage(
+            exchange,
+            "organisationUnits",
+            Dhis2RouteBuilders.organisationUnitsQuery(search),
+            OrganisationUnit.class),
+        ou -> ou.getId().orElse(null),
+        ou -> ou.getLastUpdated().orElse(null));
+  }
+
+  public List<CodeSystem> codeSystems(Exchange exchange) throws Exception {
+    SearchParameters search = SearchParameters.from(exchange);
+
+    if (!search.isSearch()) {
+      return terminologyCache.getCodeSystems();
+    }
+
+    return convert(exchange, searchOptionSets(exchange, search), CodeSystem.class);
+  }
+
+  public List<ValueSet> valueSets(Exchange exchange) throws Exception {
+    SearchParameters search = SearchParameters.from(exchange);
+
+    if (!search.isSearch()) {
+      return terminologyCache.getValueSets();
+    }
+
+    return convert(exchange, searchOptionSets(exchange, search), ValueSet.class);
+  }
+
+  public Iterator<TrackedEntityInstance> trackedEntities(Exchange exchange) throws IOException {
+    SearchParameters search = SearchParameters.from(exchange);
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> queryParams = exchange.getIn().getHeader(QUERY_PARAMS, Map.class);
+
+    if (!search.isSearch()) {
+      return trackedEntityPageFetcher.fetch(queryParams, StageMetrics.route(exchange));
+    }
+
+    return versioned(
+            exchange,
+            fetchPage(
+                exchange,
+                "trackedEntityInstances",
+                Dhis2RouteBuilders.trackedEntitiesQuery(queryParams, search, patientMapping),
+                TrackedEntityInstance.class),
+            TrackedEntityInstance::getTrackedEntityInstance,
+            te -> Dhis2Versions.parseLastUpdated(te.getLastUpdated()))
+        .iterator();
+  }
+
+  // the hierarchy index picks and pages the units, only those on the page are fetched and those
+  // the org unit cache holds not even that
+  private List<OrganisationUnit> organisationUnitsFromHierarchy(
+      Exchange exchange, SearchParameters search) throws IOException {
+    List<OrganisationUnitHierarchy.Node> nodes = organisationUnitHierarchy.select(search);
+    int count = search.getCount();
+    int from = Math.min(nodes.size(), (search.getPage() - 1) * count);
+    List<String> ids = new ArrayList<>();
+
+    for (OrganisationUnitHierarchy.Node node :
+        nodes.subList(from, Math.min(nodes.size(), from + count))) {
+      ids.add(node.id());
+    }
+
+    Map<String, OrganisationUnit> byId =
+        new HashMap<>(organisationUnitCache.getOrganisationUnits(ids));
+    List<String> missing = new ArrayList<>();
+
+    for (String id : ids) {
+      if (!byId.containsKey(id)) {
+        missing.add(id);
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      for (OrganisationUnit organisationUnit :
+          fetchPage(
+              exchange,
+              "organisationUnits",
+              Dhis2RouteBuilders.organisationUnitsQuery(missing),
+              OrganisationUnit.class)) {
+        byId.put(organisationUnit.getId().get(), organisationUnit);
+      }
+    }
+
+    exchange.setProperty(
+        PAGER_PROPERTY,
+        new Dhis2PageDecoder.Pager(
+            search.getPage(),
+            count,
+            Math.max(1, (nodes.size() + count - 1) / count),
+            nodes.size()));
+
+    List<OrganisationUnit> organisationUnits = new ArrayList<>(ids.size());
+
+    // a unit deleted since the index was refreshed is left out
+    for (String id : ids) {
+      if (byId.containsKey(id)) {
+        organisationUnits.add(byId.get(id));
+      }
+    }
+
+    return organisationUnits;
+  }
+
+  private List<OptionSet> searchOptionSets(Exchange exchange, SearchParameters search)
+      throws IOException {
+    return versioned(
+        exchange,
+        fetchPage(
+            exchange, "optionSets", Dhis2RouteBuilders.optionSetsQuery(search), OptionSet.class),
+        optionSet -> optionSet.getId().orElse(null),
+        optionSet -> optionSet.getLastUpdated().orElse(null));
+  }
+
+  // the probe ran before the page was fetched, the ETag and Bundle id are taken from the page so
+  // they describe the data that is sent even when it changed in between
+  private <T> List<T> versioned(
+      Exchange exchange, List<T> items, Function<T, String> id, Function<T, Date> lastUpdated) {
+    Dhis2PageDecoder.Pager pager =
+        exchange.getProperty(PAGER_PROPERTY, Dhis2PageDecoder.Pager.class);
+
+    ConditionalRequests.describe(
+        exchange,
+        ConditionalRequests.pageVersion(
+            pager == null ? null : pager.total(), items, id, lastUpdated));
+
+    return items;
+  }
+
+  // a single DHIS2 page, its pager is kept on the exchange for the Bundle links. The items are
+  // bound as the response arrives, so decoding counts towards the fetch time here
+  private <T> List<T> fetchPage(
+      Exchange exchange, String path, Map<String, Object> queryParams, Class<T> itemType)
+      throws IOException {
+    return stageMetrics.fetch(
+        StageMetrics.route(exchange),
+        () ->
+            producerTemplate.requestBodyAndHeader(
+                resourceEndpoint(path), null, QUERY_PARAMS, queryParams, InputStream.class),
+        inputStream -> {
+          try (Dhis2PageDecoder.Page<T> page =
+              pageDecoder.decode(inputStream, path, itemType)) {
+            List<T> items = new ArrayList<>();
+            page.forEachRemaining(items::add);
+            exchange.setProperty(PAGER_PROPERTY, page.pager());
+
+            return items;
+          }
+        });
+  }
+
+  private <T> List<T> convert(Exchange exchange, List<OptionSet> optionSets, Class<T> type)
+      throws Exception {
+    return stageMetrics.time(
+        StageMetrics.CONVERT,
+        StageMetrics.route(exchange),
+        () -> {
+          List<T> resources = new ArrayList<>(optionSets.size());
+
+          for (OptionSet optionSet : optionSets) {
+            resources.add(
+                exchange
+                    .getContext()
+                    .getTypeConverter()
+                    .mandatoryConvertTo(type, exchange, optionSet));
+          }
+
+          return resources;
+        });
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.resourceEndpoint;
+
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitCache;
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitHierarchy;
+import com.example.hisp.dhis2.fhir.cache.TerminologyCache;
+import com.example.hisp.dhis2.fhir.camel.common.ConditionalRequests.Version;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class Dhis2Versions {
+  private final ProducerTemplate producerTemplate;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final OrganisationUnitCache organisationUnitCache;
+
+  private final OrganisationUnitHierarchy organisationUnitHierarchy;
+
+  private final TerminologyCache terminologyCache;
+
+  private final MainProperties properties;
+
+  private final PatientMapping patientMapping;
+
+  private final SingleFlight singleFlight;
+
+  private final StageMetrics stageMetrics;
+
+  public void organisationUnits(Exchange exchange) throws IOException {
+    SearchParameters search = SearchParameters.from(exchange);
+    Version version;
+
+    if (search.isHierarchyOnly()) {
+      List<OrganisationUnitHierarchy.Node> nodes = organisationUnitHierarchy.select(search);
+      Date lastUpdated = null;
+
+      for (OrganisationUnitHierarchy.Node node : nodes) {
+        lastUpdated = newest(lastUpdated, node.lastUpdated());
+      }
+
+      version = new Version(nodes.size(), lastUpdated);
+    } else if (search.isSearch()) {
+      version =
+          probe(
+              exchange,
+              "organisationUnits",
+              Dhis2RouteBuilders.organisationUnitsQuery(search),
+              true);
+    } else {
+      List<OrganisationUnit> organisationUnits = organisationUnitCache.getOrganisationUnits();
+      Date lastUpdated = null;
+
+      for (OrganisationUnit organisationUnit : organisationUnits) {
+        lastUpdated = newest(lastUpdated, organisationUnit.getLastUpdated().orElse(null));
+      }
+
+      version = new Version(organisationUnits.size(), lastUpdated);
+    }
+
+    exchange.setProperty(ConditionalRequests.VERSION_PROPERTY, version);
+  }
+
+  public void codeSystems(Exchange exchange) throws IOException {
+    optionSets(exchange, terminologyCache.getCodeSystems());
+  }
+
+  public void valueSets(Exchange exchange) throws IOException {
+    optionSets(exchange, terminologyCache.getValueSets());
+  }
+
+  public void trackedEntities(Exchange exchange) throws IOException {
+    SearchParameters search = SearchParameters.from(exchange);
+    Map<String, Object> queryParams =
+        Dhis2RouteBuilders.trackedEntitiesQuery(
+            Dhis2RouteBuilders.trackedEntitiesQuery(properties.getPatient().getProgram()),
+            search,
+            patientMapping);
+
+    exchange.setProperty(
+        ConditionalRequests.VERSION_PROPERTY,
+        probe(exchange, "trackedEntityInstances", queryParams, search.isSearch()));
+  }
+
+  private void optionSets(Exchange exchange, List<? extends Resource> cached) throws IOException {
+    SearchParameters search = SearchParameters.from(exchange);
+    Version version;
+
+    if (search.isSearch()) {
+      version = probe(exchange, "optionSets", Dhis2RouteBuilders.optionSetsQuery(search), true);
+    } else {
+      Date lastUpdated = null;
+
+      for (Resource resource : cached) {
+        lastUpdated = newest(lastUpdated, resource.getMeta().getLastUpdated());
+      }
+
+      version = new Version(cached.size(), lastUpdated);
+    }
+
+    exchange.setProperty(ConditionalRequests.VERSION_PROPERTY, version);
+  }
+
+  // concurrent identical probes share one upstream call
+  private Version probe(
+      Exchange exchange, String path, Map<String, Object> query, boolean singlePage)
+      throws IOException {
+    String route = StageMetrics.route(exchange);
+
+    try {
+      return singleFlight.execute(
+          path + "?" + new TreeMap<>(query),
+          () -> singlePage ? fetchPage(route, path, query) : fetch(route, path, query));
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  // the same page as the response with only the ids and lastUpdated of its items, versioned the way
+  // Dhis2Search versions the page it fetches so that an unchanged page gets the same ETag
+  private Version fetchPage(String route, String path, Map<String, Object> query)
+      throws IOException {
+    Map<String, Object> queryParams = new HashMap<>(query);
+    queryParams.put(
+        "fields",
+        "trackedEntityInstances".equals(path)
+            ? "trackedEntityInstance,lastUpdated"
+            : "id,lastUpdated");
+
+    return stageMetrics.fetch(
+        route,
+        () ->
+            producerTemplate.requestBodyAndHeader(
+                resourceEndpoint(path), null, QUERY_PARAMS, queryParams, InputStream.class),
+        inputStream -> {
+          try (Dhis2PageDecoder.Page<Stamp> page =
+              pageDecoder.decode(inputStream, path, Stamp.class)) {
+            List<Stamp> stamps = new ArrayList<>();
+            page.forEachRemaining(stamps::add);
+            Dhis2PageDecoder.Pager pager = page.pager();
+
+            return ConditionalRequests.pageVersion(
+                pager == null ? null : pager.total(),
+                stamps,
+                Stamp::key,
+                stamp -> parseLastUpdated(stamp.lastUpdated()));
+          }
+        });
+  }
+
+  // the same query as the response, cut down to the total and the single newest lastUpdated
+  private Version fetch(String route, String path, Map<String, Object> query)
+      throws IOException {
+    Map<String, Object> queryParams = new HashMap<>(query);
+    queryParams.put("fields", "lastUpdated");
+    queryParams.put("order", "lastUpdated:desc");
+    queryParams.put("page", "1");
+    queryParams.put("pageSize", "1");
+
+    if (queryParams.containsKey("skipPaging")) {
+      queryParams.put("skipPaging", "false");
+      queryParams.put("totalPages", "true");
+    } else {
+      queryParams.put("paging", "true");
+    }
+
+    byte[] page =
+        stageMetrics.fetch(
+            route,
+            () ->
+                producerTemplate.requestBodyAndHeader(
+                    resourceEndpoint(path), null, QUERY_PARAMS, queryParams, InputStream.class));
+
+    Dhis2PageDecoder.Pager pager = pageDecoder.readPager(page);
+    Iterator<Stamp> stamps = pageDecoder.decode(page, path, Stamp.class);
+    Date lastUpdated = null;
+
+    if (stamps.hasNext()) {
+      lastUpdated = parseLastUpdated(stamps.next().lastUpdated());
+    }
+
+    return new Version(pager == null || pager.total() == null ? 0 : pager.total(), lastUpdated);
+  }
+
+  // DHIS2 timestamps carry no zone, read as UTC like the converters do
+  static Date parseLastUpdated(String value) {
+    return value == null ? null : Date.from(LocalDateTime.parse(value).toInstant(ZoneOffset.UTC));
+  }
+
+  private static Date newest(Date current, Date candidate) {
+    return candidate != null && (current == null || candidate.after(current))
+        ? candidate
+        : current;
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Stamp(String id, String trackedEntityInstance, String lastUpdated) {
+    String key() {
+      return id != null ? id : trackedEntityInstance;
+    }
+  }
+}
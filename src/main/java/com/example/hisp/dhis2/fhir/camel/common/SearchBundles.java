@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.Bundle.BundleLinkComponent;
+
+public class SearchBundles {
+  public static final String FHIR_MEDIA_TYPE = "application/fhir+json";
+
+  public static final String FHIR_JSON = FHIR_MEDIA_TYPE + ";charset=UTF-8";
+
+  public static void complete(Exchange exchange) throws IOException {
+    Object body = exchange.getMessage().getBody();
+
+    // the split never aggregates anything when DHIS2 returned no items
+    @SuppressWarnings("unchecked")
+    List<byte[]> fragments = body instanceof List ? (List<byte[]>) body : List.of();
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    BundleStreamWriter writer = new BundleStreamWriter(outputStream);
+    writer.start(ConditionalRequests.bundleId(exchange), ConditionalRequests.lastUpdated(exchange));
+
+    int count = 0;
+
+    // an entry that converted to nothing leaves its slot empty
+    for (byte[] fragment : fragments) {
+      if (fragment != null) {
+        writer.add(fragment);
+        count++;
+      }
+    }
+
+    writer.finish(getTotal(exchange, count), getLinks(exchange));
+
+    exchange.getMessage().setHeader(Exchange.CONTENT_TYPE, FHIR_JSON);
+    exchange.getMessage().setBody(outputStream.toByteArray());
+  }
+
+  public static int getTotal(Exchange exchange, int count) {
+    Dhis2PageDecoder.Pager pager =
+        exchange.getProperty(Dhis2Search.PAGER_PROPERTY, Dhis2PageDecoder.Pager.class);
+
+    return pager == null || pager.total() == null ? count : pager.total();
+  }
+
+  public static List<BundleLinkComponent> getLinks(Exchange exchange) {
+    List<BundleLinkComponent> links = new ArrayList<>();
+    Dhis2PageDecoder.Pager pager =
+        exchange.getProperty(Dhis2Search.PAGER_PROPERTY, Dhis2PageDecoder.Pager.class);
+
+    if (pager == null) {
+      return links;
+    }
+
+    SearchParameters search = SearchParameters.from(exchange);
+    String url = exchange.getIn().getHeader(Exchange.HTTP_URL, String.class);
+    int page = search.getPage();
+    int pageCount = pager.pageCount(search.getCount());
+
+    links.add(link("self", url, search, page));
+
+    if (page < pageCount) {
+      links.add(link("next", url, search, page + 1));
+    }
+
+    if (page > 1) {
+      links.add(link("previous", url, search, Math.max(1, Math.min(page - 1, pageCount))));
+    }
+
+    return links;
+  }
+
+  private static BundleLinkComponent link(
+      String relation, String url, SearchParameters search, int page) {
+    return new BundleLinkComponent()
+        .setRelation(relation)
+        .setUrl(url + "?" + search.toQueryString(page));
+  }
+}
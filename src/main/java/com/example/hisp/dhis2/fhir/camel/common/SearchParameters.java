@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.DateTimeType;
+
+public class SearchParameters {
+  public static final String COUNT = "_count";
+
+  public static final String PAGE = "_page";
+
+  public static final String ID = "_id";
+
+  public static final String IDENTIFIER = "identifier";
+
+  public static final String NAME = "name";
+
+  public static final String LAST_UPDATED = "_lastUpdated";
+
+  // Location and Organization, the units directly below the referenced one
+  public static final String PART_OF = "partof";
+
+  // the whole subtree of the referenced unit
+  public static final String PART_OF_BELOW = "partof:below";
+
+  // the DHIS2 org unit level, 1 is the root, with the same prefixes as _lastUpdated
+  public static final String LEVEL = "level";
+
+  private static final Set<String> HIERARCHY = Set.of(PART_OF, PART_OF_BELOW, LEVEL);
+
+  private static final Set<String> FILTERS = Set.of(ID, IDENTIFIER, NAME, LAST_UPDATED);
+
+  private static final Set<String> SUPPORTED =
+      Set.of(COUNT, PAGE, ID, IDENTIFIER, NAME, LAST_UPDATED, PART_OF, PART_OF_BELOW, LEVEL);
+
+  private static final int MAX_COUNT = 1000;
+
+  private static final int DEFAULT_COUNT = 50;
+
+  private final Map<String, List<String>> parameters;
+
+  private SearchParameters(Map<String, List<String>> parameters) {
+    this.parameters = parameters;
+  }
+
+  public static SearchParameters from(Exchange exchange) {
+    return parse(exchange.getIn().getHeader(Exchange.HTTP_QUERY, String.class));
+  }
+
+  public static SearchParameters parse(String query) {
+    Map<String, List<String>> parameters = new LinkedHashMap<>();
+
+    if (query != null && !query.isEmpty()) {
+      for (String pair : query.split("&")) {
+        int idx = pair.indexOf('=');
+
+        if (idx <= 0) {
+          continue;
+        }
+
+        String name = URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8);
+        String value = URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8);
+
+        if (!value.isEmpty()) {
+          parameters.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+      }
+    }
+
+    return new SearchParameters(parameters);
+  }
+
+  // what keeps the search from being answered, or null when nothing does. DHIS2 filters have no
+  // way to escape their delimiters, so ids that could not be DHIS2 ids are refused rather than
+  // passed on as they are
+  public String problem() {
+    for (String name : List.of(COUNT, PAGE)) {
+      for (String value : get(name)) {
+        try {
+          Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+          return "%s must be a number, got %s".formatted(name, value);
+        }
+      }
+    }
+
+    for (String value : get(LEVEL)) {
+      try {
+        Integer.parseInt(Dhis2RouteBuilders.splitPrefix(value)[1]);
+      } catch (NumberFormatException e) {
+        return "%s must be a number, got %s".formatted(LEVEL, value);
+      }
+    }
+
+    List<String> ids = new ArrayList<>(getIds());
+    ids.addAll(getReferenceIds(PART_OF));
+    ids.addAll(getReferenceIds(PART_OF_BELOW));
+
+    for (String id : ids) {
+      if (!Dhis2RouteBuilders.isUid(id)) {
+        return "Not a DHIS2 id: " + id;
+      }
+    }
+
+    for (String value : get(LAST_UPDATED)) {
+      if (getDate(value) == null) {
+        return "%s must be a FHIR dateTime, got %s".formatted(LAST_UPDATED, value);
+      }
+
+      // DHIS2 filters are all required at once, there is no way to leave out a range
+      if ("ne".equals(Dhis2RouteBuilders.splitPrefix(value)[0])) {
+        return "%s=ne is not supported".formatted(LAST_UPDATED);
+      }
+    }
+
+    return null;
+  }
+
+  // the date of a prefixed date parameter, null when it is not one
+  public static DateTimeType getDate(String value) {
+    try {
+      DateTimeType date = new DateTimeType(Dhis2RouteBuilders.splitPrefix(value)[1]);
+      return date.getValue() == null ? null : date;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  // a date for searches built in code, UTC to the millisecond so that no zone is assumed, and as
+  // Z rather than +00:00 which would not survive the query string
+  public static String dateTime(Date date) {
+    DateTimeType dateTime = new DateTimeType(date, TemporalPrecisionEnum.MILLI);
+    dateTime.setTimeZoneZulu(true);
+
+    return dateTime.getValueAsString();
+  }
+
+  public boolean isSearch() {
+    return parameters.keySet().stream().anyMatch(SUPPORTED::contains);
+  }
+
+  public boolean isHierarchySearch() {
+    return parameters.keySet().stream().anyMatch(HIERARCHY::contains);
+  }
+
+  // nothing but the hierarchy and paging, that is answered from the hierarchy index alone
+  public boolean isHierarchyOnly() {
+    return isHierarchySearch() && parameters.keySet().stream().noneMatch(FILTERS::contains);
+  }
+
+  public int getCount() {
+    String count = getFirst(COUNT);
+
+    if (count == null) {
+      return DEFAULT_COUNT;
+    }
+
+    return Math.max(1, Math.min(MAX_COUNT, Integer.parseInt(count)));
+  }
+
+  public int getPage() {
+    String page = getFirst(PAGE);
+    return page == null ? 1 : Math.max(1, Integer.parseInt(page));
+  }
+
+  // _id=a,b and _id=a&_id=b are both accepted
+  public List<String> getIds() {
+    List<String> ids = new ArrayList<>();
+
+    for (String value : get(ID)) {
+      ids.addAll(List.of(value.split(",")));
+    }
+
+    return ids;
+  }
+
+  // Location/a, Organization/a and a all reference a, comma separated values are accepted
+  public List<String> getReferenceIds(String name) {
+    List<String> ids = new ArrayList<>();
+
+    for (String value : get(name)) {
+      for (String reference : value.split(",")) {
+        ids.add(reference.substring(reference.lastIndexOf('/') + 1));
+      }
+    }
+
+    return ids;
+  }
+
+  public List<String> get(String name) {
+    return parameters.getOrDefault(name, List.of());
+  }
+
+  public String getFirst(String name) {
+    List<String> values = get(name);
+    return values.isEmpty() ? null : values.get(0);
+  }
+
+  public String toQueryString(int page) {
+    StringBuilder query = new StringBuilder();
+
+    parameters.forEach(
+        (name, values) -> {
+          if (PAGE.equals(name) || COUNT.equals(name)) {
+            return;
+          }
+
+          for (String value : values) {
+            append(query, name, value);
+          }
+        });
+
+    append(query, COUNT, String.valueOf(getCount()));
+    append(query, PAGE, String.valueOf(page));
+
+    return query.toString();
+  }
+
+  private static void append(StringBuilder query, String name, String value) {
+    if (query.length() > 0) {
+      query.append('&');
+    }
+
+    query
+        .append(URLEncoder.encode(name, StandardCharsets.UTF_8))
+        .append('=')
+        .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+  }
+}
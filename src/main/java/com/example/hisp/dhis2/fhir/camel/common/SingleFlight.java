@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.RuntimeCamelException;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.springframework.stereotype.Component;
+
+// identical requests arriving while one is being served wait for it and share its result instead
+// of going to DHIS2 themselves
+@Component
+@RequiredArgsConstructor
+public class SingleFlight implements MeterBinder {
+  public static final String COALESCED_PROPERTY = "Dhis2Fhir.coalesced";
+
+  private static final String FLIGHT_PROPERTY = "Dhis2Fhir.flight";
+
+  private static final String FLIGHT_KEY_PROPERTY = "Dhis2Fhir.flightKey";
+
+  private static final Object ABANDONED = new Object();
+
+  private final MainProperties properties;
+
+  private final Map<String, CompletableFuture<Object>> flights = new ConcurrentHashMap<>();
+
+  private final AtomicLong leaders = new AtomicLong();
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private final AtomicLong abandoned = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  public <T> T execute(String key, Callable<T> call) throws Exception {
+    CompletableFuture<Object> flight = new CompletableFuture<>();
+    CompletableFuture<Object> inFlight = flights.putIfAbsent(key, flight);
+
+    if (inFlight != null) {
+      Object shared = await(inFlight);
+
+      if (shared != ABANDONED) {
+        coalesced.incrementAndGet();
+        return (T) shared;
+      }
+
+      return call.call();
+    }
+
+    leaders.incrementAndGet();
+
+    try {
+      T result = call.call();
+      flight.complete(result);
+
+      return result;
+    } catch (Exception e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      if (!flight.isDone()) {
+        flight.completeExceptionally(new IllegalStateException("Upstream call did not complete"));
+      }
+
+      land(key, flight);
+    }
+  }
+
+  // everything after join up to complete runs once per key, the Bundle bytes are shared; the key
+  // carries the response version so a caller that already saw newer data never joins an older
+  // flight
+  public RouteDefinition join(RouteDefinition routeDefinition) {
+    routeDefinition
+        .process(this::join)
+        .choice()
+        .when(SingleFlight::isCoalesced)
+        .stop()
+        .end();
+
+    return routeDefinition;
+  }
+
+  public void complete(Exchange exchange) {
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Object> flight =
+        exchange.getProperty(FLIGHT_PROPERTY, CompletableFuture.class);
+
+    if (flight != null) {
+      flight.complete(exchange.getMessage().getBody(byte[].class));
+      land(exchange.getProperty(FLIGHT_KEY_PROPERTY, String.class), flight);
+    }
+  }
+
+  public static boolean isCoalesced(Exchange exchange) {
+    return exchange.getProperty(COALESCED_PROPERTY, false, Boolean.class);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter.builder("dhis2fhir.singleflight.leaders", leaders, AtomicLong::get)
+        .description("Requests that went upstream on behalf of identical concurrent requests")
+        .register(registry);
+
+    FunctionCounter.builder("dhis2fhir.singleflight.coalesced", coalesced, AtomicLong::get)
+        .description("Requests answered from another request's in-flight upstream fetch")
+        .register(registry);
+
+    FunctionCounter.builder("dhis2fhir.singleflight.abandoned", abandoned, AtomicLong::get)
+        .description("Requests that stopped waiting for a flight and fetched upstream themselves")
+        .register(registry);
+
+    Gauge.builder("dhis2fhir.singleflight.inflight", flights, Map::size)
+        .description("Distinct upstream fetches currently in flight")
+        .register(registry);
+  }
+
+  private void join(Exchange exchange) {
+    String key = key(exchange);
+    CompletableFuture<Object> flight = new CompletableFuture<>();
+    CompletableFuture<Object> inFlight = flights.putIfAbsent(key, flight);
+
+    if (inFlight != null) {
+      Object shared = await(inFlight);
+
+      // a flight stuck for longer than an upstream call may take is left behind, this request
+      // fetches for itself without taking over the flight
+      if (shared == ABANDONED) {
+        return;
+      }
+
+      coalesced.incrementAndGet();
+
+      exchange.getMessage().setBody(shared);
+      exchange.getMessage().setHeader(Exchange.CONTENT_TYPE, SearchBundles.FHIR_JSON);
+      exchange.setProperty(COALESCED_PROPERTY, true);
+
+      return;
+    }
+
+    leaders.incrementAndGet();
+    exchange.setProperty(FLIGHT_PROPERTY, flight);
+    exchange.setProperty(FLIGHT_KEY_PROPERTY, key);
+
+    // a failed or abandoned flight must not leave its followers waiting
+    exchange
+        .adapt(ExtendedExchange.class)
+        .addOnCompletion(
+            new SynchronizationAdapter() {
+              @Override
+              public void onDone(Exchange done) {
+                if (!flight.isDone()) {
+                  flight.completeExceptionally(
+                      done.getException() != null
+                          ? done.getException()
+                          : new IllegalStateException("Request failed before completing"));
+                }
+
+                land(key, flight);
+              }
+            });
+  }
+
+  private void land(String key, CompletableFuture<Object> flight) {
+    flights.remove(key, flight);
+  }
+
+  private static String key(Exchange exchange) {
+    return exchange.getIn().getHeader(Exchange.HTTP_URL, String.class)
+        + "|"
+        + ConditionalRequests.bundleId(exchange);
+  }
+
+  // ABANDONED when the flight did not land within the upstream read timeout
+  private Object await(CompletableFuture<Object> flight) {
+    long timeout = properties.getDhis2().getTransport().getReadTimeout().toMillis();
+
+    try {
+      return flight.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      abandoned.incrementAndGet();
+      return ABANDONED;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeCamelException(e);
+    } catch (ExecutionException e) {
+      throw RuntimeCamelException.wrapRuntimeCamelException(e.getCause());
+    }
+  }
+}
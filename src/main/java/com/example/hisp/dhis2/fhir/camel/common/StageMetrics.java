@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.Processor;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.springframework.stereotype.Component;
+
+// timers per route and stage, so a slow response can be pinned on the DHIS2 call, decoding,
+// conversion, serialization or Bundle assembly
+@Component
+@RequiredArgsConstructor
+public class StageMetrics {
+  public static final String ROUTE_PROPERTY = "Dhis2Fhir.route";
+
+  public static final String FETCH = "fetch";
+
+  public static final String DECODE = "decode";
+
+  public static final String CONVERT = "convert";
+
+  public static final String MARSHAL = "marshal";
+
+  public static final String AGGREGATE = "aggregate";
+
+  private static final String NO_ROUTE = "none";
+
+  private static final String STAGE_START_PROPERTY = "Dhis2Fhir.stageStart.";
+
+  private final MeterRegistry registry;
+
+  private final Map<List<String>, Timer> timers = new ConcurrentHashMap<>();
+
+  private final Map<List<String>, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+  private final Map<List<String>, Counter> counters = new ConcurrentHashMap<>();
+
+  // tags everything the route does with its id, sub-exchanges of a split inherit the property
+  public RouteDefinition instrument(RouteDefinition routeDefinition, String routeId) {
+    routeDefinition.process(
+        exchange -> {
+          exchange.setProperty(ROUTE_PROPERTY, routeId);
+          Timer.Sample sample = Timer.start(registry);
+
+          exchange
+              .adapt(ExtendedExchange.class)
+              .addOnCompletion(
+                  new SynchronizationAdapter() {
+                    @Override
+                    public void onDone(Exchange done) {
+                      sample.stop(
+                          timer(
+                              "dhis2fhir.route",
+                              "Time from entering a route to its response",
+                              "route",
+                              routeId,
+                              "status",
+                              responseStatus(done)));
+                    }
+                  });
+        });
+
+    return routeDefinition;
+  }
+
+  public Processor timed(String stage, Processor processor) {
+    return exchange -> {
+      long start = System.nanoTime();
+
+      try {
+        processor.process(exchange);
+      } finally {
+        record(stage, route(exchange), System.nanoTime() - start);
+      }
+    };
+  }
+
+  // for stages that are route DSL rather than a processor, like marshal()
+  public Processor begin(String stage) {
+    return exchange -> exchange.setProperty(STAGE_START_PROPERTY + stage, System.nanoTime());
+  }
+
+  public Processor end(String stage) {
+    return exchange -> {
+      Long start = exchange.getProperty(STAGE_START_PROPERTY + stage, Long.class);
+
+      if (start != null) {
+        record(stage, route(exchange), System.nanoTime() - start);
+      }
+    };
+  }
+
+  public <T, E extends Exception> T time(String stage, String route, Step<T, E> step) throws E {
+    long start = System.nanoTime();
+
+    try {
+      return step.run();
+    } finally {
+      record(stage, route, System.nanoTime() - start);
+    }
+  }
+
+  public void record(String stage, String route, long nanos) {
+    timer(
+            "dhis2fhir.stage",
+            "Time spent per route in each processing stage",
+            "route",
+            route,
+            "stage",
+            stage)
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  // the DHIS2 call including reading the body, with its size and status
+  public byte[] fetch(String route, Request request) throws IOException {
+    return fetch(route, request, InputStream::readAllBytes);
+  }
+
+  // the body goes to the reader as it arrives instead of being buffered first, the fetch time
+  // then includes whatever the reader does with it
+  public <T> T fetch(String route, Request request, BodyReader<T> reader) throws IOException {
+    long start = System.nanoTime();
+    String status = "200";
+
+    try (CountingInputStream inputStream = new CountingInputStream(request.send())) {
+      T body = reader.read(inputStream);
+
+      summary("dhis2fhir.upstream.bytes", "Size of DHIS2 response bodies", "bytes", route)
+          .record(inputStream.count);
+
+      return body;
+    } catch (IOException | RuntimeException e) {
+      status = upstreamStatus(e);
+      throw e;
+    } finally {
+      record(FETCH, route, System.nanoTime() - start);
+
+      counters
+          .computeIfAbsent(
+              List.of(route, status),
+              key ->
+                  Counter.builder("dhis2fhir.upstream.responses")
+                      .description("DHIS2 responses by status code")
+                      .tag("route", route)
+                      .tag("status", key.get(1))
+                      .register(registry))
+          .increment();
+    }
+  }
+
+  // entry count and size of an assembled Bundle
+  public Processor aggregate(Processor processor) {
+    return exchange -> {
+      String route = route(exchange);
+      Object body = exchange.getMessage().getBody();
+      int entries = body instanceof List<?> fragments ? fragments.size() : 0;
+
+      timed(AGGREGATE, processor).process(exchange);
+
+      summary("dhis2fhir.bundle.entries", "Entries per search Bundle", null, route)
+          .record(entries);
+
+      byte[] bundle = exchange.getMessage().getBody(byte[].class);
+
+      if (bundle != null) {
+        summary("dhis2fhir.bundle.bytes", "Size of serialized search Bundles", "bytes", route)
+            .record(bundle.length);
+      }
+    };
+  }
+
+  // registering looks the meter up in the registry and builds its id every time, the meters are
+  // kept here once registered since every request records several of them
+  private Timer timer(String name, String description, String... tags) {
+    List<String> key = new ArrayList<>(tags.length + 1);
+    key.add(name);
+    key.addAll(Arrays.asList(tags));
+
+    return timers.computeIfAbsent(
+        key,
+        k ->
+            Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry));
+  }
+
+  private DistributionSummary summary(
+      String name, String description, String baseUnit, String route) {
+    return summaries.computeIfAbsent(
+        List.of(name, route),
+        k ->
+            DistributionSummary.builder(name)
+                .description(description)
+                .baseUnit(baseUnit)
+                .tag("route", route)
+                .publishPercentileHistogram()
+                .register(registry));
+  }
+
+  public static String route(Exchange exchange) {
+    return exchange == null
+        ? NO_ROUTE
+        : exchange.getProperty(ROUTE_PROPERTY, NO_ROUTE, String.class);
+  }
+
+  private static String responseStatus(Exchange exchange) {
+    if (exchange.getException() != null) {
+      return "500";
+    }
+
+    return exchange.getMessage().getHeader(Exchange.HTTP_RESPONSE_CODE, "200", String.class);
+  }
+
+  private static String upstreamStatus(Throwable e) {
+    OptionalInt status = Dhis2Failures.status(e);
+
+    return status.isPresent() ? String.valueOf(status.getAsInt()) : "error";
+  }
+
+  public interface Step<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  public interface Request {
+    InputStream send();
+  }
+
+  public interface BodyReader<T> {
+    T read(InputStream inputStream) throws IOException;
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream inputStream) {
+      super(inputStream);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      count += b < 0 ? 0 : 1;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      count += Math.max(0, read);
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.model.RouteDefinition;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+// Search routes are split in two. The route the REST endpoint calls runs the upstream one behind a
+// circuit breaker with a timeout and a bulkhead, so a slow or restarting DHIS2 costs a request at
+// most its timeout. When the upstream route fails the last good Bundle of the same request is
+// served with Age and Warning headers, and a single background refresh per request retries with
+// backoff. Until that refresh succeeds the stale Bundle is served without trying upstream at all.
+// Only DHIS2 failing counts toward opening the circuit, a search DHIS2 turned down does not.
+@Slf4j
+@Component
+public class StaleWhileRevalidate implements MeterBinder {
+  public static final String STALE_PROPERTY = "Dhis2Fhir.stale";
+
+  public static final String UPSTREAM_EXECUTOR = "upstreamExecutor";
+
+  private static final String AGE = "Age";
+
+  private static final String WARNING = "Warning";
+
+  private static final String RETRY_AFTER = "Retry-After";
+
+  // lowercase, the servlet headers are matched without case
+  private static final Set<String> CONDITIONAL_HEADERS =
+      Set.of("if-none-match", "if-modified-since");
+
+  private final CamelContext camelContext;
+
+  private final ProducerTemplate producerTemplate;
+
+  private final MainProperties properties;
+
+  // access ordered, so the Bundle of the least recently asked request is dropped first
+  private final Map<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long snapshotBytes;
+
+  private final Map<String, Revalidation> revalidations = new ConcurrentHashMap<>();
+
+  private final AtomicLong staleResponses = new AtomicLong();
+
+  private final AtomicLong unavailableResponses = new AtomicLong();
+
+  private final AtomicLong revalidated = new AtomicLong();
+
+  private ScheduledExecutorService executorService;
+
+  public StaleWhileRevalidate(
+      CamelContext camelContext, ProducerTemplate producerTemplate, MainProperties properties) {
+    this.camelContext = camelContext;
+    this.producerTemplate = producerTemplate;
+    this.properties = properties;
+  }
+
+  @PostConstruct
+  public void init() {
+    executorService =
+        camelContext
+            .getExecutorServiceManager()
+            .newScheduledThreadPool(
+                this, "Revalidate", properties.getResilience().getRevalidationConcurrency());
+  }
+
+  @PreDestroy
+  public void destroy() {
+    camelContext.getExecutorServiceManager().shutdownNow(executorService);
+  }
+
+  public RouteDefinition guard(RouteDefinition routeDefinition, String routeId, String upstream) {
+    MainProperties.Resilience resilience = properties.getResilience();
+    String circuitBreaker = routeId + "-circuit-breaker";
+
+    camelContext
+        .getRegistry()
+        .bind(circuitBreaker, CircuitBreaker.of(routeId, circuitBreakerConfig(resilience)));
+
+    routeDefinition
+        .process(this::serveWhileRevalidating)
+        .choice()
+        .when(StaleWhileRevalidate::isStale)
+        .stop()
+        .end()
+        .circuitBreaker()
+        .resilience4jConfiguration()
+        .circuitBreaker(circuitBreaker)
+        .timeoutEnabled(true)
+        .timeoutDuration((int) resilience.getTimeout(routeId).toMillis())
+        .timeoutExecutorService(UPSTREAM_EXECUTOR)
+        .bulkheadEnabled(true)
+        .bulkheadMaxConcurrentCalls(resilience.getMaxConcurrentCalls())
+        .end()
+        .to(upstream)
+        .onFallback()
+        .process(exchange -> fallback(exchange, routeId, upstream))
+        .end()
+        .choice()
+        .when(exchange -> exchange.getMessage().getBody() instanceof Resource)
+        .marshal()
+        .fhirJson("R4")
+        .end();
+
+    return routeDefinition;
+  }
+
+  // the last step of an upstream route, only complete Bundles are kept
+  public void remember(Exchange exchange) {
+    Message message = exchange.getMessage();
+    Integer status = message.getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+    byte[] body = message.getBody(byte[].class);
+
+    if (body == null || (status != null && status != 200)) {
+      return;
+    }
+
+    Snapshot snapshot =
+        new Snapshot(
+            body,
+            message.getHeader(ConditionalRequests.ETAG, String.class),
+            message.getHeader(ConditionalRequests.LAST_MODIFIED, String.class),
+            Instant.now());
+
+    MainProperties.StaleSettings settings = properties.getCache().getStale();
+
+    // one Bundle that could push out all the others is not kept at all
+    if (body.length > settings.getMaxBytes().toBytes()) {
+      return;
+    }
+
+    synchronized (snapshots) {
+      Snapshot replaced = snapshots.put(key(exchange), snapshot);
+      snapshotBytes += body.length - (replaced == null ? 0 : replaced.body().length);
+
+      Iterator<Snapshot> eldest = snapshots.values().iterator();
+
+      while (snapshots.size() > settings.getMaxSize()
+          || snapshotBytes > settings.getMaxBytes().toBytes()) {
+        snapshotBytes -= eldest.next().body().length;
+        eldest.remove();
+      }
+    }
+  }
+
+  public static boolean isStale(Exchange exchange) {
+    return exchange.getProperty(STALE_PROPERTY, false, Boolean.class);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter.builder("dhis2fhir.stale.responses", staleResponses, AtomicLong::get)
+        .description("Search responses served from the last good Bundle while DHIS2 failed")
+        .register(registry);
+
+    FunctionCounter.builder("dhis2fhir.stale.unavailable", unavailableResponses, AtomicLong::get)
+        .description("Search requests that failed upstream with no Bundle to fall back on")
+        .register(registry);
+
+    FunctionCounter.builder("dhis2fhir.stale.revalidated", revalidated, AtomicLong::get)
+        .description("Background refreshes that brought a stale Bundle up to date")
+        .register(registry);
+
+    Gauge.builder("dhis2fhir.stale.bytes", this, StaleWhileRevalidate::getSnapshotBytes)
+        .description("Size of the Bundles kept to serve while DHIS2 fails")
+        .baseUnit("bytes")
+        .register(registry);
+
+    Gauge.builder("dhis2fhir.stale.revalidating", revalidations, Map::size)
+        .description("Requests whose Bundle is being refreshed in the background")
+        .register(registry);
+  }
+
+  private void serveWhileRevalidating(Exchange exchange) {
+    String key = key(exchange);
+
+    if (!revalidations.containsKey(key)) {
+      return;
+    }
+
+    Snapshot snapshot = snapshot(key);
+
+    if (snapshot != null) {
+      serve(exchange, snapshot);
+    }
+  }
+
+  private void fallback(Exchange exchange, String routeId, String upstream) {
+    Throwable cause = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Throwable.class);
+    String key = key(exchange);
+    Snapshot snapshot = snapshot(key);
+
+    log.warn(
+        "Route {} failed upstream, {}: {}",
+        routeId,
+        snapshot == null ? "no Bundle to fall back on" : "serving the last good Bundle",
+        cause == null ? "circuit open or call rejected" : cause.getMessage());
+
+    if (snapshot != null) {
+      revalidate(key, exchange, upstream);
+      serve(exchange, snapshot);
+      return;
+    }
+
+    unavailableResponses.incrementAndGet();
+
+    long retryAfter = properties.getResilience().getWaitInOpenState().toSeconds();
+    exchange.getMessage().setHeader(RETRY_AFTER, String.valueOf(Math.max(1, retryAfter)));
+    OperationOutcomes.error(exchange, 503, "DHIS2 is not available, try again later");
+  }
+
+  private void serve(Exchange exchange, Snapshot snapshot) {
+    staleResponses.incrementAndGet();
+
+    Message message = exchange.getMessage();
+    message.getHeaders().keySet().removeIf(this::isConditional);
+    message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+    message.setHeader(Exchange.CONTENT_TYPE, SearchBundles.FHIR_JSON);
+    message.setHeader(AGE, Duration.between(snapshot.producedAt(), Instant.now()).toSeconds());
+    message.setHeader(WARNING, "110 - \"Response is Stale\"");
+
+    if (snapshot.etag() != null) {
+      message.setHeader(ConditionalRequests.ETAG, snapshot.etag());
+    }
+
+    if (snapshot.lastModified() != null) {
+      message.setHeader(ConditionalRequests.LAST_MODIFIED, snapshot.lastModified());
+    }
+
+    message.setBody(snapshot.body());
+    exchange.setProperty(STALE_PROPERTY, true);
+  }
+
+  private void revalidate(String key, Exchange exchange, String upstream) {
+    Map<String, Object> headers = new HashMap<>();
+
+    // the request as it came in, without anything that could turn the refresh into a 304
+    exchange
+        .getIn()
+        .getHeaders()
+        .forEach(
+            (name, value) -> {
+              if (!isConditional(name)
+                  && (value instanceof String
+                      || value instanceof Number
+                      || value instanceof Boolean)) {
+                headers.put(name, value);
+              }
+            });
+
+    Revalidation revalidation = new Revalidation(upstream, headers);
+
+    if (revalidations.putIfAbsent(key, revalidation) == null) {
+      schedule(key, revalidation, properties.getResilience().getRetryDelay());
+    }
+  }
+
+  private void schedule(String key, Revalidation revalidation, Duration delay) {
+    executorService.schedule(
+        () -> attempt(key, revalidation, delay), delay.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void attempt(String key, Revalidation revalidation, Duration delay) {
+    Throwable failure;
+
+    try {
+      Exchange result =
+          producerTemplate.send(
+              revalidation.upstream(),
+              exchange -> exchange.getIn().setHeaders(new HashMap<>(revalidation.headers())));
+
+      failure = result.getException();
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+
+    if (failure == null) {
+      revalidated.incrementAndGet();
+      revalidations.remove(key, revalidation);
+      log.info("Refreshed {} after an upstream failure", key);
+      return;
+    }
+
+    // nothing is left to keep fresh once the stale Bundle has expired
+    if (snapshot(key) == null) {
+      revalidations.remove(key, revalidation);
+      log.warn("Gave up refreshing {}: {}", key, failure.getMessage());
+      return;
+    }
+
+    Duration next = delay.multipliedBy(2);
+    Duration maxDelay = properties.getResilience().getMaxRetryDelay();
+
+    log.debug("Refreshing {} failed, retrying in {}: {}", key, next, failure.getMessage());
+    schedule(key, revalidation, next.compareTo(maxDelay) > 0 ? maxDelay : next);
+  }
+
+  private Snapshot snapshot(String key) {
+    Duration ttl = properties.getCache().getStale().getTtl();
+
+    synchronized (snapshots) {
+      Snapshot snapshot = snapshots.get(key);
+
+      if (snapshot != null && snapshot.producedAt().plus(ttl).isBefore(Instant.now())) {
+        snapshots.remove(key);
+        snapshotBytes -= snapshot.body().length;
+        return null;
+      }
+
+      return snapshot;
+    }
+  }
+
+  private long getSnapshotBytes() {
+    synchronized (snapshots) {
+      return snapshotBytes;
+    }
+  }
+
+  private boolean isConditional(String header) {
+    return CONDITIONAL_HEADERS.contains(header.toLowerCase(Locale.ROOT));
+  }
+
+  // the thresholds Camel would set, plus which failures count at all
+  private static CircuitBreakerConfig circuitBreakerConfig(MainProperties.Resilience resilience) {
+    return CircuitBreakerConfig.custom()
+        .failureRateThreshold(resilience.getFailureRateThreshold())
+        .slidingWindowSize(resilience.getSlidingWindowSize())
+        .minimumNumberOfCalls(resilience.getMinimumNumberOfCalls())
+        .waitDurationInOpenState(resilience.getWaitInOpenState())
+        .recordException(Dhis2Failures::isUpstream)
+        .build();
+  }
+
+  private static String key(Exchange exchange) {
+    return exchange.getIn().getHeader(Exchange.HTTP_URL, String.class)
+        + "?"
+        + exchange.getIn().getHeader(Exchange.HTTP_QUERY, "", String.class);
+  }
+
+  record Snapshot(byte[] body, String etag, String lastModified, Instant producedAt) {}
+
+  record Revalidation(String upstream, Map<String, Object> headers) {}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import com.example.hisp.dhis2.fhir.cache.TerminologyCache;
+import com.example.hisp.dhis2.fhir.cache.TerminologyIndex;
+import com.example.hisp.dhis2.fhir.cache.TerminologyIndex.Concept;
+import com.example.hisp.dhis2.fhir.cache.TerminologyIndex.Designation;
+import com.example.hisp.dhis2.fhir.cache.TerminologyIndex.IndexedSystem;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Header;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.springframework.stereotype.Component;
+
+// CodeSystem/$lookup, ValueSet/$validate-code and ValueSet/$expand, answered from the terminology
+// index without going upstream
+@Component
+@RequiredArgsConstructor
+public class TerminologyOperations {
+  private static final int MAX_COUNT = 1000;
+
+  private final TerminologyCache terminologyCache;
+
+  public void lookup(Exchange exchange) {
+    SearchParameters parameters = SearchParameters.from(exchange);
+    String system = parameters.getFirst("system");
+    String code = parameters.getFirst("code");
+
+    if (system == null || code == null) {
+      OperationOutcomes.error(exchange, 400, "$lookup requires system and code");
+      return;
+    }
+
+    TerminologyIndex index = terminologyCache.getIndex();
+    Optional<Concept> concept = index.lookup(system, code);
+
+    if (concept.isEmpty()) {
+      OperationOutcomes.error(exchange, 404, "Code %s not found in %s".formatted(code, system));
+      return;
+    }
+
+    IndexedSystem codeSystem = index.getSystem(system).orElseThrow();
+    Parameters result = new Parameters();
+    result.addParameter("name", codeSystem.name());
+
+    if (codeSystem.version() != null) {
+      result.addParameter("version", codeSystem.version());
+    }
+
+    result.addParameter(
+        "display", concept.get().display(parameters.getFirst("displayLanguage")));
+
+    for (Designation designation : concept.get().designations()) {
+      ParametersParameterComponent parameter = result.addParameter().setName("designation");
+      parameter.addPart().setName("language").setValue(new CodeType(designation.language()));
+      parameter.addPart().setName("value").setValue(new StringType(designation.value()));
+    }
+
+    exchange.getMessage().setBody(result);
+  }
+
+  public void validateCode(@Header("id") String id, Exchange exchange) {
+    SearchParameters parameters = SearchParameters.from(exchange);
+    String code = parameters.getFirst("code");
+
+    if (code == null) {
+      OperationOutcomes.error(exchange, 400, "$validate-code requires code");
+      return;
+    }
+
+    Optional<IndexedSystem> codeSystem = valueSetSystem(id, parameters, exchange);
+
+    if (codeSystem.isEmpty()) {
+      return;
+    }
+
+    String system = parameters.getFirst("system");
+    Parameters result = new Parameters();
+
+    if (system != null && !codeSystem.get().url().equals(system)) {
+      exchange.getMessage().setBody(invalid(result, "System %s is not in the value set", system));
+      return;
+    }
+
+    Optional<Concept> concept = terminologyCache.getIndex().lookup(codeSystem.get().url(), code);
+
+    if (concept.isEmpty()) {
+      exchange.getMessage().setBody(invalid(result, "Code %s is not in the value set", code));
+      return;
+    }
+
+    String display = parameters.getFirst("display");
+
+    if (display != null && !concept.get().hasDisplay(display)) {
+      invalid(result, "Display %s does not match", display);
+      result.addParameter("display", concept.get().display());
+      exchange.getMessage().setBody(result);
+      return;
+    }
+
+    result.addParameter("result", true);
+    result.addParameter(
+        "display", concept.get().display(parameters.getFirst("displayLanguage")));
+
+    exchange.getMessage().setBody(result);
+  }
+
+  public void expand(@Header("id") String id, Exchange exchange) {
+    SearchParameters parameters = SearchParameters.from(exchange);
+    Optional<IndexedSystem> codeSystem = valueSetSystem(id, parameters, exchange);
+
+    if (codeSystem.isEmpty()) {
+      return;
+    }
+
+    String filter = parameters.getFirst("filter");
+    String language = parameters.getFirst("displayLanguage");
+    int offset = Math.max(0, integer(parameters.getFirst("offset"), 0));
+    int count = integer(parameters.getFirst("count"), MAX_COUNT);
+    count = Math.min(MAX_COUNT, Math.max(0, count));
+
+    List<Concept> concepts = codeSystem.get().filter(filter);
+
+    ValueSetExpansionComponent expansion =
+        new ValueSetExpansionComponent()
+            .setIdentifier("urn:uuid:" + UUID.randomUUID())
+            .setTimestamp(new Date())
+            .setTotal(concepts.size())
+            .setOffset(offset);
+
+    if (filter != null) {
+      expansion.addParameter().setName("filter").setValue(new StringType(filter));
+    }
+
+    expansion.addParameter().setName("offset").setValue(new IntegerType(offset));
+    expansion.addParameter().setName("count").setValue(new IntegerType(count));
+
+    int end = (int) Math.min(concepts.size(), (long) offset + count);
+
+    for (int i = offset; i < end; i++) {
+      Concept concept = concepts.get(i);
+      expansion
+          .addContains()
+          .setSystem(concept.system())
+          .setCode(concept.code())
+          .setDisplay(concept.display(language));
+    }
+
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl(codeSystem.get().url().replaceAll("/CodeSystem$", "/ValueSet"));
+    valueSet.setStatus(Enumerations.PublicationStatus.ACTIVE);
+    valueSet.setExpansion(expansion);
+
+    if (id != null) {
+      valueSet.setId(id);
+    }
+
+    exchange.getMessage().setBody(valueSet);
+  }
+
+  // the instance level operations name the value set by id, the type level ones by url
+  private Optional<IndexedSystem> valueSetSystem(
+      String id, SearchParameters parameters, Exchange exchange) {
+    String valueSet = id != null ? id : parameters.getFirst("url");
+
+    if (valueSet == null) {
+      OperationOutcomes.error(exchange, 400, "A value set url is required");
+      return Optional.empty();
+    }
+
+    Optional<IndexedSystem> codeSystem = terminologyCache.getIndex().getValueSetSystem(valueSet);
+
+    if (codeSystem.isEmpty()) {
+      OperationOutcomes.error(exchange, 404, "ValueSet not found: " + valueSet);
+    }
+
+    return codeSystem;
+  }
+
+  private static Parameters invalid(Parameters result, String message, String value) {
+    result.addParameter("result", false);
+    result.addParameter("message", message.formatted(value));
+    return result;
+  }
+
+  private static int integer(String value, int defaultValue) {
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.RuntimeCamelException;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class TrackedEntityPageFetcher {
+  private final CamelContext camelContext;
+
+  private final ProducerTemplate producerTemplate;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final MainProperties properties;
+
+  private final StageMetrics stageMetrics;
+
+  private ExecutorService executorService;
+
+  @PostConstruct
+  public void init() {
+    executorService =
+        camelContext
+            .getExecutorServiceManager()
+            .newFixedThreadPool(
+                this, "TrackedEntityPageFetcher", properties.getPatient().getConcurrency());
+  }
+
+  @PreDestroy
+  public void destroy() {
+    camelContext.getExecutorServiceManager().shutdown(executorService);
+  }
+
+  public Iterator<TrackedEntityInstance> fetch(Map<String, Object> queryParams, String route)
+      throws IOException {
+    byte[] first = fetchPage(queryParams, 1, route);
+    Dhis2PageDecoder.Pager pager = pageDecoder.readPager(first);
+    int pageCount = pager == null ? 1 : pager.pageCount(getPageSize());
+
+    return new PageIterator(queryParams, first, pageCount, route);
+  }
+
+  // pages are kept as raw bytes until the split gets to them, that is far smaller than the bound
+  // objects and lets the decoder stream tracked entities straight out of the buffer
+  private byte[] fetchPage(Map<String, Object> queryParams, int page, String route) {
+    Map<String, Object> pageQueryParams = new HashMap<>(queryParams);
+    pageQueryParams.put("page", String.valueOf(page));
+    pageQueryParams.put("pageSize", String.valueOf(getPageSize()));
+    pageQueryParams.put("skipPaging", "false");
+
+    if (page == 1) {
+      pageQueryParams.put("totalPages", "true");
+    }
+
+    int attempts = properties.getPatient().getAttempts();
+
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return stageMetrics.fetch(
+            route,
+            () ->
+                producerTemplate.requestBodyAndHeader(
+                    Dhis2RouteBuilders.TE_ENDPOINT,
+                    null,
+                    Dhis2RouteBuilders.QUERY_PARAMS,
+                    pageQueryParams,
+                    InputStream.class));
+      } catch (Exception e) {
+        if (attempt >= attempts || !Dhis2Failures.isRetryable(e)) {
+          throw RuntimeCamelException.wrapRuntimeCamelException(e);
+        }
+
+        log.warn("Fetching page {} failed (attempt {}/{}), retrying", page, attempt, attempts, e);
+        sleep(attempt);
+      }
+    }
+  }
+
+  private void sleep(int attempt) {
+    try {
+      Thread.sleep(properties.getPatient().getRetryDelay().toMillis() * attempt);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeCamelException(e);
+    }
+  }
+
+  private int getPageSize() {
+    return properties.getPatient().getPageSize();
+  }
+
+  private class PageIterator implements Iterator<TrackedEntityInstance>, Closeable {
+    private final Map<String, Object> queryParams;
+
+    private final int pageCount;
+
+    private final String route;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private Iterator<TrackedEntityInstance> current;
+
+    private int nextPage = 2;
+
+    // items are decoded lazily as the split pulls them, the time is summed up per response
+    private long decodeNanos;
+
+    PageIterator(Map<String, Object> queryParams, byte[] first, int pageCount, String route) {
+      this.queryParams = queryParams;
+      this.pageCount = pageCount;
+      this.route = route;
+      this.current = decode(first);
+
+      schedule();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!decoded(current::hasNext)) {
+        Future<byte[]> next = pending.poll();
+
+        if (next == null) {
+          recordDecode();
+          return false;
+        }
+
+        current = decode(await(next));
+        schedule();
+      }
+
+      return true;
+    }
+
+    @Override
+    public TrackedEntityInstance next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      return decoded(current::next);
+    }
+
+    @Override
+    public void close() throws IOException {
+      pending.forEach(future -> future.cancel(true));
+      pending.clear();
+      recordDecode();
+    }
+
+    // keeps at most `concurrency` pages in flight ahead of the consumer, in page order
+    private void schedule() {
+      while (pending.size() < properties.getPatient().getConcurrency() && nextPage <= pageCount) {
+        int page = nextPage++;
+        pending.add(executorService.submit(() -> fetchPage(queryParams, page, route)));
+      }
+    }
+
+    private <T> T decoded(Supplier<T> step) {
+      long start = System.nanoTime();
+
+      try {
+        return step.get();
+      } finally {
+        decodeNanos += System.nanoTime() - start;
+      }
+    }
+
+    private void recordDecode() {
+      if (decodeNanos > 0) {
+        stageMetrics.record(StageMetrics.DECODE, route, decodeNanos);
+        decodeNanos = 0;
+      }
+    }
+
+    private Iterator<TrackedEntityInstance> decode(byte[] page) {
+      try {
+        return pageDecoder.decode(page, "trackedEntityInstances", TrackedEntityInstance.class);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private byte[] await(Future<byte[]> future) {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeCamelException(e);
+      } catch (ExecutionException e) {
+        throw RuntimeCamelException.wrapRuntimeCamelException(e.getCause());
+      }
+    }
+  }
+}
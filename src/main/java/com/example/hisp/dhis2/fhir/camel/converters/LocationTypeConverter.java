@@ -50,6 +50,7 @@ public class LocationTypeConverter implements TypeConverters {
 
     location.setId(ou.getId().get());
     location.setName(ou.getName().get());
+    ou.getLastUpdated().ifPresent(location.getMeta()::setLastUpdated);
 
     location
         .getIdentifier()
@@ -74,9 +75,9 @@ public class LocationTypeConverter implements TypeConverters {
     location.getManagingOrganization().setReference("Organization/" + ou.getId().get());
     location.setMode(Location.LocationMode.INSTANCE);
 
-    if (ou.getParent().isPresent()) {
-      location.getPartOf().setReference("Location/" + ou.getId().get());
-    }
+    ou.getParent()
+        .flatMap(parent -> parent.getId())
+        .ifPresent(parent -> location.getPartOf().setReference("Location/" + parent));
 
     location.setStatus(Location.LocationStatus.ACTIVE);
     location.getType().add(new CodeableConcept(new Coding().setCode("OF")));
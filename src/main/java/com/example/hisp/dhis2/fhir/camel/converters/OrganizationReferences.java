@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.converters;
+
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitHierarchy;
+import lombok.RequiredArgsConstructor;
+import org.hl7.fhir.r4.model.Reference;
+import org.springframework.stereotype.Component;
+
+// Organizations carry the org unit uid as their id, so a unit the hierarchy index knows is
+// referenced directly and the receiving server does not have to search for it. The conditional
+// form is only left for units the index does not hold. The index is only read as it is, a
+// conversion never waits for it to be loaded or refreshed from DHIS2.
+@Component
+@RequiredArgsConstructor
+public class OrganizationReferences {
+  private final OrganisationUnitHierarchy organisationUnitHierarchy;
+
+  public Reference toOrganization(String orgUnit) {
+    if (orgUnit == null) {
+      return null;
+    }
+
+    return isKnown(orgUnit)
+        ? new Reference("Organization/" + orgUnit)
+        : new Reference("Organization?identifier=" + orgUnit);
+  }
+
+  // part of the cached Patient fragment's version, the fragment is encoded again once the form
+  // of its reference changes
+  public boolean isKnown(String orgUnit) {
+    return orgUnit != null && organisationUnitHierarchy.peek(orgUnit).isPresent();
+  }
+}
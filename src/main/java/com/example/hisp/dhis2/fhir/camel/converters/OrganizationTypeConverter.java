@@ -47,6 +47,7 @@ public class OrganizationTypeConverter implements TypeConverters {
     Organization organization = new Organization();
     organization.setId(ou.getId().get());
     organization.setName(ou.getName().get());
+    ou.getLastUpdated().ifPresent(organization.getMeta()::setLastUpdated);
 
     String baseUrl = properties.getDhis2().getBaseUrl().replace("/api", "");
 
@@ -66,6 +67,10 @@ public class OrganizationTypeConverter implements TypeConverters {
                   .setValue(ou.getCode().get()));
     }
 
+    ou.getParent()
+        .flatMap(parent -> parent.getId())
+        .ifPresent(parent -> organization.getPartOf().setReference("Organization/" + parent));
+
     return organization;
   }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.converters;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties.ExtensionMapping;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties.IdentifierMapping;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties.Mapping;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import org.hisp.dhis.api.model.v2_39_1.Attribute__1;
+import org.hisp.dhis.api.model.v2_39_1.DataValue__2;
+import org.hisp.dhis.api.model.v2_39_1.Enrollment;
+import org.hisp.dhis.api.model.v2_39_1.Event;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Address.AddressType;
+import org.hl7.fhir.r4.model.Address.AddressUse;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.springframework.stereotype.Component;
+
+// the configured Patient mapping, compiled once into a slot per attribute or data element id and
+// a list of steps reading those slots, converting a tracked entity is an array fill and a loop
+@Component
+public class PatientMapping {
+  // DHIS2 cannot narrow attributes or data values to a set of ids, so the projection only leaves
+  // out the properties the mapping never looks at; enrollment and event lastUpdated are kept for
+  // the fragment cache version
+  public static final String FIELDS =
+      "trackedEntityInstance,orgUnit,lastUpdated,attributes[attribute,value],"
+          + "enrollments[lastUpdated,events[lastUpdated,dataValues[dataElement,value]]]";
+
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  private final List<Step> steps = new ArrayList<>();
+
+  private final String nationalId;
+
+  private final String familyName;
+
+  public PatientMapping(MainProperties properties) {
+    Mapping mapping = properties.getPatient().getMapping();
+
+    this.nationalId =
+        mapping.getNationalId() == null ? null : emptyToNull(mapping.getNationalId().getValue());
+    this.familyName = emptyToNull(mapping.getFamilyName());
+
+    compile(mapping);
+  }
+
+  public String getNationalId() {
+    return nationalId;
+  }
+
+  public String getFamilyName() {
+    return familyName;
+  }
+
+  public void apply(TrackedEntityInstance te, Patient patient) {
+    String[] values = extract(te);
+
+    for (Step step : steps) {
+      step.apply(values, patient);
+    }
+  }
+
+  private void compile(Mapping mapping) {
+    String profile = mapping.getProfile();
+    steps.add((values, patient) -> patient.getMeta().addProfile(profile));
+
+    for (ExtensionMapping extension : mapping.getExtensions()) {
+      int slot = slot(extension.getValue());
+      String url = extension.getUrl();
+      Function<String, Type> type = extensionType(extension);
+
+      steps.add(
+          (values, patient) -> {
+            if (values[slot] != null) {
+              patient.addExtension(url, type.apply(values[slot]));
+            }
+          });
+    }
+
+    IdentifierMapping identifier = mapping.getNationalId();
+
+    if (nationalId != null) {
+      int slot = slot(identifier.getValue());
+      String system = identifier.getSystem();
+      String typeSystem = identifier.getTypeSystem();
+      String typeCode = identifier.getTypeCode();
+
+      steps.add(
+          (values, patient) -> {
+            if (values[slot] != null) {
+              CodeableConcept codeableConcept = new CodeableConcept();
+              codeableConcept.addCoding().setSystem(typeSystem).setCode(typeCode);
+
+              patient.addIdentifier(
+                  new Identifier()
+                      .setType(codeableConcept)
+                      .setSystem(system)
+                      .setValue(values[slot]));
+            }
+          });
+    }
+
+    int family = slot(mapping.getFamilyName());
+    int given = slot(mapping.getGivenName());
+
+    steps.add(
+        (values, patient) ->
+            patient.addName().setFamily(value(values, family)).addGiven(value(values, given)));
+
+    int gender = slot(mapping.getGender());
+    steps.add((values, patient) -> patient.setGender(getGender(value(values, gender))));
+
+    int birthDate = slot(mapping.getBirthDate());
+
+    steps.add(
+        (values, patient) -> {
+          String value = value(values, birthDate);
+
+          if (value != null) {
+            patient.setBirthDate(
+                Date.from(LocalDateTime.parse(value + "T00:00:00").toInstant(ZoneOffset.UTC)));
+          }
+        });
+
+    ExtensionMapping birthDateIsEstimated = mapping.getBirthDateIsEstimated();
+
+    if (birthDateIsEstimated != null) {
+      int slot = slot(birthDateIsEstimated.getValue());
+      String url = birthDateIsEstimated.getUrl();
+      Function<String, Type> type = extensionType(birthDateIsEstimated);
+
+      steps.add(
+          (values, patient) -> {
+            if (values[slot] != null) {
+              patient.getBirthDateElement().addExtension(url, type.apply(values[slot]));
+            }
+          });
+    }
+
+    int address = slot(mapping.getAddress());
+
+    steps.add(
+        (values, patient) -> {
+          String value = value(values, address);
+
+          if (value != null) {
+            patient
+                .addAddress()
+                .setUse(AddressUse.HOME)
+                .setType(AddressType.PHYSICAL)
+                .setText(value);
+          }
+        });
+
+    int phone = slot(mapping.getPhone());
+
+    steps.add(
+        (values, patient) -> {
+          String value = value(values, phone);
+
+          if (value != null) {
+            patient.addContact().addTelecom().setSystem(ContactPointSystem.PHONE).setValue(value);
+          }
+        });
+  }
+
+  // an unmapped element gets slot -1 and always reads as absent
+  private int slot(String id) {
+    if (id == null || id.isEmpty()) {
+      return -1;
+    }
+
+    return slots.computeIfAbsent(id, key -> slots.size());
+  }
+
+  private static String emptyToNull(String id) {
+    return id == null || id.isEmpty() ? null : id;
+  }
+
+  private static String value(String[] values, int slot) {
+    return slot < 0 ? null : values[slot];
+  }
+
+  private static Function<String, Type> extensionType(ExtensionMapping extension) {
+    return switch (extension.getType()) {
+      case BOOLEAN -> BooleanType::new;
+      case ADDRESS_COUNTRY -> value -> new Address().setCountry(value);
+      case STRING -> StringType::new;
+    };
+  }
+
+  private static AdministrativeGender getGender(String gender) {
+    if (gender == null) {
+      return AdministrativeGender.UNKNOWN;
+    }
+
+    return switch (gender) {
+      case "FEMALE" -> AdministrativeGender.FEMALE;
+      case "MALE" -> AdministrativeGender.MALE;
+      case "TG", "OTHER" -> AdministrativeGender.OTHER;
+      default -> AdministrativeGender.UNKNOWN;
+    };
+  }
+
+  // values the mapping never reads have no slot and are not copied
+  private String[] extract(TrackedEntityInstance te) {
+    String[] values = new String[slots.size()];
+
+    te.getAttributes()
+        .ifPresent(
+            attributes -> {
+              for (Attribute__1 attribute : attributes) {
+                keep(values, attribute.getAttribute().orElse(null), attribute.getValue());
+              }
+            });
+
+    te.getEnrollments()
+        .ifPresent(
+            enrollments -> {
+              for (Enrollment enrollment : enrollments) {
+                enrollment
+                    .getEvents()
+                    .ifPresent(
+                        events -> {
+                          for (Event event : events) {
+                            event
+                                .getDataValues()
+                                .ifPresent(
+                                    dataValues -> {
+                                      for (DataValue__2 dataValue : dataValues) {
+                                        keep(
+                                            values,
+                                            dataValue.getDataElement().orElse(null),
+                                            dataValue.getValue());
+                                      }
+                                    });
+                          }
+                        });
+              }
+            });
+
+    return values;
+  }
+
+  private void keep(String[] values, String id, Optional<String> value) {
+    Integer slot = id == null ? null : slots.get(id);
+
+    if (slot != null && value.isPresent()) {
+      values[slot] = value.get();
+    }
+  }
+
+  interface Step {
+    void apply(String[] values, Patient patient);
+  }
+}
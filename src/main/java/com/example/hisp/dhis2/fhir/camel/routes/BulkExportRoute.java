@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.routes;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+@Component
+public class BulkExportRoute extends RouteBuilder {
+  private static final String KICK_OFF_URI = "export-fhir-kick-off";
+
+  private static final String STATUS_URI = "export-fhir-status";
+
+  private static final String DELETE_URI = "export-fhir-delete";
+
+  private static final String DOWNLOAD_URI = "export-fhir-download";
+
+  @Override
+  public void configure() throws Exception {
+    from("direct:%s".formatted(KICK_OFF_URI))
+        .routeId(KICK_OFF_URI)
+        .to("bean:bulkExportService?method=kickOff")
+        .to("direct:export-fhir-outcome");
+
+    from("direct:%s".formatted(STATUS_URI))
+        .routeId(STATUS_URI)
+        .to("bean:bulkExportService?method=status")
+        .to("direct:export-fhir-outcome");
+
+    from("direct:%s".formatted(DELETE_URI))
+        .routeId(DELETE_URI)
+        .to("bean:bulkExportService?method=delete")
+        .to("direct:export-fhir-outcome");
+
+    from("direct:%s".formatted(DOWNLOAD_URI))
+        .routeId(DOWNLOAD_URI)
+        .to("bean:bulkExportService?method=download")
+        .to("direct:export-fhir-outcome");
+
+    // only errors come back as resources, the manifest and the files are written as they are
+    from("direct:export-fhir-outcome")
+        .routeId("export-fhir-outcome")
+        .choice()
+        .when(body().isInstanceOf(Resource.class))
+        .marshal()
+        .fhirJson("R4")
+        .end();
+
+    rest("/")
+        .get("/baseR4/$export")
+        .produces(MediaType.APPLICATION_JSON_VALUE)
+        .to("direct:%s".formatted(KICK_OFF_URI))
+        .get("/baseR4/Patient/$export")
+        .produces(MediaType.APPLICATION_JSON_VALUE)
+        .to("direct:%s".formatted(KICK_OFF_URI))
+        .get("/baseR4/bulkstatus/{id}")
+        .produces(MediaType.APPLICATION_JSON_VALUE)
+        .to("direct:%s".formatted(STATUS_URI))
+        .delete("/baseR4/bulkstatus/{id}")
+        .produces(MediaType.APPLICATION_JSON_VALUE)
+        .to("direct:%s".formatted(DELETE_URI))
+        .get("/baseR4/bulkfiles/{id}/{file}")
+        .produces("application/fhir+ndjson")
+        .to("direct:%s".formatted(DOWNLOAD_URI));
+  }
+}
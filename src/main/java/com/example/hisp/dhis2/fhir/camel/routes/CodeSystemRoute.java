@@ -27,31 +27,106 @@
  */
 package com.example.hisp.dhis2.fhir.camel.routes;
 
-import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.getOptionSets;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.checkNotModified;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.getCodeSystems;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.validateSearch;
 
-import com.example.hisp.dhis2.fhir.camel.common.BundleAggregationStrategy;
+import com.example.hisp.dhis2.fhir.cache.FragmentCache;
+import com.example.hisp.dhis2.fhir.camel.common.BundleSplitter;
+import com.example.hisp.dhis2.fhir.camel.common.ConditionalRequests;
+import com.example.hisp.dhis2.fhir.camel.common.OperationOutcomes;
+import com.example.hisp.dhis2.fhir.camel.common.SearchBundles;
+import com.example.hisp.dhis2.fhir.camel.common.SingleFlight;
+import com.example.hisp.dhis2.fhir.camel.common.StageMetrics;
+import com.example.hisp.dhis2.fhir.camel.common.StaleWhileRevalidate;
+import lombok.RequiredArgsConstructor;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.RouteDefinition;
 import org.hl7.fhir.r4.model.CodeSystem;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
 @Component
+@RequiredArgsConstructor
 public class CodeSystemRoute extends RouteBuilder {
   private static final String URI = "get-fhir-code-system";
 
+  private static final String UPSTREAM_URI = "get-fhir-code-system-upstream";
+
+  private static final String READ_URI = "read-fhir-code-system";
+
+  private static final String LOOKUP_URI = "lookup-fhir-code-system";
+
+  private final FragmentCache fragmentCache;
+
+  private final BundleSplitter bundleSplitter;
+
+  private final SingleFlight singleFlight;
+
+  private final StageMetrics stageMetrics;
+
+  private final StaleWhileRevalidate staleWhileRevalidate;
+
+  private final StoreRoute storeRoute;
+
   @Override
   public void configure() throws Exception {
-    getOptionSets(from("direct:%s".formatted(URI)))
-        .routeId(URI)
-        .split(body(), new BundleAggregationStrategy())
-        .convertBodyTo(CodeSystem.class)
+    RouteDefinition route =
+        getCodeSystems(
+                singleFlight.join(
+                    checkNotModified(
+                        stageMetrics.instrument(
+                            from("direct:%s".formatted(UPSTREAM_URI)), UPSTREAM_URI),
+                        "codeSystems")))
+            .routeId(UPSTREAM_URI);
+
+    bundleSplitter
+        .split(route)
+        .process(fragmentCache.encoder(CodeSystem.class))
         .end()
+        .process(stageMetrics.aggregate(SearchBundles::complete))
+        .process(singleFlight::complete)
+        .process(staleWhileRevalidate::remember);
+
+    staleWhileRevalidate
+        .guard(
+            validateSearch(stageMetrics.instrument(from("direct:%s".formatted(URI)), URI)),
+            URI,
+            "direct:%s".formatted(UPSTREAM_URI))
+        .routeId(URI);
+
+    stageMetrics
+        .instrument(from("direct:%s".formatted(READ_URI)), READ_URI)
+        .routeId(READ_URI)
+        .to("bean:dhis2Read?method=codeSystem")
+        .process(OperationOutcomes::notFoundIfEmpty)
+        .process(ConditionalRequests::evaluateResource)
+        .choice()
+        .when(ConditionalRequests::isNotModified)
+        .stop()
+        .end()
+        .process(stageMetrics.begin(StageMetrics.MARSHAL))
+        .marshal()
+        .fhirJson("R4")
+        .process(stageMetrics.end(StageMetrics.MARSHAL));
+
+    stageMetrics
+        .instrument(from("direct:%s".formatted(LOOKUP_URI)), LOOKUP_URI)
+        .routeId(LOOKUP_URI)
+        .to("bean:terminologyOperations?method=lookup")
+        .process(stageMetrics.begin(StageMetrics.MARSHAL))
         .marshal()
-        .fhirJson("R4");
+        .fhirJson("R4")
+        .process(stageMetrics.end(StageMetrics.MARSHAL));
 
     rest("/")
         .get("/baseR4/CodeSystem")
-        .produces(MediaType.APPLICATION_JSON_VALUE)
-        .to("direct:%s".formatted(URI));
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to(storeRoute.search("CodeSystem", "direct:%s".formatted(URI)))
+        .get("/baseR4/CodeSystem/$lookup")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to("direct:%s".formatted(LOOKUP_URI))
+        .get("/baseR4/CodeSystem/{id}")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to(storeRoute.read("CodeSystem", "direct:%s".formatted(READ_URI)));
   }
 }
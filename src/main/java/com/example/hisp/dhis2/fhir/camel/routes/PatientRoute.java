@@ -27,15 +27,26 @@
  */
 package com.example.hisp.dhis2.fhir.camel.routes;
 
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.checkNotModified;
 import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.getTrackedEntities;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.trackedEntitiesProblem;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.validateSearch;
 
-import com.example.hisp.dhis2.fhir.camel.common.BundleAggregationStrategy;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.hisp.dhis2.fhir.cache.FragmentCache;
+import com.example.hisp.dhis2.fhir.camel.common.BundleSplitter;
+import com.example.hisp.dhis2.fhir.camel.common.BundleStreamWriter;
+import com.example.hisp.dhis2.fhir.camel.common.ConditionalRequests;
+import com.example.hisp.dhis2.fhir.camel.common.OperationOutcomes;
+import com.example.hisp.dhis2.fhir.camel.common.SearchBundles;
+import com.example.hisp.dhis2.fhir.camel.common.SingleFlight;
+import com.example.hisp.dhis2.fhir.camel.common.StageMetrics;
+import com.example.hisp.dhis2.fhir.camel.common.StaleWhileRevalidate;
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
 import lombok.RequiredArgsConstructor;
 import org.apache.camel.builder.RouteBuilder;
-import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.apache.camel.model.RouteDefinition;
 import org.hl7.fhir.r4.model.Patient;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -43,27 +54,103 @@ import org.springframework.stereotype.Component;
 public class PatientRoute extends RouteBuilder {
   private static final String URI = "get-fhir-patient";
 
-  private final ObjectMapper objectMapper;
+  private static final String UPSTREAM_URI = "get-fhir-patient-upstream";
+
+  private static final String READ_URI = "read-fhir-patient";
+
+  private final FragmentCache fragmentCache;
+
+  private final BundleSplitter bundleSplitter;
+
+  private final SingleFlight singleFlight;
+
+  private final StageMetrics stageMetrics;
+
+  private final StaleWhileRevalidate staleWhileRevalidate;
+
+  private final MainProperties properties;
+
+  private final PatientMapping patientMapping;
+
+  private final StoreRoute storeRoute;
 
   @Override
   public void configure() throws Exception {
-    getTrackedEntities(from("direct:%s".formatted(URI)), "Xh88p1nyefp")
-        .routeId(URI)
-        .split(jsonpath("$.trackedEntityInstances"), new BundleAggregationStrategy())
-        .process(
-            x -> {
-              TrackedEntityInstance trackedEntityInstance =
-                  objectMapper.convertValue(x.getIn().getBody(), TrackedEntityInstance.class);
-              x.getMessage().setBody(trackedEntityInstance);
-            })
-        .convertBodyTo(Patient.class)
+    String program = properties.getPatient().getProgram();
+
+    if (properties.getPatient().isStreaming()) {
+      getTrackedEntities(
+              checkNotModified(
+                  validateSearch(
+                          stageMetrics.instrument(from("direct:%s".formatted(URI)), URI),
+                          search -> trackedEntitiesProblem(search, patientMapping))
+                      .process(BundleStreamWriter.bindResponse()),
+                  "trackedEntities"),
+              program)
+          .routeId(URI)
+          .process(BundleStreamWriter::start)
+          .doTry()
+          .split(body())
+          .streaming()
+          .stopOnException()
+          .process(fragmentCache.encoder(Patient.class))
+          .process(BundleStreamWriter::add)
+          .end()
+          .process(BundleStreamWriter::finish)
+          .endDoTry()
+          .doCatch(Exception.class)
+          .process(BundleStreamWriter::abort)
+          .end();
+    } else {
+      RouteDefinition route =
+          getTrackedEntities(
+                  singleFlight.join(
+                      checkNotModified(
+                          stageMetrics.instrument(
+                              from("direct:%s".formatted(UPSTREAM_URI)), UPSTREAM_URI),
+                          "trackedEntities")),
+                  program)
+              .routeId(UPSTREAM_URI);
+
+      bundleSplitter
+          .split(route)
+          .process(fragmentCache.encoder(Patient.class))
+          .end()
+          .process(stageMetrics.aggregate(SearchBundles::complete))
+          .process(singleFlight::complete)
+          .process(staleWhileRevalidate::remember);
+
+      staleWhileRevalidate
+          .guard(
+              validateSearch(
+                  stageMetrics.instrument(from("direct:%s".formatted(URI)), URI),
+                  search -> trackedEntitiesProblem(search, patientMapping)),
+              URI,
+              "direct:%s".formatted(UPSTREAM_URI))
+          .routeId(URI);
+    }
+
+    stageMetrics
+        .instrument(from("direct:%s".formatted(READ_URI)), READ_URI)
+        .routeId(READ_URI)
+        .to("bean:dhis2Read?method=patient")
+        .process(OperationOutcomes::notFoundIfEmpty)
+        .process(ConditionalRequests::evaluateResource)
+        .choice()
+        .when(ConditionalRequests::isNotModified)
+        .stop()
         .end()
+        .process(stageMetrics.begin(StageMetrics.MARSHAL))
         .marshal()
-        .fhirJson("R4");
+        .fhirJson("R4")
+        .process(stageMetrics.end(StageMetrics.MARSHAL));
 
     rest("/")
         .get("/baseR4/Patient")
-        .produces(MediaType.APPLICATION_JSON_VALUE)
-        .to("direct:%s".formatted(URI));
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to(storeRoute.search("Patient", "direct:%s".formatted(URI)))
+        .get("/baseR4/Patient/{id}")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to(storeRoute.read("Patient", "direct:%s".formatted(READ_URI)));
   }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.routes;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.validateSearch;
+
+import com.example.hisp.dhis2.fhir.camel.common.OperationOutcomes;
+import com.example.hisp.dhis2.fhir.camel.common.StageMetrics;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.example.hisp.dhis2.fhir.store.StorePoller;
+import com.example.hisp.dhis2.fhir.store.StoreSearch;
+import java.util.List;
+import java.util.Locale;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.RouteDefinition;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+// With the store enabled the resource routes hand their searches and reads to these routes, which
+// never call DHIS2; the store poller keeps the store current in the background. Searches are
+// checked like on the live routes, and until the store has caught up once they get a 503.
+@Component
+@RequiredArgsConstructor
+public class StoreRoute extends RouteBuilder {
+  private static final String URI = "poll-fhir-store";
+
+  private static final String RETRY_AFTER = "Retry-After";
+
+  private static final List<String> TYPES =
+      List.of("Organization", "Location", "Patient", "CodeSystem", "ValueSet");
+
+  private final MainProperties properties;
+
+  private final StoreSearch storeSearch;
+
+  private final StorePoller storePoller;
+
+  private final StageMetrics stageMetrics;
+
+  @Override
+  public void configure() throws Exception {
+    MainProperties.Store store = properties.getStore();
+
+    if (!store.isEnabled()) {
+      return;
+    }
+
+    from("timer:%s?delay=0&period=%d".formatted(URI, store.getPeriod().toMillis()))
+        .routeId(URI)
+        .to("bean:storePoller?method=run");
+
+    for (String type : TYPES) {
+      String searchUri = searchUri(type);
+      String readUri = readUri(type);
+
+      whenReady(
+              validateSearch(
+                  stageMetrics
+                      .instrument(from("direct:%s".formatted(searchUri)), searchUri)
+                      .routeId(searchUri)))
+          .process(exchange -> storeSearch.search(type, exchange));
+
+      whenReady(
+              stageMetrics
+                  .instrument(from("direct:%s".formatted(readUri)), readUri)
+                  .routeId(readUri))
+          .process(exchange -> storeSearch.read(type, exchange))
+          .choice()
+          .when(body().isInstanceOf(Resource.class))
+          .marshal()
+          .fhirJson("R4")
+          .end();
+    }
+  }
+
+  // a store still loading would answer with whatever it happens to hold so far
+  private RouteDefinition whenReady(RouteDefinition routeDefinition) {
+    long retryAfter = Math.max(1, properties.getStore().getPeriod().toSeconds());
+
+    routeDefinition
+        .process(
+            exchange -> {
+              if (!storePoller.isReady()) {
+                exchange.getMessage().setHeader(RETRY_AFTER, String.valueOf(retryAfter));
+                OperationOutcomes.error(
+                    exchange, 503, "The resource store is still loading, try again later");
+              }
+            })
+        .choice()
+        .when(header(Exchange.HTTP_RESPONSE_CODE).isEqualTo(503))
+        .marshal()
+        .fhirJson("R4")
+        .stop()
+        .end();
+
+    return routeDefinition;
+  }
+
+  // where the rest endpoints of a resource route go, the store when enabled and DHIS2 otherwise
+  public String search(String type, String live) {
+    return properties.getStore().isEnabled() ? "direct:%s".formatted(searchUri(type)) : live;
+  }
+
+  public String read(String type, String live) {
+    return properties.getStore().isEnabled() ? "direct:%s".formatted(readUri(type)) : live;
+  }
+
+  private static String searchUri(String type) {
+    return "get-fhir-store-" + type.toLowerCase(Locale.ROOT);
+  }
+
+  private static String readUri(String type) {
+    return "read-fhir-store-" + type.toLowerCase(Locale.ROOT);
+  }
+}
@@ -27,31 +27,126 @@
  */
 package com.example.hisp.dhis2.fhir.camel.routes;
 
-import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.getOptionSets;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.checkNotModified;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.getValueSets;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.validateSearch;
 
-import com.example.hisp.dhis2.fhir.camel.common.BundleAggregationStrategy;
+import com.example.hisp.dhis2.fhir.cache.FragmentCache;
+import com.example.hisp.dhis2.fhir.camel.common.BundleSplitter;
+import com.example.hisp.dhis2.fhir.camel.common.ConditionalRequests;
+import com.example.hisp.dhis2.fhir.camel.common.OperationOutcomes;
+import com.example.hisp.dhis2.fhir.camel.common.SearchBundles;
+import com.example.hisp.dhis2.fhir.camel.common.SingleFlight;
+import com.example.hisp.dhis2.fhir.camel.common.StageMetrics;
+import com.example.hisp.dhis2.fhir.camel.common.StaleWhileRevalidate;
+import lombok.RequiredArgsConstructor;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.RouteDefinition;
 import org.hl7.fhir.r4.model.ValueSet;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 
 @Component
+@RequiredArgsConstructor
 public class ValueSetRoute extends RouteBuilder {
   private static final String URI = "get-fhir-value-code";
 
+  private static final String UPSTREAM_URI = "get-fhir-value-code-upstream";
+
+  private static final String READ_URI = "read-fhir-value-set";
+
+  private static final String EXPAND_URI = "expand-fhir-value-set";
+
+  private static final String VALIDATE_CODE_URI = "validate-code-fhir-value-set";
+
+  private final FragmentCache fragmentCache;
+
+  private final BundleSplitter bundleSplitter;
+
+  private final SingleFlight singleFlight;
+
+  private final StageMetrics stageMetrics;
+
+  private final StaleWhileRevalidate staleWhileRevalidate;
+
+  private final StoreRoute storeRoute;
+
   @Override
   public void configure() throws Exception {
-    getOptionSets(from("direct:%s".formatted(URI)))
-        .routeId(URI)
-        .split(body(), new BundleAggregationStrategy())
-        .convertBodyTo(ValueSet.class)
+    RouteDefinition route =
+        getValueSets(
+                singleFlight.join(
+                    checkNotModified(
+                        stageMetrics.instrument(
+                            from("direct:%s".formatted(UPSTREAM_URI)), UPSTREAM_URI),
+                        "valueSets")))
+            .routeId(UPSTREAM_URI);
+
+    bundleSplitter
+        .split(route)
+        .process(fragmentCache.encoder(ValueSet.class))
+        .end()
+        .process(stageMetrics.aggregate(SearchBundles::complete))
+        .process(singleFlight::complete)
+        .process(staleWhileRevalidate::remember);
+
+    staleWhileRevalidate
+        .guard(
+            validateSearch(stageMetrics.instrument(from("direct:%s".formatted(URI)), URI)),
+            URI,
+            "direct:%s".formatted(UPSTREAM_URI))
+        .routeId(URI);
+
+    stageMetrics
+        .instrument(from("direct:%s".formatted(READ_URI)), READ_URI)
+        .routeId(READ_URI)
+        .to("bean:dhis2Read?method=valueSet")
+        .process(OperationOutcomes::notFoundIfEmpty)
+        .process(ConditionalRequests::evaluateResource)
+        .choice()
+        .when(ConditionalRequests::isNotModified)
+        .stop()
         .end()
+        .process(stageMetrics.begin(StageMetrics.MARSHAL))
+        .marshal()
+        .fhirJson("R4")
+        .process(stageMetrics.end(StageMetrics.MARSHAL));
+
+    stageMetrics
+        .instrument(from("direct:%s".formatted(EXPAND_URI)), EXPAND_URI)
+        .routeId(EXPAND_URI)
+        .to("bean:terminologyOperations?method=expand")
+        .process(stageMetrics.begin(StageMetrics.MARSHAL))
+        .marshal()
+        .fhirJson("R4")
+        .process(stageMetrics.end(StageMetrics.MARSHAL));
+
+    stageMetrics
+        .instrument(from("direct:%s".formatted(VALIDATE_CODE_URI)), VALIDATE_CODE_URI)
+        .routeId(VALIDATE_CODE_URI)
+        .to("bean:terminologyOperations?method=validateCode")
+        .process(stageMetrics.begin(StageMetrics.MARSHAL))
         .marshal()
-        .fhirJson("R4");
+        .fhirJson("R4")
+        .process(stageMetrics.end(StageMetrics.MARSHAL));
 
     rest("/")
         .get("/baseR4/ValueSet")
-        .produces(MediaType.APPLICATION_JSON_VALUE)
-        .to("direct:%s".formatted(URI));
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to(storeRoute.search("ValueSet", "direct:%s".formatted(URI)))
+        .get("/baseR4/ValueSet/$expand")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to("direct:%s".formatted(EXPAND_URI))
+        .get("/baseR4/ValueSet/$validate-code")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to("direct:%s".formatted(VALIDATE_CODE_URI))
+        .get("/baseR4/ValueSet/{id}")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to(storeRoute.read("ValueSet", "direct:%s".formatted(READ_URI)))
+        .get("/baseR4/ValueSet/{id}/$expand")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to("direct:%s".formatted(EXPAND_URI))
+        .get("/baseR4/ValueSet/{id}/$validate-code")
+        .produces(SearchBundles.FHIR_MEDIA_TYPE)
+        .to("direct:%s".formatted(VALIDATE_CODE_URI));
   }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.configuration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.GzipSink;
+import okio.Okio;
+import org.springframework.stereotype.Component;
+
+// The HTTP client behind dhis2Client. Connections are pooled and kept alive between calls, HTTP/2
+// is negotiated over TLS where DHIS2 offers it, and responses are asked for gzipped. The network
+// interceptor sits below OkHttp's transparent decompression, so the byte counters are what
+// actually went over the wire.
+@Component
+public class Dhis2Transport implements MeterBinder {
+  @Getter private final OkHttpClient httpClient;
+
+  private final ConnectionPool connectionPool;
+
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  private final AtomicLong connectionsOpened = new AtomicLong();
+
+  private final AtomicLong connectionsAcquired = new AtomicLong();
+
+  private final Map<Protocol, AtomicLong> protocols = new ConcurrentHashMap<>();
+
+  public Dhis2Transport(MainProperties properties) {
+    MainProperties.Api api = properties.getDhis2();
+    MainProperties.Transport transport = api.getTransport();
+
+    this.connectionPool =
+        new ConnectionPool(
+            transport.getMaxConnections(),
+            transport.getKeepAlive().toMillis(),
+            TimeUnit.MILLISECONDS);
+
+    // only asynchronous calls are limited by the dispatcher, it is kept in line with the pool
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(transport.getMaxConnections());
+    dispatcher.setMaxRequestsPerHost(transport.getMaxConnections());
+
+    OkHttpClient.Builder builder =
+        new OkHttpClient.Builder()
+            .connectionPool(connectionPool)
+            .dispatcher(dispatcher)
+            .protocols(
+                transport.isHttp2()
+                    ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                    : List.of(Protocol.HTTP_1_1))
+            .connectTimeout(transport.getConnectTimeout().toMillis(), TimeUnit.MILLISECONDS)
+            .readTimeout(transport.getReadTimeout().toMillis(), TimeUnit.MILLISECONDS)
+            .writeTimeout(transport.getWriteTimeout().toMillis(), TimeUnit.MILLISECONDS)
+            .eventListener(new ConnectionEvents())
+            .addNetworkInterceptor(this::countBytes);
+
+    // OkHttp asks for gzip on its own and unpacks it, an explicit identity opts out of that
+    if (!transport.isCompression()) {
+      builder.addInterceptor(
+          chain ->
+              chain.proceed(
+                  chain.request().newBuilder().header("Accept-Encoding", "identity").build()));
+    }
+
+    if (transport.isRequestCompression()) {
+      builder.addInterceptor(Dhis2Transport::gzipRequest);
+    }
+
+    this.httpClient = builder.build();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    Gauge.builder("dhis2fhir.upstream.connections", connectionPool, Dhis2Transport::active)
+        .description("Pooled DHIS2 connections carrying a request")
+        .tag("state", "active")
+        .register(registry);
+
+    Gauge.builder(
+            "dhis2fhir.upstream.connections",
+            connectionPool,
+            ConnectionPool::idleConnectionCount)
+        .description("Pooled DHIS2 connections waiting to be reused")
+        .tag("state", "idle")
+        .register(registry);
+
+    FunctionCounter.builder(
+            "dhis2fhir.upstream.connections.opened", connectionsOpened, AtomicLong::get)
+        .description("DHIS2 connections set up, TCP and TLS included")
+        .register(registry);
+
+    FunctionCounter.builder(
+            "dhis2fhir.upstream.connections.acquired", connectionsAcquired, AtomicLong::get)
+        .description("DHIS2 calls that got a connection, new or reused")
+        .register(registry);
+
+    FunctionCounter.builder("dhis2fhir.upstream.wire.bytes", bytesSent, AtomicLong::get)
+        .description("Bytes sent to DHIS2 as they went over the wire")
+        .baseUnit("bytes")
+        .tag("direction", "sent")
+        .register(registry);
+
+    FunctionCounter.builder("dhis2fhir.upstream.wire.bytes", bytesReceived, AtomicLong::get)
+        .description("Bytes received from DHIS2 before decompression")
+        .baseUnit("bytes")
+        .tag("direction", "received")
+        .register(registry);
+
+    for (Protocol protocol : List.of(Protocol.HTTP_1_1, Protocol.HTTP_2)) {
+      FunctionCounter.builder("dhis2fhir.upstream.connections.protocol", protocol, this::opened)
+          .description("DHIS2 connections set up per negotiated protocol")
+          .tag("protocol", protocol.toString())
+          .register(registry);
+    }
+  }
+
+  private static double active(ConnectionPool pool) {
+    return pool.connectionCount() - pool.idleConnectionCount();
+  }
+
+  private double opened(Protocol protocol) {
+    AtomicLong count = protocols.get(protocol);
+    return count == null ? 0 : count.get();
+  }
+
+  private Response countBytes(Interceptor.Chain chain) throws IOException {
+    Request request = chain.request();
+
+    if (request.body() != null && request.body().contentLength() > 0) {
+      bytesSent.addAndGet(request.body().contentLength());
+    }
+
+    Response response = chain.proceed(request);
+    ResponseBody body = response.body();
+
+    if (body == null) {
+      return response;
+    }
+
+    BufferedSource counted =
+        Okio.buffer(
+            new ForwardingSource(body.source()) {
+              @Override
+              public long read(Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+
+                if (read > 0) {
+                  bytesReceived.addAndGet(read);
+                }
+
+                return read;
+              }
+            });
+
+    return response
+        .newBuilder()
+        .body(ResponseBody.Companion.create(counted, body.contentType(), body.contentLength()))
+        .build();
+  }
+
+  // off by default, Tomcat in front of DHIS2 does not unpack request bodies unless told to
+  private static Response gzipRequest(Interceptor.Chain chain) throws IOException {
+    Request request = chain.request();
+    RequestBody body = request.body();
+
+    if (body == null || request.header("Content-Encoding") != null) {
+      return chain.proceed(request);
+    }
+
+    Buffer compressed = new Buffer();
+
+    try (BufferedSink sink = Okio.buffer(new GzipSink(compressed))) {
+      body.writeTo(sink);
+    }
+
+    RequestBody gzipped =
+        RequestBody.Companion.create(compressed.readByteString(), contentType(body.contentType()));
+
+    return chain.proceed(
+        request
+            .newBuilder()
+            .header("Content-Encoding", "gzip")
+            .method(request.method(), gzipped)
+            .build());
+  }
+
+  private static MediaType contentType(MediaType contentType) {
+    return contentType == null ? MediaType.get("application/json") : contentType;
+  }
+
+  private class ConnectionEvents extends EventListener {
+    @Override
+    public void connectEnd(
+        Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+      connectionsOpened.incrementAndGet();
+
+      if (protocol != null) {
+        protocols.computeIfAbsent(protocol, key -> new AtomicLong()).incrementAndGet();
+      }
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      connectionsAcquired.incrementAndGet();
+    }
+  }
+}
@@ -27,19 +27,45 @@
  */
 package com.example.hisp.dhis2.fhir.configuration;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
 
+// validated at binding, the nested blocks are only checked where marked @Valid
 @Data
-@Valid
+@Validated
 @ConfigurationProperties(prefix = "integration")
 public class MainProperties {
 
-  private Api dhis2;
+  @Valid private Api dhis2;
 
-  private Api fhir;
+  @Valid private Api fhir;
+
+  @Valid private Patient patient = new Patient();
+
+  @Valid private Cache cache = new Cache();
+
+  @Valid private Sync sync = new Sync();
+
+  @Valid private Export export = new Export();
+
+  @Valid private Conversion conversion = new Conversion();
+
+  @Valid private Resilience resilience = new Resilience();
+
+  @Valid private Store store = new Store();
 
   @Data
   public static class Api {
@@ -48,5 +74,256 @@ public class MainProperties {
     private String username;
 
     private String password;
+
+    @Valid private Transport transport = new Transport();
+  }
+
+  // only the DHIS2 client is built on these, see Dhis2Transport
+  @Data
+  public static class Transport {
+    // connections kept open between calls, and the most requests run at once
+    @Min(1) private int maxConnections = 20;
+
+    private Duration keepAlive = Duration.ofMinutes(5);
+
+    // negotiated over TLS, plain http stays on HTTP/1.1
+    private boolean http2 = true;
+
+    // gzip responses
+    private boolean compression = true;
+
+    // gzip request bodies, only for a DHIS2 or proxy that unpacks them
+    private boolean requestCompression;
+
+    private Duration connectTimeout = Duration.ofSeconds(5);
+
+    private Duration readTimeout = Duration.ofSeconds(60);
+
+    private Duration writeTimeout = Duration.ofSeconds(30);
+  }
+
+  @Data
+  public static class Patient {
+    @NotEmpty private String program = "Xh88p1nyefp";
+
+    private boolean streaming;
+
+    @Min(1) private int pageSize = 250;
+
+    @Min(1) private int concurrency = 4;
+
+    @Min(1) private int attempts = 3;
+
+    private Duration retryDelay = Duration.ofMillis(500);
+
+    @Valid private Mapping mapping = new Mapping();
+  }
+
+  // tracked entity attribute or event data element ids per Patient element, compiled once at
+  // startup into the converters PatientMapping
+  @Data
+  public static class Mapping {
+    @NotEmpty
+    private String profile = "http://example.com/fhir/example/StructureDefinition/DHIS2BasePatient";
+
+    @Valid private IdentifierMapping nationalId = new IdentifierMapping();
+
+    private String familyName = "ENRjVGxVL6l";
+
+    private String givenName = "sB1IHYu2xQT";
+
+    private String gender = "Jt68iauILtD";
+
+    private String birthDate = "NI0QRzJvQ0k";
+
+    @Valid
+    private ExtensionMapping birthDateIsEstimated =
+        new ExtensionMapping(
+            "http://example.com/fhir/example/StructureDefinition/DateOfBirthIsEstimated",
+            "Z1rLc1rVHK8",
+            ExtensionType.BOOLEAN);
+
+    private String address = "Xhdn49gUd52";
+
+    private String phone = "fctSQp5nAYl";
+
+    @Valid
+    private List<ExtensionMapping> extensions =
+        new ArrayList<>(
+            List.of(
+                new ExtensionMapping(
+                    "http://hl7.org/fhir/StructureDefinition/patient-birthPlace",
+                    "gWTETHreVph",
+                    ExtensionType.ADDRESS_COUNTRY),
+                new ExtensionMapping(
+                    "http://example.com/fhir/example/StructureDefinition/ConsentToBeContacted",
+                    "YsxExAltfIE",
+                    ExtensionType.BOOLEAN)));
+  }
+
+  @Data
+  public static class IdentifierMapping {
+    private String value = "Ewi7FUfcHAD";
+
+    @NotEmpty private String system = "http://whatever.country/nationalidnamespace";
+
+    private String typeSystem = "http://dhis2.org/identifiertypes";
+
+    private String typeCode = "nationalidentifier";
+  }
+
+  @Data
+  @NoArgsConstructor
+  @AllArgsConstructor
+  public static class ExtensionMapping {
+    @NotEmpty private String url;
+
+    @NotEmpty private String value;
+
+    private ExtensionType type = ExtensionType.STRING;
+  }
+
+  public enum ExtensionType {
+    STRING,
+    BOOLEAN,
+    ADDRESS_COUNTRY
+  }
+
+  @Data
+  public static class Cache {
+    @Valid private CacheSettings organisationUnits = new CacheSettings();
+
+    @Valid private CacheSettings hierarchy = new CacheSettings();
+
+    @Valid private CacheSettings optionSets = new CacheSettings();
+
+    @Valid private CacheSettings resources = new CacheSettings();
+
+    @Valid private CacheSettings fragments = new CacheSettings();
+
+    // last good search Bundles, served while DHIS2 fails for at most the ttl
+    @Valid private StaleSettings stale = new StaleSettings();
+  }
+
+  @Data
+  public static class CacheSettings {
+    private Duration ttl = Duration.ofMinutes(10);
+
+    private Duration revalidateAfter = Duration.ofSeconds(30);
+
+    @Min(1) private int maxSize = 10000;
+  }
+
+  @Data
+  public static class StaleSettings {
+    private Duration ttl = Duration.ofHours(24);
+
+    @Min(1) private int maxSize = 1000;
+
+    // whole Bundles are kept, a few large searches could otherwise fill the heap
+    private DataSize maxBytes = DataSize.ofMegabytes(64);
+  }
+
+  @Data
+  public static class Sync {
+    private boolean enabled;
+
+    private Duration delay = Duration.ofSeconds(30);
+
+    private Duration period = Duration.ofMinutes(5);
+
+    @Min(1) private int pageSize = 500;
+
+    @Min(1) private int batchSize = 100;
+
+    @NotEmpty private String watermarkFile = "sync-watermarks.properties";
+
+    @Valid private Shard shard = new Shard();
+  }
+
+  // the patient sync split over several instances by org unit subtree, see PatientShards
+  @Data
+  public static class Shard {
+    @Min(1) private int count = 1;
+
+    @Min(0) private int index;
+
+    // the units at this level and everything below them are what gets spread over the shards
+    @Min(1) private int level = 3;
+
+    @Min(1) private int unitsPerRequest = 50;
+
+    // checked at startup, an instance with no share of its own would sync nothing
+    @AssertTrue(message = "index must be below count")
+    public boolean isIndexInRange() {
+      return index < count;
+    }
+  }
+
+  @Data
+  public static class Export {
+    @NotEmpty private String directory = "exports";
+
+    @Min(1) private int concurrency = 1;
+
+    private Duration retention = Duration.ofHours(24);
+  }
+
+  @Data
+  public static class Conversion {
+    private boolean parallel;
+
+    @Min(1) private int workers = Runtime.getRuntime().availableProcessors();
+  }
+
+  // the circuit breaker, timeouts and background refreshes around the DHIS2 calls of the search
+  // routes, see StaleWhileRevalidate
+  @Data
+  public static class Resilience {
+    private Duration timeout = Duration.ofSeconds(10);
+
+    // by route id, e.g. get-fhir-patient
+    private Map<String, Duration> timeouts = new HashMap<>();
+
+    @Min(1) private int maxConcurrentCalls = 25;
+
+    @Min(1) private int failureRateThreshold = 50;
+
+    @Min(1) private int slidingWindowSize = 20;
+
+    @Min(1) private int minimumNumberOfCalls = 10;
+
+    private Duration waitInOpenState = Duration.ofSeconds(30);
+
+    private Duration retryDelay = Duration.ofSeconds(1);
+
+    private Duration maxRetryDelay = Duration.ofMinutes(1);
+
+    @Min(1) private int revalidationConcurrency = 2;
+
+    // threads the DHIS2 calls of all search routes run on, a call that timed out holds on to its
+    // thread until DHIS2 answers
+    @Min(1) private int upstreamThreads = 100;
+
+    public Duration getTimeout(String routeId) {
+      return timeouts.getOrDefault(routeId, timeout);
+    }
+  }
+
+  // a local copy of the converted resources that the /baseR4 routes answer from, see ResourceStore
+  @Data
+  public static class Store {
+    private boolean enabled;
+
+    @NotEmpty private String directory = "store";
+
+    private Duration period = Duration.ofMinutes(1);
+
+    // how often deletions are picked up, they are invisible to a lastUpdated filter
+    private Duration reconcilePeriod = Duration.ofHours(1);
+
+    @Min(1) private int pageSize = 500;
+
+    private DataSize segmentSize = DataSize.ofMegabytes(64);
   }
 }
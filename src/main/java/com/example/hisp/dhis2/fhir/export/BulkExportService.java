@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.export;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.resourceEndpoint;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.example.hisp.dhis2.fhir.cache.TerminologyCache;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders;
+import com.example.hisp.dhis2.fhir.camel.common.OperationOutcomes;
+import com.example.hisp.dhis2.fhir.camel.common.SearchParameters;
+import com.example.hisp.dhis2.fhir.camel.common.TrackedEntityPageFetcher;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Header;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.http.common.HttpMessage;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class BulkExportService {
+  public static final String NDJSON = "application/fhir+ndjson";
+
+  private static final List<String> TYPES =
+      List.of("Organization", "Location", "CodeSystem", "ValueSet", "Patient");
+
+  private static final List<String> PATIENT_TYPES = List.of("Organization", "Patient");
+
+  private static final Set<String> OUTPUT_FORMATS =
+      Set.of(NDJSON, "application/ndjson", "ndjson");
+
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  private final CamelContext camelContext;
+
+  private final FhirContext fhirContext;
+
+  private final ObjectMapper objectMapper;
+
+  private final ProducerTemplate producerTemplate;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final TerminologyCache terminologyCache;
+
+  private final TrackedEntityPageFetcher trackedEntityPageFetcher;
+
+  private final MainProperties properties;
+
+  private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+
+  private ExecutorService executorService;
+
+  @PostConstruct
+  public void init() {
+    executorService =
+        camelContext
+            .getExecutorServiceManager()
+            .newFixedThreadPool(this, "BulkExport", properties.getExport().getConcurrency());
+  }
+
+  @PreDestroy
+  public void destroy() {
+    camelContext.getExecutorServiceManager().shutdownNow(executorService);
+  }
+
+  public void kickOff(Exchange exchange) throws IOException {
+    purgeExpired();
+
+    SearchParameters search = SearchParameters.from(exchange);
+    String outputFormat = search.getFirst("_outputFormat");
+
+    if (outputFormat != null && !OUTPUT_FORMATS.contains(outputFormat)) {
+      OperationOutcomes.error(exchange, 400, "Unsupported _outputFormat: " + outputFormat);
+      return;
+    }
+
+    String url = exchange.getIn().getHeader(Exchange.HTTP_URL, String.class);
+    List<String> types = new ArrayList<>();
+
+    for (String value : search.get("_type")) {
+      for (String type : value.split(",")) {
+        if (!TYPES.contains(type)) {
+          OperationOutcomes.error(exchange, 400, "Unsupported _type: " + type);
+          return;
+        }
+
+        if (!types.contains(type)) {
+          types.add(type);
+        }
+      }
+    }
+
+    // without _type the patient level operation exports the Patients along with the Organizations
+    // their managingOrganization points at, the only other type a Patient references
+    if (types.isEmpty()) {
+      types = url.endsWith("/Patient/$export") ? PATIENT_TYPES : TYPES;
+    }
+
+    String since = search.getFirst("_since");
+    Date sinceDate;
+
+    try {
+      sinceDate = since == null ? null : new InstantType(since).getValue();
+    } catch (RuntimeException e) {
+      OperationOutcomes.error(exchange, 400, "Invalid _since: " + since);
+      return;
+    }
+
+    String query = exchange.getIn().getHeader(Exchange.HTTP_QUERY, String.class);
+    String id = UUID.randomUUID().toString();
+
+    ExportJob job =
+        new ExportJob(
+            id,
+            query == null ? url : url + "?" + query,
+            url.substring(0, url.indexOf("/baseR4") + "/baseR4".length()),
+            List.copyOf(types),
+            sinceDate,
+            new Date(),
+            Path.of(properties.getExport().getDirectory()).toAbsolutePath().resolve(id));
+
+    // registered only once it has a future, a DELETE racing the kick-off has something to cancel
+    job.setFuture(executorService.submit(() -> run(job)));
+    jobs.put(id, job);
+
+    exchange.getMessage().setHeader(Exchange.HTTP_RESPONSE_CODE, 202);
+    exchange.getMessage().setHeader("Content-Location", job.getBaseUrl() + "/bulkstatus/" + id);
+    exchange.getMessage().setBody(null);
+  }
+
+  public void status(@Header("id") String id, Exchange exchange) throws IOException {
+    ExportJob job = jobs.get(id);
+
+    if (job == null) {
+      exchange.getMessage().setBody(null);
+      OperationOutcomes.notFoundIfEmpty(exchange);
+      return;
+    }
+
+    switch (job.getStatus()) {
+      case IN_PROGRESS -> {
+        exchange.getMessage().setHeader(Exchange.HTTP_RESPONSE_CODE, 202);
+        exchange.getMessage().setHeader("X-Progress", progress(job));
+        exchange.getMessage().setHeader("Retry-After", "5");
+        exchange.getMessage().setBody(null);
+      }
+      case FAILED -> OperationOutcomes.error(exchange, 500, job.getError());
+      case COMPLETED -> {
+        exchange.getMessage().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+        exchange.getMessage().setHeader(Exchange.CONTENT_TYPE, "application/json");
+        exchange.getMessage().setBody(objectMapper.writeValueAsString(manifest(job)));
+      }
+    }
+  }
+
+  public void delete(@Header("id") String id, Exchange exchange) throws IOException {
+    ExportJob job = jobs.remove(id);
+
+    if (job == null) {
+      exchange.getMessage().setBody(null);
+      OperationOutcomes.notFoundIfEmpty(exchange);
+      return;
+    }
+
+    job.getFuture().cancel(true);
+    deleteFiles(job);
+
+    exchange.getMessage().setHeader(Exchange.HTTP_RESPONSE_CODE, 202);
+    exchange.getMessage().setBody(null);
+  }
+
+  public void download(@Header("id") String id, @Header("file") String file, Exchange exchange)
+      throws IOException {
+    ExportJob job = jobs.get(id);
+    String type = file.endsWith(".ndjson") ? file.substring(0, file.length() - 7) : file;
+
+    // only files listed in the manifest are served, nothing else under the export directory
+    if (job == null
+        || job.getStatus() != ExportJob.Status.COMPLETED
+        || !job.getCounts().containsKey(type)) {
+      exchange.getMessage().setBody(null);
+      OperationOutcomes.notFoundIfEmpty(exchange);
+      return;
+    }
+
+    Path path = job.getFile(type);
+    long size = Files.size(path);
+    HttpMessage message = exchange.getIn(HttpMessage.class);
+    HttpServletRequest request = message.getRequest();
+    HttpServletResponse response = message.getResponse();
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(NDJSON);
+    response.setContentLengthLong(size);
+
+    // Tomcat hands the file to the kernel after the servlet returned, the bytes never enter the
+    // JVM; other containers get it copied through a small buffer into the response stream
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, path.toString());
+      request.setAttribute(SENDFILE_START, 0L);
+      request.setAttribute(SENDFILE_END, size);
+    } else {
+      Files.copy(path, response.getOutputStream());
+    }
+
+    // the response is already taken care of, nothing left for the servlet binding to do
+    exchange.getMessage().setBody(null);
+  }
+
+  void run(ExportJob job) {
+    try {
+      Files.createDirectories(job.getDirectory());
+
+      for (String type : job.getTypes()) {
+        switch (type) {
+          case "Organization" -> writeOrganisationUnits(job, type, Organization.class);
+          case "Location" -> writeOrganisationUnits(job, type, Location.class);
+          case "CodeSystem" -> write(job, type, terminologyCache.getCodeSystems().iterator());
+          case "ValueSet" -> write(job, type, terminologyCache.getValueSets().iterator());
+          case "Patient" -> writePatients(job);
+          default -> throw new IllegalArgumentException(type);
+        }
+      }
+
+      job.setStatus(ExportJob.Status.COMPLETED);
+    } catch (Exception e) {
+      log.warn("Export {} failed", job.getId(), e);
+      job.setError(e.getMessage());
+      job.setStatus(ExportJob.Status.FAILED);
+    } finally {
+      job.setFinishedAt(Instant.now());
+    }
+  }
+
+  // every level of the tree in one unpaged response, Patients are managed by facility level units
+  // which the cache of the top levels does not hold
+  private void writeOrganisationUnits(
+      ExportJob job, String type, Class<? extends Resource> resourceType) throws IOException {
+    Map<String, Object> queryParams =
+        new HashMap<>(Dhis2RouteBuilders.allOrganisationUnitsQuery(SearchParameters.parse("")));
+    queryParams.keySet().removeAll(List.of("page", "pageSize", "totalPages", "order"));
+    queryParams.put("paging", "false");
+
+    try (InputStream inputStream =
+            producerTemplate.requestBodyAndHeader(
+                resourceEndpoint("organisationUnits"),
+                null,
+                QUERY_PARAMS,
+                queryParams,
+                InputStream.class);
+        Dhis2PageDecoder.Page<OrganisationUnit> organisationUnits =
+            pageDecoder.decode(inputStream, "organisationUnits", OrganisationUnit.class)) {
+      write(job, type, organisationUnits, resourceType);
+    }
+  }
+
+  private void writePatients(ExportJob job) throws IOException {
+    Map<String, Object> queryParams =
+        new HashMap<>(
+            Dhis2RouteBuilders.trackedEntitiesQuery(properties.getPatient().getProgram()));
+
+    if (job.getSince() != null) {
+      queryParams.put("lastUpdatedStartDate", Dhis2RouteBuilders.formatDate(job.getSince()));
+    }
+
+    Iterator<TrackedEntityInstance> trackedEntities =
+        trackedEntityPageFetcher.fetch(queryParams, "export-fhir-job");
+
+    try {
+      write(job, "Patient", trackedEntities, Patient.class);
+    } finally {
+      if (trackedEntities instanceof Closeable closeable) {
+        closeable.close();
+      }
+    }
+  }
+
+  private <T> void write(
+      ExportJob job, String type, Iterator<T> items, Class<? extends Resource> resourceType)
+      throws IOException {
+    write(
+        job,
+        type,
+        new Iterator<Resource>() {
+          @Override
+          public boolean hasNext() {
+            return items.hasNext();
+          }
+
+          @Override
+          public Resource next() {
+            return camelContext.getTypeConverter().convertTo(resourceType, items.next());
+          }
+        });
+  }
+
+  // written under a temporary name, a file listed in the manifest is always complete
+  private void write(ExportJob job, String type, Iterator<? extends Resource> resources)
+      throws IOException {
+    IParser parser = fhirContext.newJsonParser();
+    Path file = job.getFile(type);
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    long count = 0;
+
+    try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      while (resources.hasNext()) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new IOException("Export " + job.getId() + " was cancelled");
+        }
+
+        Resource resource = resources.next();
+
+        // DHIS2 only narrows tracked entities by lastUpdated, everything else is filtered here
+        if (job.getSince() != null
+            && resource.getMeta().getLastUpdated() != null
+            && resource.getMeta().getLastUpdated().before(job.getSince())) {
+          continue;
+        }
+
+        parser.encodeResourceToWriter(resource, writer);
+        writer.write('\n');
+        count++;
+      }
+    }
+
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    job.getCounts().put(type, count);
+  }
+
+  private String progress(ExportJob job) {
+    return "%d of %d resource types written"
+        .formatted(job.getCounts().size(), job.getTypes().size());
+  }
+
+  private Map<String, Object> manifest(ExportJob job) {
+    List<Map<String, Object>> output = new ArrayList<>();
+
+    for (String type : job.getTypes()) {
+      Map<String, Object> file = new LinkedHashMap<>();
+      file.put("type", type);
+      file.put("url", job.getBaseUrl() + "/bulkfiles/" + job.getId() + "/" + type + ".ndjson");
+      file.put("count", job.getCounts().get(type));
+      output.add(file);
+    }
+
+    Map<String, Object> manifest = new LinkedHashMap<>();
+    manifest.put(
+        "transactionTime",
+        OffsetDateTime.ofInstant(job.getTransactionTime().toInstant(), ZoneOffset.UTC).toString());
+    manifest.put("request", job.getRequest());
+    manifest.put("requiresAccessToken", false);
+    manifest.put("output", output);
+    manifest.put("error", List.of());
+
+    return manifest;
+  }
+
+  private void purgeExpired() {
+    Instant expired = Instant.now().minus(properties.getExport().getRetention());
+
+    jobs.values()
+        .removeIf(
+            job -> {
+              if (job.getFinishedAt() == null || job.getFinishedAt().isAfter(expired)) {
+                return false;
+              }
+
+              deleteFiles(job);
+              return true;
+            });
+  }
+
+  private void deleteFiles(ExportJob job) {
+    if (!Files.exists(job.getDirectory())) {
+      return;
+    }
+
+    try (Stream<Path> paths = Files.walk(job.getDirectory())) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    } catch (IOException e) {
+      log.warn("Could not delete the files of export {}", job.getId(), e);
+    }
+  }
+}
@@ -0,0 +1,637 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.store;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.stereotype.Component;
+
+// Converted resources in append-only segment files with the id index in memory. Every put, delete
+// and watermark is a frame of length, payload and CRC appended to the active segment; the index
+// keeps where the latest frame of each resource is, along with the few fields searches filter on,
+// so a search never reads a body it does not return. On startup the segments are replayed in order
+// to rebuild the index, and a frame cut short by a crash is cut off. Overwritten and deleted
+// frames are dropped by rewriting the live ones once they outweigh them. Two smaller indexes, org
+// units by parent and resources by identifier value, spare searches a walk over a whole type.
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ResourceStore implements MeterBinder {
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private static final byte PUT = 0;
+
+  private static final byte DELETE = 1;
+
+  private static final byte WATERMARK = 2;
+
+  private static final Set<String> HIERARCHY_TYPES = Set.of("Organization", "Location");
+
+  // the parent key of the top units
+  private static final String NO_PARENT = "";
+
+  private final FhirContext fhirContext;
+
+  private final MainProperties properties;
+
+  private final Map<String, ConcurrentSkipListMap<String, Entry>> index = new ConcurrentHashMap<>();
+
+  private final Map<String, Map<String, Set<String>>> children = new ConcurrentHashMap<>();
+
+  private final Map<String, Map<String, Set<String>>> identifierValues = new ConcurrentHashMap<>();
+
+  private final Map<String, Date> watermarks = new ConcurrentHashMap<>();
+
+  private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+
+  private final AtomicLong liveBytes = new AtomicLong();
+
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  private Path directory;
+
+  private int activeSegment;
+
+  private FileChannel active;
+
+  private long activeSize;
+
+  @PostConstruct
+  public synchronized void open() throws IOException {
+    if (!properties.getStore().isEnabled()) {
+      return;
+    }
+
+    directory = Path.of(properties.getStore().getDirectory()).toAbsolutePath();
+    Files.createDirectories(directory);
+
+    List<Integer> numbers = segmentNumbers();
+
+    for (int i = 0; i < numbers.size(); i++) {
+      recover(numbers.get(i), i == numbers.size() - 1);
+    }
+
+    activeSegment = numbers.isEmpty() ? 1 : numbers.get(numbers.size() - 1);
+    active = openSegment(activeSegment);
+    activeSize = active.size();
+
+    log.info(
+        "Opened the resource store in {}, {} resources in {} segments",
+        directory,
+        size(),
+        segments.size());
+  }
+
+  @PreDestroy
+  public synchronized void close() throws IOException {
+    if (active != null) {
+      active.force(false);
+    }
+
+    for (FileChannel channel : segments.values()) {
+      channel.close();
+    }
+
+    segments.clear();
+  }
+
+  public void put(Resource resource) throws IOException {
+    String json = fhirContext.newJsonParser().encodeResourceToString(resource);
+    append(Record.of(resource, json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public void delete(String type, String id) throws IOException {
+    append(new Record(DELETE, type, id, -1, "", "", List.of(), new byte[0]));
+  }
+
+  public Optional<Entry> get(String type, String id) {
+    ConcurrentSkipListMap<String, Entry> entries = index.get(type);
+    return entries == null ? Optional.empty() : Optional.ofNullable(entries.get(id));
+  }
+
+  // ordered by id, so paging through a search is stable
+  public Collection<Entry> entries(String type) {
+    ConcurrentSkipListMap<String, Entry> entries = index.get(type);
+    return entries == null ? List.of() : entries.values();
+  }
+
+  // the ids of the units with this parent, the top units for null
+  public Set<String> children(String type, String parent) {
+    return lookup(children, type, parent == null ? NO_PARENT : parent);
+  }
+
+  // every parent some unit points at, whether or not the parent itself is stored, and the empty
+  // string when there are top units
+  public Set<String> parents(String type) {
+    Map<String, Set<String>> parents = children.get(type);
+    return parents == null ? Set.of() : parents.keySet();
+  }
+
+  // the ids of the resources with an identifier of this value, whatever its system
+  public Set<String> withIdentifierValue(String type, String value) {
+    return lookup(identifierValues, type, value);
+  }
+
+  // null once the resource is gone
+  public byte[] read(Entry entry) throws IOException {
+    FileChannel channel = segments.get(entry.segment());
+
+    try {
+      if (channel != null) {
+        return Record.decode(readPayload(channel, entry)).body();
+      }
+    } catch (ClosedChannelException e) {
+      // the segment was compacted away while reading, the index already points elsewhere
+    }
+
+    Optional<Entry> current = get(entry.type(), entry.id());
+
+    return current.isEmpty() || current.get().equals(entry) ? null : read(current.get());
+  }
+
+  public Optional<Date> getWatermark(String path) {
+    return Optional.ofNullable(watermarks.get(path));
+  }
+
+  // everything the watermark covers is forced to disk before the watermark itself is written
+  public synchronized void setWatermark(String path, Date lastUpdated) throws IOException {
+    active.force(false);
+    append(new Record(WATERMARK, "", path, lastUpdated.getTime(), "", "", List.of(), new byte[0]));
+    active.force(false);
+  }
+
+  public int size() {
+    return index.values().stream().mapToInt(Map::size).sum();
+  }
+
+  // rewrites the live frames into new segments once overwritten and deleted ones outweigh them
+  public synchronized void compact() throws IOException {
+    long dead = deadBytes();
+
+    if (dead < liveBytes.get() || dead < properties.getStore().getSegmentSize().toBytes()) {
+      return;
+    }
+
+    List<Integer> compacted = segmentNumbers();
+    roll();
+
+    // only the copies are left on disk afterwards; every copy replaces a frame of the same length
+    // in the index, so the live bytes stay as they are
+    totalBytes.set(0);
+
+    for (ConcurrentSkipListMap<String, Entry> entries : index.values()) {
+      for (Entry entry : entries.values()) {
+        append(Record.decode(readPayload(segments.get(entry.segment()), entry)));
+      }
+    }
+
+    for (Map.Entry<String, Date> watermark : watermarks.entrySet()) {
+      append(
+          new Record(
+              WATERMARK,
+              "",
+              watermark.getKey(),
+              watermark.getValue().getTime(),
+              "",
+              "",
+              List.of(),
+              new byte[0]));
+    }
+
+    active.force(false);
+
+    // a crash before this point replays the old segments and then the copies, which is the same
+    for (int segment : compacted) {
+      segments.remove(segment).close();
+      Files.delete(segmentPath(segment));
+    }
+
+    log.info("Compacted the resource store, {} bytes dropped", dead);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    Gauge.builder("dhis2fhir.store.resources", this, ResourceStore::size)
+        .description("Resources in the local store")
+        .register(registry);
+
+    Gauge.builder("dhis2fhir.store.segments", segments, Map::size)
+        .description("Segment files of the local store")
+        .register(registry);
+
+    Gauge.builder("dhis2fhir.store.bytes", liveBytes, AtomicLong::get)
+        .description("Bytes of the local store holding current resources")
+        .baseUnit("bytes")
+        .tag("state", "live")
+        .register(registry);
+
+    Gauge.builder("dhis2fhir.store.bytes", this, ResourceStore::deadBytes)
+        .description("Bytes of the local store that compaction would drop")
+        .baseUnit("bytes")
+        .tag("state", "dead")
+        .register(registry);
+  }
+
+  private long deadBytes() {
+    return totalBytes.get() - liveBytes.get();
+  }
+
+  private synchronized void append(Record record) throws IOException {
+    byte[] payload = record.encode();
+    ByteBuffer frame = ByteBuffer.allocate(payload.length + 8);
+    frame.putInt(payload.length).put(payload).putInt(crc(payload)).flip();
+
+    if (activeSize > 0
+        && activeSize + frame.remaining() > properties.getStore().getSegmentSize().toBytes()) {
+      roll();
+    }
+
+    long position = activeSize;
+
+    while (frame.hasRemaining()) {
+      active.write(frame, position + frame.position());
+    }
+
+    activeSize += frame.capacity();
+    apply(record, new Entry(record, activeSegment, position, frame.capacity()));
+  }
+
+  private void roll() throws IOException {
+    active.force(false);
+    activeSegment++;
+    active = openSegment(activeSegment);
+    activeSize = 0;
+  }
+
+  private void apply(Record record, Entry entry) {
+    totalBytes.addAndGet(entry.length());
+
+    switch (record.op()) {
+      case PUT -> {
+        Entry previous =
+            index
+                .computeIfAbsent(record.type(), type -> new ConcurrentSkipListMap<>())
+                .put(record.id(), entry);
+
+        liveBytes.addAndGet(entry.length() - (previous == null ? 0 : previous.length()));
+
+        if (previous != null) {
+          unindex(previous);
+        }
+
+        index(entry);
+      }
+      case DELETE -> {
+        Entry previous = get(record.type(), record.id()).orElse(null);
+
+        if (previous != null) {
+          index.get(record.type()).remove(record.id());
+          liveBytes.addAndGet(-previous.length());
+          unindex(previous);
+        }
+      }
+      case WATERMARK -> watermarks.put(record.id(), new Date(record.lastUpdated()));
+      default -> throw new IllegalStateException("Unknown store record " + record.op());
+    }
+  }
+
+  private void index(Entry entry) {
+    if (HIERARCHY_TYPES.contains(entry.type())) {
+      children
+          .computeIfAbsent(entry.type(), type -> new ConcurrentHashMap<>())
+          .computeIfAbsent(parentKey(entry), parent -> ConcurrentHashMap.newKeySet())
+          .add(entry.id());
+    }
+
+    for (String identifier : entry.identifiers()) {
+      identifierValues
+          .computeIfAbsent(entry.type(), type -> new ConcurrentHashMap<>())
+          .computeIfAbsent(identifierValue(identifier), value -> ConcurrentHashMap.newKeySet())
+          .add(entry.id());
+    }
+  }
+
+  private void unindex(Entry entry) {
+    if (HIERARCHY_TYPES.contains(entry.type())) {
+      remove(children, entry.type(), parentKey(entry), entry.id());
+    }
+
+    for (String identifier : entry.identifiers()) {
+      remove(identifierValues, entry.type(), identifierValue(identifier), entry.id());
+    }
+  }
+
+  private static void remove(
+      Map<String, Map<String, Set<String>>> secondary, String type, String key, String id) {
+    Map<String, Set<String>> ids = secondary.get(type);
+
+    if (ids != null) {
+      ids.computeIfPresent(
+          key,
+          (k, set) -> {
+            set.remove(id);
+            return set.isEmpty() ? null : set;
+          });
+    }
+  }
+
+  private static Set<String> lookup(
+      Map<String, Map<String, Set<String>>> secondary, String type, String key) {
+    Map<String, Set<String>> ids = secondary.get(type);
+    Set<String> found = ids == null ? null : ids.get(key);
+    return found == null ? Set.of() : Set.copyOf(found);
+  }
+
+  private static String parentKey(Entry entry) {
+    return entry.partOf() == null ? NO_PARENT : entry.partOf();
+  }
+
+  // identifiers are kept as system|value
+  private static String identifierValue(String identifier) {
+    return identifier.substring(identifier.indexOf('|') + 1);
+  }
+
+  private void recover(int segment, boolean last) throws IOException {
+    Path path = segmentPath(segment);
+    long size = Files.size(path);
+    long position = 0;
+
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      while (position < size) {
+        int length = in.readInt();
+
+        if (length <= 0 || position + length + 8 > size) {
+          break;
+        }
+
+        byte[] payload = in.readNBytes(length);
+
+        if (crc(payload) != in.readInt()) {
+          break;
+        }
+
+        Record record = Record.decode(payload);
+        apply(record, new Entry(record, segment, position, length + 8));
+        position += length + 8;
+      }
+    } catch (EOFException e) {
+      // a frame whose length made it to disk but not all of its payload
+    }
+
+    if (position < size) {
+      log.warn("Dropping {} bytes of an incomplete write at the end of {}", size - position, path);
+
+      if (last) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+          channel.truncate(position);
+        }
+      }
+    }
+
+    if (!last) {
+      segments.put(segment, FileChannel.open(path, StandardOpenOption.READ));
+    }
+  }
+
+  private FileChannel openSegment(int segment) throws IOException {
+    FileChannel channel =
+        FileChannel.open(
+            segmentPath(segment),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+
+    segments.put(segment, channel);
+    return channel;
+  }
+
+  private List<Integer> segmentNumbers() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+          .map(name -> name.substring(SEGMENT_PREFIX.length(), name.indexOf(SEGMENT_SUFFIX)))
+          .map(Integer::parseInt)
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private Path segmentPath(int segment) {
+    return directory.resolve(SEGMENT_PREFIX + "%08d".formatted(segment) + SEGMENT_SUFFIX);
+  }
+
+  private static byte[] readPayload(FileChannel channel, Entry entry) throws IOException {
+    ByteBuffer frame = ByteBuffer.allocate(entry.length());
+
+    while (frame.hasRemaining()) {
+      if (channel.read(frame, entry.position() + frame.position()) < 0) {
+        throw new EOFException("Store frame cut short at " + entry.position());
+      }
+    }
+
+    byte[] payload = new byte[entry.length() - 8];
+    frame.flip();
+    frame.getInt();
+    frame.get(payload);
+
+    return payload;
+  }
+
+  private static int crc(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  // where the latest frame of a resource is and what searches filter on, identifiers are kept as
+  // system|value
+  public record Entry(
+      String type,
+      String id,
+      long lastUpdated,
+      String name,
+      String partOf,
+      List<String> identifiers,
+      int segment,
+      long position,
+      int length) {
+    Entry(Record record, int segment, long position, int length) {
+      this(
+          record.type(),
+          record.id(),
+          record.lastUpdated(),
+          record.name().isEmpty() ? null : record.name(),
+          record.partOf().isEmpty() ? null : record.partOf(),
+          record.identifiers(),
+          segment,
+          position,
+          length);
+    }
+  }
+
+  record Record(
+      byte op,
+      String type,
+      String id,
+      long lastUpdated,
+      String name,
+      String partOf,
+      List<String> identifiers,
+      byte[] body) {
+    static Record of(Resource resource, byte[] body) {
+      List<Identifier> identifiers = List.of();
+      String name = null;
+      Reference partOf = null;
+
+      if (resource instanceof Organization organization) {
+        identifiers = organization.getIdentifier();
+        name = organization.getName();
+        partOf = organization.getPartOf();
+      } else if (resource instanceof Location location) {
+        identifiers = location.getIdentifier();
+        name = location.getName();
+        partOf = location.getPartOf();
+      } else if (resource instanceof Patient patient) {
+        identifiers = patient.getIdentifier();
+        name =
+            patient.getName().stream()
+                .map(HumanName::getNameAsSingleString)
+                .collect(Collectors.joining(" "));
+      } else if (resource instanceof CodeSystem codeSystem) {
+        identifiers = codeSystem.getIdentifier();
+        name = codeSystem.getTitle();
+      } else if (resource instanceof ValueSet valueSet) {
+        identifiers = valueSet.getIdentifier();
+        name = valueSet.getTitle();
+      }
+
+      Date lastUpdated = resource.getMeta().getLastUpdated();
+
+      return new Record(
+          PUT,
+          resource.fhirType(),
+          resource.getIdElement().getIdPart(),
+          lastUpdated == null ? -1 : lastUpdated.getTime(),
+          name == null ? "" : name,
+          partOf == null || !partOf.hasReference() ? "" : partOf.getReferenceElement().getIdPart(),
+          identifiers.stream()
+              .map(identifier -> identifier.getSystem() + "|" + identifier.getValue())
+              .toList(),
+          body);
+    }
+
+    byte[] encode() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 256);
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      out.writeByte(op);
+      out.writeUTF(type);
+      out.writeUTF(id);
+      out.writeLong(lastUpdated);
+      out.writeUTF(name);
+      out.writeUTF(partOf);
+      out.writeShort(identifiers.size());
+
+      for (String identifier : identifiers) {
+        out.writeUTF(identifier);
+      }
+
+      out.writeInt(body.length);
+      out.write(body);
+
+      return bytes.toByteArray();
+    }
+
+    static Record decode(byte[] payload) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+      byte op = in.readByte();
+      String type = in.readUTF();
+      String id = in.readUTF();
+      long lastUpdated = in.readLong();
+      String name = in.readUTF();
+      String partOf = in.readUTF();
+      List<String> identifiers = new ArrayList<>();
+
+      for (int i = in.readShort(); i > 0; i--) {
+        identifiers.add(in.readUTF());
+      }
+
+      byte[] body = in.readNBytes(in.readInt());
+
+      return new Record(op, type, id, lastUpdated, name, partOf, List.copyOf(identifiers), body);
+    }
+  }
+}
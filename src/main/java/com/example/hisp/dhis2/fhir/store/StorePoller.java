@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.store;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.resourceEndpoint;
+
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders;
+import com.example.hisp.dhis2.fhir.camel.common.SearchParameters;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.example.hisp.dhis2.fhir.sync.SyncWatermarks.Watermark;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.api.model.v2_39_1.OptionSet;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.stereotype.Component;
+
+// Keeps the resource store current. Every run asks DHIS2 only for what changed since the
+// watermark of each path, converts it the same way the live routes do and writes it to the store.
+// A lastUpdated filter never returns what was deleted, so every reconcile period the ids that still
+// exist are fetched and whatever the store has beyond them is dropped. Until every path has been
+// polled through once, in this run or a previous one, the store is not ready to answer from.
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class StorePoller {
+  private static final List<String> PATHS =
+      List.of("organisationUnits", "optionSets", "trackedEntityInstances");
+
+  private final CamelContext camelContext;
+
+  private final ProducerTemplate producerTemplate;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final ResourceStore store;
+
+  private final MainProperties properties;
+
+  private Instant reconciledAt = Instant.EPOCH;
+
+  private volatile boolean ready;
+
+  // a watermark is only written once its path was polled through, an empty path has none
+  public boolean isReady() {
+    return ready || PATHS.stream().allMatch(path -> store.getWatermark(path).isPresent());
+  }
+
+  public synchronized void run() throws Exception {
+    boolean reconcile =
+        reconciledAt.plus(properties.getStore().getReconcilePeriod()).isBefore(Instant.now());
+    boolean complete = true;
+
+    complete &=
+        poll(
+            "organisationUnits",
+            Dhis2RouteBuilders.allOrganisationUnitsQuery(SearchParameters.parse("")),
+            Dhis2RouteBuilders::metadataChangesQuery,
+            OrganisationUnit.class,
+            ou -> ou.getId().orElse(null),
+            ou -> ou.getLastUpdated().orElse(null),
+            List.of(Organization.class, Location.class),
+            reconcile);
+
+    complete &=
+        poll(
+            "optionSets",
+            Dhis2RouteBuilders.optionSetsQuery(SearchParameters.parse("")),
+            Dhis2RouteBuilders::metadataChangesQuery,
+            OptionSet.class,
+            os -> os.getId().orElse(null),
+            os -> os.getLastUpdated().orElse(null),
+            List.of(CodeSystem.class, ValueSet.class),
+            reconcile);
+
+    complete &=
+        poll(
+            "trackedEntityInstances",
+            Dhis2RouteBuilders.trackedEntitiesQuery(properties.getPatient().getProgram()),
+            Dhis2RouteBuilders::trackedEntityChangesQuery,
+            TrackedEntityInstance.class,
+            TrackedEntityInstance::getTrackedEntityInstance,
+            te ->
+                te.getLastUpdated() == null
+                    ? null
+                    : Date.from(LocalDateTime.parse(te.getLastUpdated()).toInstant(ZoneOffset.UTC)),
+            List.of(Patient.class),
+            reconcile);
+
+    if (reconcile && complete) {
+      reconciledAt = Instant.now();
+    }
+
+    ready |= complete;
+
+    store.compact();
+  }
+
+  // Pages oldest first and starts the next page after the newest record it has seen, like the
+  // sync does, so a record deleted or changed while it runs cannot shift another past a page
+  // boundary. A page that holds nothing but records of the timestamp it started from moves on by
+  // page number instead. The watermark is inclusive, the records sharing its timestamp are stored
+  // again next run, which only costs the space compaction gets back.
+  private <T> boolean poll(
+      String path,
+      Map<String, Object> queryParams,
+      ChangesQuery changesQuery,
+      Class<T> itemType,
+      Function<T, String> id,
+      Function<T, Date> lastUpdated,
+      List<Class<? extends Resource>> resourceTypes,
+      boolean reconcile) {
+    int pageSize = properties.getStore().getPageSize();
+    Watermark cursor =
+        store.getWatermark(path).map(date -> new Watermark(date, Set.of())).orElse(null);
+    Date since = cursor == null ? null : cursor.lastUpdated();
+    int page = 1;
+    int read;
+    int changed = 0;
+
+    try {
+      do {
+        read = 0;
+
+        try (InputStream inputStream =
+                fetch(path, changesQuery.apply(queryParams, since, page, pageSize));
+            Dhis2PageDecoder.Page<T> items = pageDecoder.decode(inputStream, path, itemType)) {
+          while (items.hasNext()) {
+            T item = items.next();
+            Date itemLastUpdated = lastUpdated.apply(item);
+            String itemId = id.apply(item);
+            read++;
+
+            // already stored from an earlier page of this run
+            if (cursor != null
+                && itemLastUpdated != null
+                && cursor.covers(itemLastUpdated, itemId)) {
+              continue;
+            }
+
+            for (Class<? extends Resource> resourceType : resourceTypes) {
+              store.put(camelContext.getTypeConverter().mandatoryConvertTo(resourceType, item));
+            }
+
+            if (itemLastUpdated != null) {
+              cursor =
+                  cursor == null
+                      ? new Watermark(itemLastUpdated, Set.of(itemId))
+                      : cursor.advance(itemLastUpdated, itemId);
+            }
+
+            changed++;
+          }
+        }
+
+        if (cursor != null && (since == null || cursor.lastUpdated().after(since))) {
+          since = cursor.lastUpdated();
+          page = 1;
+        } else {
+          page++;
+        }
+      } while (read >= pageSize);
+
+      if (cursor != null) {
+        store.setWatermark(path, cursor.lastUpdated());
+      }
+
+      int deleted = reconcile ? reconcile(path, queryParams, resourceTypes) : 0;
+
+      if (changed > 0 || deleted > 0) {
+        log.info("Stored {} changed and dropped {} deleted {}", changed, deleted, path);
+      }
+
+      return true;
+    } catch (Exception e) {
+      log.warn("Polling {} failed, continuing from the previous watermark next run", path, e);
+      return false;
+    }
+  }
+
+  // the same query without paging and down to the ids, anything else in the store was deleted
+  private int reconcile(
+      String path, Map<String, Object> query, List<Class<? extends Resource>> resourceTypes)
+      throws Exception {
+    boolean tracker = "trackedEntityInstances".equals(path);
+    Map<String, Object> queryParams = new HashMap<>(query);
+    queryParams.keySet().removeAll(List.of("page", "pageSize", "totalPages", "order"));
+    queryParams.put("fields", tracker ? "trackedEntityInstance" : "id");
+    queryParams.put(tracker ? "skipPaging" : "paging", tracker ? "true" : "false");
+
+    Set<String> ids = new HashSet<>();
+
+    try (InputStream inputStream = fetch(path, queryParams);
+        Dhis2PageDecoder.Page<Id> items = pageDecoder.decode(inputStream, path, Id.class)) {
+      items.forEachRemaining(item -> ids.add(item.id()));
+    }
+
+    int deleted = 0;
+
+    for (Class<? extends Resource> resourceType : resourceTypes) {
+      String type = resourceType.getSimpleName();
+
+      for (ResourceStore.Entry entry : store.entries(type)) {
+        if (!ids.contains(entry.id())) {
+          store.delete(type, entry.id());
+          deleted++;
+        }
+      }
+    }
+
+    return deleted;
+  }
+
+  private InputStream fetch(String path, Map<String, Object> queryParams) {
+    return producerTemplate.requestBodyAndHeader(
+        resourceEndpoint(path), null, QUERY_PARAMS, queryParams, InputStream.class);
+  }
+
+  @FunctionalInterface
+  interface ChangesQuery {
+    Map<String, Object> apply(
+        Map<String, Object> queryParams, Date since, int page, int pageSize);
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Id(String id, String trackedEntityInstance) {
+    @Override
+    public String id() {
+      return id != null ? id : trackedEntityInstance;
+    }
+  }
+}
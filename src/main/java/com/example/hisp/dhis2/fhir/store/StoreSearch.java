@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.store;
+
+import com.example.hisp.dhis2.fhir.camel.common.ConditionalRequests;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2Search;
+import com.example.hisp.dhis2.fhir.camel.common.OperationOutcomes;
+import com.example.hisp.dhis2.fhir.camel.common.SearchBundles;
+import com.example.hisp.dhis2.fhir.camel.common.SearchParameters;
+import com.example.hisp.dhis2.fhir.store.ResourceStore.Entry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import lombok.RequiredArgsConstructor;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.springframework.stereotype.Component;
+
+// Searches and reads answered from the resource store. The parameters mean what they mean on the
+// live routes, but are tested against the store index instead of being turned into DHIS2 filters;
+// the org unit tree is walked through the partOf references the store already has. Ids,
+// identifiers and the tree narrow a search down through the store indexes first, so only a search
+// by name, date or level alone goes over every resource of the type.
+@Component
+@RequiredArgsConstructor
+public class StoreSearch {
+  private static final int DEFAULT_MAX_LEVEL = 2;
+
+  // a cycle in the partOf references must not hang a search
+  private static final int MAX_DEPTH = 64;
+
+  private final ResourceStore store;
+
+  public void search(String type, Exchange exchange) throws IOException {
+    SearchParameters search = SearchParameters.from(exchange);
+    Predicate<Entry> filter = filter(type, search);
+    List<Entry> matches = new ArrayList<>();
+    long lastUpdated = -1;
+
+    for (Entry entry : candidates(type, search)) {
+      if (filter.test(entry)) {
+        matches.add(entry);
+        lastUpdated = Math.max(lastUpdated, entry.lastUpdated());
+      }
+    }
+
+    exchange.setProperty(
+        ConditionalRequests.VERSION_PROPERTY,
+        new ConditionalRequests.Version(
+            matches.size(), lastUpdated < 0 ? null : new Date(lastUpdated)));
+
+    ConditionalRequests.evaluate(exchange);
+
+    if (ConditionalRequests.isNotModified(exchange)) {
+      return;
+    }
+
+    int count = search.getCount();
+    int from = (int) Math.min(matches.size(), (long) (search.getPage() - 1) * count);
+    int to = (int) Math.min(matches.size(), (long) from + count);
+    List<byte[]> fragments = new ArrayList<>(to - from);
+
+    for (Entry entry : matches.subList(from, to)) {
+      byte[] body = store.read(entry);
+
+      // deleted since the index was walked
+      if (body != null) {
+        fragments.add(body);
+      }
+    }
+
+    exchange.setProperty(
+        Dhis2Search.PAGER_PROPERTY,
+        new Dhis2PageDecoder.Pager(search.getPage(), count, null, matches.size()));
+
+    exchange.getMessage().setBody(fragments);
+    SearchBundles.complete(exchange);
+  }
+
+  public void read(String type, Exchange exchange) throws IOException {
+    String id = exchange.getIn().getHeader("id", String.class);
+    Optional<Entry> entry = store.get(type, id);
+    byte[] body = entry.isPresent() ? store.read(entry.get()) : null;
+
+    if (body == null) {
+      exchange.getMessage().setBody(null);
+      OperationOutcomes.notFoundIfEmpty(exchange);
+      return;
+    }
+
+    long lastUpdated = entry.get().lastUpdated();
+    exchange.setProperty(
+        ConditionalRequests.VERSION_PROPERTY,
+        new ConditionalRequests.Version(1, lastUpdated < 0 ? null : new Date(lastUpdated)));
+
+    ConditionalRequests.evaluate(exchange);
+
+    if (ConditionalRequests.isNotModified(exchange)) {
+      return;
+    }
+
+    exchange.getMessage().setHeader(Exchange.CONTENT_TYPE, SearchBundles.FHIR_JSON);
+    exchange.getMessage().setBody(body);
+  }
+
+  // a superset of the matches in id order, so paging stays stable
+  private Collection<Entry> candidates(String type, SearchParameters search) {
+    List<String> ids = search.getIds();
+
+    if (!ids.isEmpty()) {
+      return entries(type, ids);
+    }
+
+    List<String> identifiers = search.get(SearchParameters.IDENTIFIER);
+
+    if (!identifiers.isEmpty()) {
+      String value = Dhis2RouteBuilders.splitToken(identifiers.get(0))[1];
+      Set<String> matching = new HashSet<>(store.withIdentifierValue(type, value));
+
+      // the value may be the DHIS2 id, see hasIdentifier
+      matching.add(value);
+
+      return entries(type, matching);
+    }
+
+    if (!isHierarchy(type)) {
+      return store.entries(type);
+    }
+
+    List<String> partOf = search.getReferenceIds(SearchParameters.PART_OF);
+    List<String> below = search.getReferenceIds(SearchParameters.PART_OF_BELOW);
+
+    if (!partOf.isEmpty()) {
+      Set<String> children = new HashSet<>();
+      partOf.forEach(parent -> children.addAll(store.children(type, parent)));
+
+      return entries(type, children);
+    }
+
+    if (!below.isEmpty()) {
+      return entries(type, descendants(type, below.get(0), MAX_DEPTH));
+    }
+
+    // the top levels, counted from the top units and from units whose parent is not stored, as
+    // a DHIS2 user restricted to a branch sees them
+    if (!search.isHierarchySearch()) {
+      Set<String> top = new HashSet<>();
+
+      for (String parent : store.parents(type)) {
+        if (parent.isEmpty() || store.get(type, parent).isEmpty()) {
+          top.addAll(descendants(type, parent.isEmpty() ? null : parent, DEFAULT_MAX_LEVEL));
+        }
+      }
+
+      return entries(type, top);
+    }
+
+    return store.entries(type);
+  }
+
+  private List<Entry> entries(String type, Collection<String> ids) {
+    return new TreeSet<>(ids).stream()
+        .map(id -> store.get(type, id))
+        .flatMap(Optional::stream)
+        .toList();
+  }
+
+  // breadth first at most depth levels below a unit, or below the top units for null
+  private Set<String> descendants(String type, String unit, int depth) {
+    Set<String> descendants = new HashSet<>();
+    Collection<String> level = store.children(type, unit);
+
+    for (int i = 0; i < depth && !level.isEmpty(); i++) {
+      List<String> next = new ArrayList<>();
+
+      for (String id : level) {
+        // a cycle in the partOf references must not hang a search
+        if (descendants.add(id)) {
+          next.addAll(store.children(type, id));
+        }
+      }
+
+      level = next;
+    }
+
+    return descendants;
+  }
+
+  private Predicate<Entry> filter(String type, SearchParameters search) {
+    Predicate<Entry> filter = entry -> true;
+    List<String> ids = search.getIds();
+
+    if (!ids.isEmpty()) {
+      Set<String> wanted = Set.copyOf(ids);
+      filter = filter.and(entry -> wanted.contains(entry.id()));
+    }
+
+    for (String identifier : search.get(SearchParameters.IDENTIFIER)) {
+      String[] token = Dhis2RouteBuilders.splitToken(identifier);
+      filter = filter.and(entry -> hasIdentifier(entry, token[0], token[1]));
+    }
+
+    for (String name : search.get(SearchParameters.NAME)) {
+      String lowerCase = name.toLowerCase(Locale.ROOT);
+      filter = filter.and(entry -> hasName(entry, lowerCase));
+    }
+
+    for (String lastUpdated : search.get(SearchParameters.LAST_UPDATED)) {
+      filter = filter.and(lastUpdated(lastUpdated));
+    }
+
+    if (isHierarchy(type)) {
+      filter = filter.and(hierarchy(type, search));
+    }
+
+    return filter;
+  }
+
+  private static boolean isHierarchy(String type) {
+    return "Organization".equals(type) || "Location".equals(type);
+  }
+
+  private static boolean hasName(Entry entry, String lowerCase) {
+    return entry.name() != null && entry.name().toLowerCase(Locale.ROOT).contains(lowerCase);
+  }
+
+  // without a system the value may also be the DHIS2 id, as on the live routes
+  private static boolean hasIdentifier(Entry entry, String system, String value) {
+    if (system == null) {
+      return entry.id().equals(value)
+          || entry.identifiers().stream().anyMatch(i -> i.endsWith("|" + value));
+    }
+
+    return entry.identifiers().contains(system + "|" + value)
+        || (system.endsWith("/trackedEntityInstances") && entry.id().equals(value));
+  }
+
+  // like the live routes, the top two levels unless the search says where in the tree to look
+  private Predicate<Entry> hierarchy(String type, SearchParameters search) {
+    IntPredicate levels =
+        search.isHierarchySearch()
+            ? Dhis2RouteBuilders.levels(search)
+            : level -> level <= DEFAULT_MAX_LEVEL;
+    List<String> partOf = search.getReferenceIds(SearchParameters.PART_OF);
+    Set<String> below = null;
+
+    for (String unit : search.getReferenceIds(SearchParameters.PART_OF_BELOW)) {
+      Set<String> descendants = descendants(type, unit, MAX_DEPTH);
+
+      if (below == null) {
+        below = descendants;
+      } else {
+        below.retainAll(descendants);
+      }
+    }
+
+    Set<String> descendants = below;
+    Map<String, Integer> known = new HashMap<>();
+
+    return entry -> {
+      if (!partOf.isEmpty() && (entry.partOf() == null || !partOf.contains(entry.partOf()))) {
+        return false;
+      }
+
+      return (descendants == null || descendants.contains(entry.id()))
+          && levels.test(level(type, entry.id(), known));
+    };
+  }
+
+  // counted up through partOf, a parent that is not stored counts as a level of its own; every unit
+  // on the way is remembered for the rest of the search
+  private int level(String type, String id, Map<String, Integer> known) {
+    List<String> path = new ArrayList<>();
+    String unit = id;
+    int level = 0;
+
+    while (unit != null && path.size() < MAX_DEPTH) {
+      Integer above = known.get(unit);
+
+      if (above != null) {
+        level = above;
+        break;
+      }
+
+      path.add(unit);
+      unit = store.get(type, unit).map(Entry::partOf).orElse(null);
+    }
+
+    for (int i = path.size() - 1; i >= 0; i--) {
+      known.put(path.get(i), ++level);
+    }
+
+    return known.get(id);
+  }
+
+  // the value covers its whole precision, eq2023-01 is all of January
+  private static Predicate<Entry> lastUpdated(String value) {
+    String[] prefixed = Dhis2RouteBuilders.splitPrefix(value);
+    DateTimeType date = new DateTimeType(prefixed[1]);
+    long from = date.getValue().getTime();
+    long to = date.getPrecision().add(date.getValue(), 1).getTime();
+
+    return switch (prefixed[0]) {
+      case "gt", "sa" -> entry -> entry.lastUpdated() >= to;
+      case "ge" -> entry -> entry.lastUpdated() >= from;
+      case "lt", "eb" -> entry -> entry.lastUpdated() >= 0 && entry.lastUpdated() < from;
+      case "le" -> entry -> entry.lastUpdated() >= 0 && entry.lastUpdated() < to;
+      case "ne" -> entry -> entry.lastUpdated() < from || entry.lastUpdated() >= to;
+      default -> entry -> entry.lastUpdated() >= from && entry.lastUpdated() < to;
+    };
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.sync;
+
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.QUERY_PARAMS;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.metadataChangesQuery;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.resourceEndpoint;
+import static com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders.trackedEntityChangesQuery;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2RouteBuilders;
+import com.example.hisp.dhis2.fhir.camel.common.SearchParameters;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.example.hisp.dhis2.fhir.sync.SyncWatermarks.Watermark;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.api.model.v2_39_1.OptionSet;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class FhirSyncEngine implements MeterBinder {
+  private static final String ORGANISATION_UNITS = "organisationUnits";
+
+  private static final String OPTION_SETS = "optionSets";
+
+  private static final String TRACKED_ENTITIES = "trackedEntityInstances";
+
+  private static final List<String> PATHS =
+      List.of(ORGANISATION_UNITS, OPTION_SETS, TRACKED_ENTITIES);
+
+  private final CamelContext camelContext;
+
+  private final ProducerTemplate producerTemplate;
+
+  private final Dhis2PageDecoder pageDecoder;
+
+  private final IGenericClient fhirClient;
+
+  private final SyncWatermarks watermarks;
+
+  private final MainProperties properties;
+
+  private final PatientShards patientShards;
+
+  private final Map<String, SyncStatus> statuses = new ConcurrentHashMap<>();
+
+  private final Map<String, AtomicLong> records = new ConcurrentHashMap<>();
+
+  private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+  public synchronized void run() {
+    // each type keeps its own watermark, a failing type does not hold back the others
+    if (patientShards.ownsMetadata()) {
+      // every level, the synced Patients and Organizations reference units anywhere in the tree
+      Map<String, Object> organisationUnitsQuery =
+          Dhis2RouteBuilders.allOrganisationUnitsQuery(SearchParameters.parse(""));
+
+      sync(
+          ORGANISATION_UNITS,
+          List.of(
+              (since, page, pageSize) ->
+                  metadataChangesQuery(organisationUnitsQuery, since, page, pageSize)),
+          OrganisationUnit.class,
+          ou -> ou.getId().orElse(null),
+          ou -> ou.getLastUpdated().orElse(null),
+          List.of(Organization.class, Location.class));
+
+      sync(
+          OPTION_SETS,
+          List.of(
+              (since, page, pageSize) ->
+                  metadataChangesQuery(
+                      Dhis2RouteBuilders.optionSetsQuery(), since, page, pageSize)),
+          OptionSet.class,
+          os -> os.getId().orElse(null),
+          os -> os.getLastUpdated().orElse(null),
+          List.of(CodeSystem.class, ValueSet.class));
+    }
+
+    List<Map<String, Object>> trackedEntitiesQueries;
+
+    try {
+      trackedEntitiesQueries =
+          patientShards.queries(
+              Dhis2RouteBuilders.trackedEntitiesQuery(properties.getPatient().getProgram()));
+    } catch (RuntimeException e) {
+      log.warn("Could not work out the org units of this shard, patients are synced next run", e);
+      failed(TRACKED_ENTITIES, e);
+      return;
+    }
+
+    sync(
+        TRACKED_ENTITIES,
+        trackedEntitiesQueries.stream()
+            .<ChangesQuery>map(
+                queryParams ->
+                    (since, page, pageSize) ->
+                        trackedEntityChangesQuery(queryParams, since, page, pageSize))
+            .toList(),
+        TrackedEntityInstance.class,
+        TrackedEntityInstance::getTrackedEntityInstance,
+        te ->
+            te.getLastUpdated() == null
+                ? null
+                : Date.from(LocalDateTime.parse(te.getLastUpdated()).toInstant(ZoneOffset.UTC)),
+        List.of(Patient.class));
+  }
+
+  public Map<String, SyncStatus> getStatus() {
+    return Map.copyOf(statuses);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    for (String path : PATHS) {
+      FunctionCounter.builder("dhis2fhir.sync.records", records(path), AtomicLong::get)
+          .description("Records written to the FHIR server by the sync")
+          .tag("path", path)
+          .register(registry);
+
+      FunctionCounter.builder("dhis2fhir.sync.failures", failures(path), AtomicLong::get)
+          .description("Sync runs that failed and are retried from the previous watermark")
+          .tag("path", path)
+          .register(registry);
+
+      Gauge.builder("dhis2fhir.sync.last.success", statuses, s -> lastSuccess(s, path))
+          .description("When the sync last went through, in seconds since the epoch")
+          .tag("path", path)
+          .baseUnit("seconds")
+          .register(registry);
+    }
+  }
+
+  // Several queries share one watermark, it only moves once all of them went through. Each query
+  // pages oldest first and starts the next page after the newest record it has seen; a page that
+  // holds nothing but records of the timestamp it started from moves on by page number instead.
+  private <T> void sync(
+      String path,
+      List<ChangesQuery> queries,
+      Class<T> itemType,
+      Function<T, String> id,
+      Function<T, Date> lastUpdated,
+      List<Class<? extends Resource>> resourceTypes) {
+    String watermarkKey = patientShards.watermarkKey(path);
+    Watermark watermark = watermarks.get(watermarkKey).orElse(null);
+    TransactionBatch batch = new TransactionBatch(properties.getSync().getBatchSize());
+    Watermark highWaterMark = watermark;
+    int changed = 0;
+
+    try {
+      for (ChangesQuery query : queries) {
+        Watermark cursor = watermark;
+        Date since = watermark == null ? null : watermark.lastUpdated();
+        int page = 1;
+        int read;
+
+        do {
+          read = 0;
+
+          try (InputStream inputStream = fetchPage(path, query.apply(since, page, pageSize()));
+              Dhis2PageDecoder.Page<T> items = pageDecoder.decode(inputStream, path, itemType)) {
+            while (items.hasNext()) {
+              T item = items.next();
+              Date itemLastUpdated = lastUpdated.apply(item);
+              String itemId = id.apply(item);
+              read++;
+
+              // already written by the previous run or an earlier page
+              if (cursor != null
+                  && itemLastUpdated != null
+                  && cursor.covers(itemLastUpdated, itemId)) {
+                continue;
+              }
+
+              for (Class<? extends Resource> resourceType : resourceTypes) {
+                batch.add(camelContext.getTypeConverter().mandatoryConvertTo(resourceType, item));
+              }
+
+              if (itemLastUpdated != null) {
+                cursor =
+                    cursor == null
+                        ? new Watermark(itemLastUpdated, Set.of(itemId))
+                        : cursor.advance(itemLastUpdated, itemId);
+              }
+
+              changed++;
+            }
+          }
+
+          if (cursor != null && (since == null || cursor.lastUpdated().after(since))) {
+            since = cursor.lastUpdated();
+            page = 1;
+          } else {
+            page++;
+          }
+        } while (read >= pageSize());
+
+        if (cursor != null) {
+          highWaterMark = highWaterMark == null ? cursor : highWaterMark.max(cursor);
+        }
+      }
+
+      batch.flush();
+
+      // only moved once everything up to it has been written
+      if (highWaterMark != null) {
+        watermarks.set(watermarkKey, highWaterMark);
+      }
+
+      records(path).addAndGet(changed);
+      statuses.put(path, SyncStatus.succeeded(statuses.get(path)));
+      log.info("Synced {} changed {} to the FHIR server", changed, path);
+    } catch (Exception e) {
+      log.warn("Sync of {} failed, retrying from the previous watermark next run", path, e);
+      failed(path, e);
+    }
+  }
+
+  private void failed(String path, Exception e) {
+    failures(path).incrementAndGet();
+    statuses.put(path, SyncStatus.failed(statuses.get(path), e));
+  }
+
+  private AtomicLong records(String path) {
+    return records.computeIfAbsent(path, k -> new AtomicLong());
+  }
+
+  private AtomicLong failures(String path) {
+    return failures.computeIfAbsent(path, k -> new AtomicLong());
+  }
+
+  private static double lastSuccess(Map<String, SyncStatus> statuses, String path) {
+    SyncStatus status = statuses.get(path);
+    return status == null || status.lastSuccess() == null
+        ? Double.NaN
+        : status.lastSuccess().getEpochSecond();
+  }
+
+  private int pageSize() {
+    return properties.getSync().getPageSize();
+  }
+
+  private InputStream fetchPage(String path, Map<String, Object> queryParams) {
+    return producerTemplate.requestBodyAndHeader(
+        resourceEndpoint(path), null, QUERY_PARAMS, queryParams, InputStream.class);
+  }
+
+  @FunctionalInterface
+  interface ChangesQuery {
+    Map<String, Object> apply(Date since, int page, int pageSize);
+  }
+
+  // the outcome of the last run of a type, and when one last went through
+  public record SyncStatus(Instant lastSuccess, Instant lastFailure, String error) {
+    static SyncStatus succeeded(SyncStatus previous) {
+      return new SyncStatus(Instant.now(), previous == null ? null : previous.lastFailure(), null);
+    }
+
+    static SyncStatus failed(SyncStatus previous, Exception e) {
+      return new SyncStatus(
+          previous == null ? null : previous.lastSuccess(), Instant.now(), e.toString());
+    }
+
+    public boolean isFailing() {
+      return error != null;
+    }
+  }
+
+  private class TransactionBatch {
+    private final int size;
+
+    private Bundle bundle;
+
+    TransactionBatch(int size) {
+      this.size = size;
+    }
+
+    void add(Resource resource) {
+      if (bundle == null) {
+        bundle = new Bundle().setType(BundleType.TRANSACTION);
+      }
+
+      String url = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+
+      // R4 wants an absolute fullUrl, the resource's address on the target server
+      bundle
+          .addEntry()
+          .setFullUrl(serverBase() + url)
+          .setResource(resource)
+          .getRequest()
+          .setMethod(HTTPVerb.PUT)
+          .setUrl(url);
+
+      if (bundle.getEntry().size() >= size) {
+        flush();
+      }
+    }
+
+    private String serverBase() {
+      String base = fhirClient.getServerBase();
+      return base.endsWith("/") ? base : base + "/";
+    }
+
+    void flush() {
+      if (bundle == null) {
+        return;
+      }
+
+      fhirClient.transaction().withBundle(bundle).execute();
+      bundle = null;
+    }
+  }
+}
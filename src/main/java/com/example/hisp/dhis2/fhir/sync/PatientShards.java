@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.sync;
+
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitHierarchy;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+// Splits the patient sync over several gateway instances without them talking to each other.
+// Every org unit at the shard level roots a subtree, and a subtree belongs to the shard its id
+// hashes to, so every instance works out the same split from the same tree. An instance then only
+// asks DHIS2 for the tracked entities below its own subtrees. Units above the shard level can hold
+// tracked entities too, those go to shard 0 along with the metadata.
+@Component
+@RequiredArgsConstructor
+public class PatientShards {
+  private final OrganisationUnitHierarchy hierarchy;
+
+  private final MainProperties properties;
+
+  public boolean isSharded() {
+    return shard().getCount() > 1;
+  }
+
+  // org units and option sets are small and the same for everyone, one instance is enough
+  public boolean ownsMetadata() {
+    return shard().getIndex() == 0;
+  }
+
+  // a changed shard count or index starts from scratch rather than from another shard's watermark
+  public String watermarkKey(String path) {
+    return isSharded()
+        ? "%s.shard-%d-of-%d".formatted(path, shard().getIndex(), shard().getCount())
+        : path;
+  }
+
+  // the tracked entity query once per group of owned units, or unchanged when not sharded. The
+  // tree is taken from the hierarchy once, so the units are split on a single version of it and a
+  // refresh, or a refusal, happens at most once per call
+  public List<Map<String, Object>> queries(Map<String, Object> queryParams) {
+    MainProperties.Shard shard = shard();
+
+    if (!isSharded()) {
+      return List.of(queryParams);
+    }
+
+    List<OrganisationUnitHierarchy.Node> nodes = hierarchy.select(List.of(), List.of(), l -> true);
+    Set<String> ids = new HashSet<>();
+    nodes.forEach(node -> ids.add(node.id()));
+
+    List<String> subtrees = new ArrayList<>();
+    List<String> above = new ArrayList<>();
+
+    for (OrganisationUnitHierarchy.Node node : nodes) {
+      // a DHIS2 user restricted to deeper branches sees their tops as roots
+      boolean top = node.parent() == null || !ids.contains(node.parent());
+      boolean subtree = node.level() == shard.getLevel() || top;
+
+      if (node.level() < shard.getLevel()) {
+        above.add(node.id());
+      } else if (subtree && owner(node.id()) == shard.getIndex()) {
+        subtrees.add(node.id());
+      }
+    }
+
+    List<Map<String, Object>> queries = new ArrayList<>();
+    queries.addAll(queries(queryParams, subtrees, "DESCENDANTS"));
+
+    if (ownsMetadata()) {
+      queries.addAll(queries(queryParams, above, "SELECTED"));
+    }
+
+    return queries;
+  }
+
+  // String.hashCode is specified by the language, so every JVM agrees on it
+  private int owner(String id) {
+    return Math.floorMod(id.hashCode(), shard().getCount());
+  }
+
+  // the units go into the URL, a few dozen per request keeps it well short of server limits
+  private List<Map<String, Object>> queries(
+      Map<String, Object> queryParams, List<String> units, String ouMode) {
+    List<Map<String, Object>> queries = new ArrayList<>();
+    int unitsPerRequest = shard().getUnitsPerRequest();
+
+    for (int i = 0; i < units.size(); i += unitsPerRequest) {
+      Map<String, Object> query = new HashMap<>(queryParams);
+      List<String> group = units.subList(i, Math.min(units.size(), i + unitsPerRequest));
+      query.put("ou", String.join(";", group));
+      query.put("ouMode", ouMode);
+      queries.add(query);
+    }
+
+    return queries;
+  }
+
+  private MainProperties.Shard shard() {
+    return properties.getSync().getShard();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.sync;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.util.List;
+import java.util.Map;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+// The sync under /actuator/health. It stays up while a type fails, the gateway keeps serving and
+// the other types keep syncing, so a failing type is listed rather than taking the whole app down;
+// dhis2fhir.sync.failures is the metric to alert on.
+@Component
+@RequiredArgsConstructor
+public class SyncHealthIndicator implements HealthIndicator {
+  private final FhirSyncEngine fhirSyncEngine;
+
+  private final MainProperties properties;
+
+  @Override
+  public Health health() {
+    if (!properties.getSync().isEnabled()) {
+      return Health.unknown().withDetail("enabled", false).build();
+    }
+
+    Map<String, FhirSyncEngine.SyncStatus> statuses = fhirSyncEngine.getStatus();
+    List<String> failing =
+        statuses.entrySet().stream()
+            .filter(status -> status.getValue().isFailing())
+            .map(Map.Entry::getKey)
+            .sorted()
+            .toList();
+    Health.Builder health = Health.up().withDetail("failing", failing);
+
+    statuses.forEach(health::withDetail);
+
+    return health.build();
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.sync;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import javax.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+@Component
+@RequiredArgsConstructor
+public class SyncWatermarks {
+  // the ids of the records at the watermark, next to it under the same key
+  private static final String IDS_SUFFIX = ".ids";
+
+  private final MainProperties properties;
+
+  private final Properties watermarks = new Properties();
+
+  private Path file;
+
+  @PostConstruct
+  public void load() throws IOException {
+    file = Path.of(properties.getSync().getWatermarkFile()).toAbsolutePath();
+
+    if (Files.exists(file)) {
+      try (InputStream inputStream = Files.newInputStream(file)) {
+        watermarks.load(inputStream);
+      }
+    }
+  }
+
+  public synchronized Optional<Watermark> get(String type) {
+    String ids = watermarks.getProperty(type + IDS_SUFFIX, "");
+
+    return Optional.ofNullable(watermarks.getProperty(type))
+        .map(Instant::parse)
+        .map(
+            lastUpdated ->
+                new Watermark(
+                    Date.from(lastUpdated),
+                    ids.isEmpty() ? Set.of() : Set.of(ids.split(","))));
+  }
+
+  // written to a temporary file first, a crash while saving leaves the previous watermarks intact
+  public synchronized void set(String type, Watermark watermark) throws IOException {
+    watermarks.setProperty(type, watermark.lastUpdated().toInstant().toString());
+    watermarks.setProperty(type + IDS_SUFFIX, String.join(",", watermark.ids()));
+
+    Path directory = file.getParent();
+    Files.createDirectories(directory);
+    Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+    try (OutputStream outputStream = Files.newOutputStream(tmp)) {
+      watermarks.store(outputStream, "lastUpdated watermarks of the DHIS2 to FHIR sync");
+    }
+
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // The newest lastUpdated synced and the ids of the records that carry it. Records sharing that
+  // timestamp are only written again when they are not among those ids, so the next run neither
+  // misses nor repeats the ones at the boundary.
+  public record Watermark(Date lastUpdated, Set<String> ids) {
+    public boolean covers(Date date, String id) {
+      int compared = date.compareTo(lastUpdated);
+      return compared < 0 || (compared == 0 && ids.contains(id));
+    }
+
+    public Watermark advance(Date date, String id) {
+      int compared = date.compareTo(lastUpdated);
+
+      if (compared < 0) {
+        return this;
+      }
+
+      Set<String> next = compared == 0 ? new HashSet<>(ids) : new HashSet<>();
+      next.add(id);
+
+      return new Watermark(compared == 0 ? lastUpdated : date, next);
+    }
+
+    // the later of the two, both sets of ids when they end at the same time
+    public Watermark max(Watermark other) {
+      int compared = lastUpdated.compareTo(other.lastUpdated());
+
+      if (compared == 0) {
+        Set<String> union = new HashSet<>(ids);
+        union.addAll(other.ids());
+        return new Watermark(lastUpdated, union);
+      }
+
+      return compared > 0 ? this : other;
+    }
+  }
+}
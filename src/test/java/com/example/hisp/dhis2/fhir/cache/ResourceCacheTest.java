@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Organization;
+import org.junit.jupiter.api.Test;
+
+class ResourceCacheTest {
+  @Test
+  void handsOutACopyTheCallerCanChange() throws Exception {
+    ResourceCache resourceCache = new ResourceCache(new MainProperties());
+    AtomicInteger loads = new AtomicInteger();
+
+    Organization first = get(resourceCache, loads);
+    first.setName("Changed by the route");
+
+    Organization second = get(resourceCache, loads);
+    Organization third = get(resourceCache, loads);
+
+    assertEquals(1, loads.get());
+    assertEquals("District", second.getName());
+    assertNotSame(second, third);
+  }
+
+  @Test
+  void handsOutACopyOnceRevalidated() throws Exception {
+    MainProperties properties = new MainProperties();
+    properties.getCache().getResources().setRevalidateAfter(Duration.ZERO);
+    ResourceCache resourceCache = new ResourceCache(properties);
+    AtomicInteger loads = new AtomicInteger();
+
+    get(resourceCache, loads).setName("Changed by the route");
+
+    assertEquals("District", get(resourceCache, loads).getName());
+    assertEquals(1, loads.get());
+  }
+
+  private Organization get(ResourceCache resourceCache, AtomicInteger loads) throws Exception {
+    return resourceCache.get(
+        Organization.class,
+        "District001",
+        () -> Optional.of("2023-01-01T00:00:00.000"),
+        () -> {
+          loads.incrementAndGet();
+          return new Organization().setName("District");
+        });
+  }
+}
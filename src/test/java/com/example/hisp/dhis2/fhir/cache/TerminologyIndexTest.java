@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.hisp.dhis2.fhir.cache.TerminologyIndex.Concept;
+import com.example.hisp.dhis2.fhir.cache.TerminologyIndex.Designation;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TerminologyIndexTest {
+  @Test
+  void picksTheDesignationForALanguageOrItsRegion() {
+    Concept concept =
+        concept(
+            "Pupil",
+            new Designation(null, "Élève"),
+            new Designation("fr_FR", "Élève"),
+            new Designation("pt", "Aluno"));
+
+    assertEquals("Élève", concept.display("fr"));
+    assertEquals("Élève", concept.display("fr-FR"));
+    assertEquals("Aluno", concept.display("pt"));
+    assertEquals("Pupil", concept.display("es"));
+    assertEquals("Pupil", concept.display(null));
+  }
+
+  @Test
+  void toleratesMissingDisplaysAndDesignationParts() {
+    Concept concept =
+        concept(null, new Designation(null, null), new Designation("fr", "Élève"));
+
+    assertNull(concept.display("es"));
+    assertEquals("Élève", concept.display("fr"));
+    assertTrue(concept.hasDisplay("élève"));
+    assertFalse(concept.hasDisplay("Pupil"));
+  }
+
+  private static Concept concept(String display, Designation... designations) {
+    return new Concept(
+        "http://example.com/system", "code", display, List.of(designations), 0, new String[0]);
+  }
+}
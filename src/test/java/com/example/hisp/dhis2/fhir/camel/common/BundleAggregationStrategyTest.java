@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+
+class BundleAggregationStrategyTest {
+  private final CamelContext camelContext = new DefaultCamelContext();
+
+  private final BundleAggregationStrategy strategy = new BundleAggregationStrategy();
+
+  @Test
+  void keepsSourceOrderWhateverOrderEntriesFinishIn() {
+    Exchange result = null;
+
+    for (int index : new int[] {2, 0, 3, 1}) {
+      result = strategy.aggregate(result, entry(index, 4));
+    }
+
+    assertEquals(List.of("0", "1", "2", "3"), fragments(result));
+  }
+
+  @Test
+  void growsWithAStreamingSplit() {
+    Exchange result = null;
+
+    for (int index : new int[] {1, 0, 4, 2, 3}) {
+      result = strategy.aggregate(result, entry(index, null));
+    }
+
+    assertEquals(List.of("0", "1", "2", "3", "4"), fragments(result));
+  }
+
+  @Test
+  void failsTheResultForAFailedEntry() {
+    Exchange result = strategy.aggregate(null, entry(0, 3));
+    Exchange failed = entry(1, 3);
+    IllegalStateException exception = new IllegalStateException("conversion failed");
+    failed.setException(exception);
+
+    result = strategy.aggregate(result, failed);
+    result = strategy.aggregate(result, entry(2, 3));
+
+    assertSame(exception, result.getException());
+
+    @SuppressWarnings("unchecked")
+    List<byte[]> fragments = result.getIn().getBody(List.class);
+    assertNull(fragments.get(1));
+  }
+
+  private Exchange entry(int index, Integer size) {
+    Exchange exchange = new DefaultExchange(camelContext);
+    exchange.setProperty(Exchange.SPLIT_INDEX, index);
+
+    if (size != null) {
+      exchange.setProperty(Exchange.SPLIT_SIZE, size);
+    }
+
+    exchange.getIn().setBody(String.valueOf(index).getBytes(StandardCharsets.UTF_8));
+
+    return exchange;
+  }
+
+  private static List<String> fragments(Exchange result) {
+    @SuppressWarnings("unchecked")
+    List<byte[]> fragments = result.getIn().getBody(List.class);
+    List<String> values = new ArrayList<>();
+
+    for (byte[] fragment : fragments) {
+      values.add(new String(fragment, StandardCharsets.UTF_8));
+    }
+
+    return values;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.hisp.dhis2.fhir.camel.common.ConditionalRequests.Version;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+
+class ConditionalRequestsTest {
+  @Test
+  void pageVersionSeesADeleteNextToAnOlderInsert() {
+    Map<String, Date> before = Map.of("a", new Date(1000), "b", new Date(2000));
+    Map<String, Date> after = Map.of("c", new Date(500), "b", new Date(2000));
+
+    Version old = version(List.of("a", "b"), before);
+    Version current = version(List.of("c", "b"), after);
+
+    // the total and newest lastUpdated alone cannot tell the two apart
+    assertEquals(old.total(), current.total());
+    assertEquals(old.lastUpdated(), current.lastUpdated());
+    assertNotEquals(old, current);
+    assertNotEquals(etag(old), etag(current));
+  }
+
+  @Test
+  void pageVersionIsStableForTheSameItems() {
+    Map<String, Date> items = Map.of("a", new Date(1000), "b", new Date(2000));
+
+    assertEquals(etag(version(List.of("a", "b"), items)), etag(version(List.of("a", "b"), items)));
+  }
+
+  @Test
+  void describeReplacesTheProbedVersion() {
+    Exchange exchange = exchange();
+    exchange.setProperty(ConditionalRequests.VERSION_PROPERTY, new Version(1, new Date(1000)));
+    ConditionalRequests.evaluate(exchange);
+    String probed = exchange.getIn().getHeader(ConditionalRequests.ETAG, String.class);
+
+    String fetched = ConditionalRequests.describe(exchange, new Version(2, new Date(2000), 7));
+
+    assertNotEquals(probed, fetched);
+    assertEquals(fetched, exchange.getIn().getHeader(ConditionalRequests.ETAG, String.class));
+    assertEquals(
+        "Thu, 1 Jan 1970 00:00:02 GMT",
+        exchange.getIn().getHeader(ConditionalRequests.LAST_MODIFIED, String.class));
+  }
+
+  @Test
+  void answersNotModifiedForAMatchingETag() {
+    Version version = new Version(2, new Date(2000), 7);
+    Exchange exchange = exchange();
+    exchange.getIn().setHeader("If-None-Match", etag(version));
+    exchange.setProperty(ConditionalRequests.VERSION_PROPERTY, version);
+
+    ConditionalRequests.evaluate(exchange);
+
+    assertTrue(ConditionalRequests.isNotModified(exchange));
+    assertEquals(304, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+
+    Exchange changed = exchange();
+    changed.getIn().setHeader("If-None-Match", etag(version));
+    changed.setProperty(ConditionalRequests.VERSION_PROPERTY, new Version(2, new Date(2000), 8));
+
+    ConditionalRequests.evaluate(changed);
+
+    assertFalse(ConditionalRequests.isNotModified(changed));
+  }
+
+  private static Version version(List<String> ids, Map<String, Date> lastUpdated) {
+    return ConditionalRequests.pageVersion(ids.size(), ids, id -> id, lastUpdated::get);
+  }
+
+  private static String etag(Version version) {
+    return ConditionalRequests.describe(exchange(), version);
+  }
+
+  private static Exchange exchange() {
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+    exchange.getIn().setHeader(Exchange.HTTP_URI, "/baseR4/Patient");
+    exchange.getIn().setHeader(Exchange.HTTP_QUERY, "name=a");
+
+    return exchange;
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.hisp.dhis2.fhir.camel.converters.PatientMapping;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class SearchParametersTest {
+  @Test
+  void decodesAndRepeatsParameters() {
+    SearchParameters search =
+        SearchParameters.parse("name=Ngelehun%20CHC&_id=a,b&_id=c&identifier=&_count=10");
+
+    assertEquals(List.of("Ngelehun CHC"), search.get(SearchParameters.NAME));
+    assertEquals(List.of("a", "b", "c"), search.getIds());
+    assertTrue(search.get(SearchParameters.IDENTIFIER).isEmpty());
+    assertEquals(10, search.getCount());
+    assertEquals(1, search.getPage());
+  }
+
+  @Test
+  void clampsCountAndPage() {
+    assertEquals(1000, SearchParameters.parse("_count=100000").getCount());
+    assertEquals(1, SearchParameters.parse("_count=0").getCount());
+    assertEquals(1, SearchParameters.parse("_page=-3").getPage());
+  }
+
+  @Test
+  void readsReferencesWithOrWithoutType() {
+    SearchParameters search =
+        SearchParameters.parse("partof=Organization/ImspTQPwCqd,Location/O6uvpzGd5pu");
+
+    assertEquals(
+        List.of("ImspTQPwCqd", "O6uvpzGd5pu"),
+        search.getReferenceIds(SearchParameters.PART_OF));
+    assertTrue(search.isHierarchySearch());
+    assertTrue(search.isHierarchyOnly());
+    assertFalse(SearchParameters.parse("partof=ImspTQPwCqd&name=a").isHierarchyOnly());
+  }
+
+  @Test
+  void keepsParametersInTheNextPageLink() {
+    SearchParameters search = SearchParameters.parse("name=a%20b&_count=5&_page=1");
+
+    assertEquals("name=a+b&_count=5&_page=2", search.toQueryString(2));
+  }
+
+  @Test
+  void acceptsWellFormedSearches() {
+    assertNull(
+        SearchParameters.parse(
+                "_count=10&_page=2&_id=DiszpKrYNg8&partof:below=ImspTQPwCqd"
+                    + "&_lastUpdated=ge2023-01&_lastUpdated=lt2023-02-01T10:00:00Z&level=le3")
+            .problem());
+  }
+
+  @Test
+  void refusesMalformedNumbersDatesAndIds() {
+    assertNotNull(SearchParameters.parse("_count=abc").problem());
+    assertNotNull(SearchParameters.parse("_page=1.5").problem());
+    assertNotNull(SearchParameters.parse("_lastUpdated=ge2023-13-45").problem());
+    assertNotNull(SearchParameters.parse("_lastUpdated=yesterday").problem());
+    assertNotNull(SearchParameters.parse("_id=a],name:like:b").problem());
+    assertNotNull(SearchParameters.parse("partof=Organization/x;y").problem());
+    assertNotNull(SearchParameters.parse("level=two").problem());
+    assertNotNull(SearchParameters.parse("level=le").problem());
+  }
+
+  @Test
+  void refusesSearchesDhis2CannotTake() {
+    assertNotNull(SearchParameters.parse("_lastUpdated=ne2023-01-01").problem());
+    PatientMapping mapping = new PatientMapping(new MainProperties());
+
+    assertNotNull(
+        Dhis2RouteBuilders.trackedEntitiesProblem(
+            SearchParameters.parse("name=a:eq:b"), mapping));
+    assertNull(
+        Dhis2RouteBuilders.trackedEntitiesProblem(
+            SearchParameters.parse("_lastUpdated=ge2023-01-01&name=Smith"), mapping));
+  }
+
+  @Test
+  void refusesSearchesOnUnmappedAttributes() {
+    MainProperties properties = new MainProperties();
+    properties.getPatient().getMapping().setFamilyName(null);
+    properties.getPatient().getMapping().getNationalId().setValue(null);
+    PatientMapping mapping = new PatientMapping(properties);
+
+    assertNotNull(
+        Dhis2RouteBuilders.trackedEntitiesProblem(SearchParameters.parse("name=Smith"), mapping));
+    assertNotNull(
+        Dhis2RouteBuilders.trackedEntitiesProblem(
+            SearchParameters.parse("identifier=1234"), mapping));
+    assertNull(
+        Dhis2RouteBuilders.trackedEntitiesProblem(
+            SearchParameters.parse(
+                "identifier=http://example.com/trackedEntityInstances|PQfMcpmXeFE"),
+            mapping));
+  }
+
+  @Test
+  void writesDatesForSearchesInUtc() {
+    Date date = new Date(1672567200123L);
+
+    assertEquals("2023-01-01T10:00:00.123Z", SearchParameters.dateTime(date));
+    SearchParameters search =
+        SearchParameters.parse("_lastUpdated=ge" + SearchParameters.dateTime(date));
+
+    assertEquals(
+        date, SearchParameters.getDate(search.getFirst(SearchParameters.LAST_UPDATED)).getValue());
+  }
+
+  @Test
+  void turnsDatesIntoMetadataFilters() {
+    Map<String, Object> queryParams =
+        Dhis2RouteBuilders.optionSetsQuery(
+            SearchParameters.parse("_lastUpdated=2023-01-01T10:00:00Z"));
+
+    assertEquals(
+        List.of(
+            "lastUpdated:ge:2023-01-01T10:00:00.000", "lastUpdated:lt:2023-01-01T10:00:01.000"),
+        queryParams.get("filter"));
+
+    queryParams =
+        Dhis2RouteBuilders.optionSetsQuery(
+            SearchParameters.parse("_lastUpdated=le2023-01-01T10:00:00Z"));
+
+    assertEquals(List.of("lastUpdated:lt:2023-01-01T10:00:01.000"), queryParams.get("filter"));
+  }
+
+  @Test
+  void turnsDatesIntoInclusiveTrackedEntityBounds() {
+    PatientMapping mapping = new PatientMapping(new MainProperties());
+    Map<String, Object> queryParams =
+        Dhis2RouteBuilders.trackedEntitiesQuery(
+            Map.of(), SearchParameters.parse("_lastUpdated=2023-01-01T10:00:00Z"), mapping);
+
+    assertEquals("2023-01-01T10:00:00.000", queryParams.get("lastUpdatedStartDate"));
+    assertEquals("2023-01-01T10:00:00.999", queryParams.get("lastUpdatedEndDate"));
+
+    queryParams =
+        Dhis2RouteBuilders.trackedEntitiesQuery(
+            Map.of(), SearchParameters.parse("_lastUpdated=gt2023-01-01T10:00:00Z"), mapping);
+
+    assertEquals("2023-01-01T10:00:01.000", queryParams.get("lastUpdatedStartDate"));
+    assertNull(queryParams.get("lastUpdatedEndDate"));
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.camel.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SingleFlightTest {
+  private ExecutorService executorService;
+
+  private SingleFlight singleFlight;
+
+  @BeforeEach
+  void setUp() {
+    MainProperties properties = new MainProperties();
+    properties.setDhis2(new MainProperties.Api());
+    properties.getDhis2().getTransport().setReadTimeout(Duration.ofMillis(200));
+
+    executorService = Executors.newCachedThreadPool();
+    singleFlight = new SingleFlight(properties);
+  }
+
+  @AfterEach
+  void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  void followersShareTheLeadersResult() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger calls = new AtomicInteger();
+
+    Future<String> leader =
+        executorService.submit(
+            () ->
+                singleFlight.execute(
+                    "key",
+                    () -> {
+                      calls.incrementAndGet();
+                      started.countDown();
+                      release.await();
+                      return "leader";
+                    }));
+
+    started.await();
+    Future<String> follower =
+        executorService.submit(
+            () ->
+                singleFlight.execute(
+                    "key",
+                    () -> {
+                      calls.incrementAndGet();
+                      return "follower";
+                    }));
+
+    Thread.sleep(50);
+    release.countDown();
+
+    assertEquals("leader", leader.get(5, TimeUnit.SECONDS));
+    assertEquals("leader", follower.get(5, TimeUnit.SECONDS));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void followersFetchThemselvesOnceTheUpstreamTimeoutPassed() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<String> leader =
+        executorService.submit(
+            () ->
+                singleFlight.execute(
+                    "key",
+                    () -> {
+                      started.countDown();
+                      release.await();
+                      return "leader";
+                    }));
+
+    started.await();
+    long begin = System.nanoTime();
+
+    String follower = singleFlight.execute("key", () -> "follower");
+
+    assertEquals("follower", follower);
+    assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5), "waited for the leader");
+
+    release.countDown();
+    assertEquals("leader", leader.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void followersSeeTheLeadersFailure() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<String> leader =
+        executorService.submit(
+            () ->
+                singleFlight.execute(
+                    "key",
+                    () -> {
+                      started.countDown();
+                      release.await();
+                      throw new IllegalStateException("upstream failed");
+                    }));
+
+    started.await();
+    Future<String> follower =
+        executorService.submit(() -> singleFlight.execute("key", () -> "follower"));
+
+    Thread.sleep(50);
+    release.countDown();
+
+    assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS));
+    assertThrows(Exception.class, () -> follower.get(5, TimeUnit.SECONDS));
+  }
+}
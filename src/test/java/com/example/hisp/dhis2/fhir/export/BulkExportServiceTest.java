@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.export;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.camel.common.TrackedEntityPageFetcher;
+import com.example.hisp.dhis2.fhir.camel.converters.OrganizationTypeConverter;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.apache.camel.Exchange;
+import org.apache.camel.TypeConversionException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.engine.DefaultProducerTemplate;
+import org.apache.camel.support.TypeConverterSupport;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hisp.dhis.api.model.v2_39_1.TrackedEntityInstance;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BulkExportServiceTest {
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+  // Country > Region > District > Facility, the Patient is registered at the facility
+  private static final String ORGANISATION_UNITS =
+      """
+      {"organisationUnits": [
+        {"id": "Country0001", "name": "Country", "level": 1},
+        {"id": "Region00001", "name": "Region", "level": 2, "parent": {"id": "Country0001"}},
+        {"id": "District001", "name": "District", "level": 3, "parent": {"id": "Region00001"}},
+        {"id": "Facility001", "name": "Facility", "level": 4, "parent": {"id": "District001"}}
+      ]}
+      """;
+
+  private static final String TRACKED_ENTITY =
+      """
+      {"trackedEntityInstance": "Patient0001", "orgUnit": "Facility001"}
+      """;
+
+  @TempDir Path directory;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final List<Map<String, Object>> queries = new ArrayList<>();
+
+  private DefaultCamelContext camelContext;
+
+  private BulkExportService bulkExportService;
+
+  @BeforeEach
+  void setUp() {
+    MainProperties properties = new MainProperties();
+    properties.setDhis2(new MainProperties.Api());
+    properties.getDhis2().setBaseUrl("http://localhost/api");
+
+    camelContext = new DefaultCamelContext();
+    OrganizationTypeConverter organizationTypeConverter = new OrganizationTypeConverter(properties);
+    camelContext
+        .getTypeConverterRegistry()
+        .addTypeConverter(
+            Organization.class,
+            OrganisationUnit.class,
+            new TypeConverterSupport() {
+              @Override
+              public <T> T convertTo(Class<T> type, Exchange exchange, Object value) {
+                return type.cast(
+                    organizationTypeConverter.toOrganization((OrganisationUnit) value, exchange));
+              }
+            });
+    camelContext
+        .getTypeConverterRegistry()
+        .addTypeConverter(Patient.class, TrackedEntityInstance.class, new PatientConverter());
+
+    bulkExportService =
+        new BulkExportService(
+            camelContext,
+            FHIR_CONTEXT,
+            objectMapper,
+            new DhisOrganisationUnits(camelContext),
+            new Dhis2PageDecoder(objectMapper),
+            null,
+            new DhisTrackedEntities(),
+            properties);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    camelContext.close();
+  }
+
+  @Test
+  void exportsTheOrganizationOfAPatientBelowTheTopLevels() throws IOException {
+    ExportJob job =
+        new ExportJob(
+            "job",
+            "http://localhost/baseR4/Patient/$export",
+            "http://localhost/baseR4",
+            List.of("Organization", "Patient"),
+            null,
+            new Date(),
+            directory.resolve("job"));
+
+    bulkExportService.run(job);
+
+    assertEquals(ExportJob.Status.COMPLETED, job.getStatus(), job.getError());
+
+    Set<String> organizations =
+        read(job, "Organization", Organization.class).stream()
+            .map(organization -> organization.getIdElement().getIdPart())
+            .collect(Collectors.toSet());
+    List<Patient> patients = read(job, "Patient", Patient.class);
+
+    assertEquals(1, patients.size());
+    assertEquals(
+        "Organization/Facility001", patients.get(0).getManagingOrganization().getReference());
+    assertTrue(organizations.contains("Facility001"), organizations.toString());
+    assertEquals(4, organizations.size());
+    assertEquals(4L, (long) job.getCounts().get("Organization"));
+  }
+
+  @Test
+  void asksForEveryLevelInOneResponse() throws IOException {
+    ExportJob job =
+        new ExportJob(
+            "job",
+            "http://localhost/baseR4/$export?_type=Organization",
+            "http://localhost/baseR4",
+            List.of("Organization"),
+            null,
+            new Date(),
+            directory.resolve("job"));
+
+    bulkExportService.run(job);
+
+    assertEquals(1, queries.size());
+    assertEquals("false", queries.get(0).get("paging"));
+    assertEquals(List.of(), queries.get(0).get("filter"));
+  }
+
+  private <T extends Resource> List<T> read(
+      ExportJob job, String type, Class<T> resourceType) throws IOException {
+    List<T> resources = new ArrayList<>();
+
+    for (String line : Files.readAllLines(job.getFile(type), StandardCharsets.UTF_8)) {
+      resources.add(FHIR_CONTEXT.newJsonParser().parseResource(resourceType, line));
+    }
+
+    return resources;
+  }
+
+  private class DhisOrganisationUnits extends DefaultProducerTemplate {
+    DhisOrganisationUnits(DefaultCamelContext camelContext) {
+      super(camelContext);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T requestBodyAndHeader(
+        String endpointUri, Object body, String header, Object headerValue, Class<T> type) {
+      queries.add((Map<String, Object>) headerValue);
+
+      return type.cast(
+          new ByteArrayInputStream(ORGANISATION_UNITS.getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  private class DhisTrackedEntities extends TrackedEntityPageFetcher {
+    DhisTrackedEntities() {
+      super(null, null, null, null, null);
+    }
+
+    @Override
+    public Iterator<TrackedEntityInstance> fetch(Map<String, Object> queryParams, String route)
+        throws IOException {
+      return List.of(objectMapper.readValue(TRACKED_ENTITY, TrackedEntityInstance.class))
+          .iterator();
+    }
+  }
+
+  // only what the export needs of a Patient, the reference to the unit that manages it
+  private static class PatientConverter extends TypeConverterSupport {
+    @Override
+    public <T> T convertTo(Class<T> type, Exchange exchange, Object value)
+        throws TypeConversionException {
+      TrackedEntityInstance trackedEntity = (TrackedEntityInstance) value;
+      Patient patient = new Patient();
+      patient.setId(trackedEntity.getTrackedEntityInstance());
+      patient.setManagingOrganization(new Reference("Organization/" + trackedEntity.getOrgUnit()));
+
+      return type.cast(patient);
+    }
+  }
+}
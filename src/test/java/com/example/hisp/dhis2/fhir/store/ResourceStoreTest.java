@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.Organization;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+class ResourceStoreTest {
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+  // several segments worth of live frames, so that losing count of them would look like garbage
+  private static final int RESOURCES = 100;
+
+  @TempDir Path directory;
+
+  private MainProperties properties;
+
+  private ResourceStore store;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    properties = new MainProperties();
+    properties.getStore().setEnabled(true);
+    properties.getStore().setDirectory(directory.toString());
+    properties.getStore().setSegmentSize(DataSize.ofKilobytes(4));
+
+    store = open();
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    store.close();
+  }
+
+  @Test
+  void compactionDropsOverwrittenFrames() throws IOException {
+    overwrite(RESOURCES, 10);
+    double dead = bytes("dead");
+
+    store.compact();
+
+    assertTrue(bytes("dead") < dead);
+    assertTrue(bytes("dead") < bytes("live"));
+    assertEquals(RESOURCES, store.size());
+
+    for (int i = 0; i < RESOURCES; i++) {
+      assertNotNull(store.read(store.get("Organization", id(i)).orElseThrow()));
+    }
+  }
+
+  @Test
+  void compactionDoesNotRunAgainRightAfterItself() throws IOException {
+    overwrite(RESOURCES, 10);
+    store.compact();
+    double live = bytes("live");
+    List<Path> segments = segments();
+
+    store.compact();
+
+    assertEquals(segments, segments());
+    assertEquals(live, bytes("live"));
+  }
+
+  @Test
+  void compactedStoreReopensWithTheSameResources() throws IOException {
+    overwrite(RESOURCES, 10);
+    store.compact();
+    store.close();
+
+    store = open();
+
+    assertEquals(RESOURCES, store.size());
+    assertEquals("Unit 0 9", name(store.read(store.get("Organization", id(0)).orElseThrow())));
+  }
+
+  @Test
+  void childrenFollowTheLatestParent() throws IOException {
+    store.put(organization(id(1), "Top", null));
+    store.put(organization(id(2), "Child", id(1)));
+
+    assertEquals(Set.of(id(1)), store.children("Organization", null));
+    assertEquals(Set.of(id(2)), store.children("Organization", id(1)));
+
+    store.put(organization(id(2), "Child", id(3)));
+
+    assertEquals(Set.of(), store.children("Organization", id(1)));
+    assertEquals(Set.of(id(2)), store.children("Organization", id(3)));
+
+    store.delete("Organization", id(2));
+
+    assertEquals(Set.of(), store.children("Organization", id(3)));
+  }
+
+  @Test
+  void identifierValuesFollowOverwritesAndDeletes() throws IOException {
+    Organization organization = organization(id(1), "Unit", null);
+    organization.addIdentifier().setSystem("http://example.com/code").setValue("A");
+    store.put(organization);
+
+    assertEquals(Set.of(id(1)), store.withIdentifierValue("Organization", "A"));
+
+    organization.getIdentifierFirstRep().setValue("B");
+    store.put(organization);
+
+    assertEquals(Set.of(), store.withIdentifierValue("Organization", "A"));
+    assertEquals(Set.of(id(1)), store.withIdentifierValue("Organization", "B"));
+
+    store.delete("Organization", id(1));
+
+    assertEquals(Set.of(), store.withIdentifierValue("Organization", "B"));
+  }
+
+  private ResourceStore open() throws IOException {
+    ResourceStore resourceStore = new ResourceStore(FHIR_CONTEXT, properties);
+    resourceStore.open();
+    return resourceStore;
+  }
+
+  private void overwrite(int resources, int times) throws IOException {
+    for (int version = 0; version < times; version++) {
+      for (int i = 0; i < resources; i++) {
+        store.put(organization(id(i), "Unit %d %d".formatted(i, version), null));
+      }
+    }
+  }
+
+  private double bytes(String state) {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    store.bindTo(registry);
+    return registry.get("dhis2fhir.store.bytes").tag("state", state).gauge().value();
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().toList();
+    }
+  }
+
+  private static String name(byte[] body) {
+    String json = new String(body, StandardCharsets.UTF_8);
+    return FHIR_CONTEXT.newJsonParser().parseResource(Organization.class, json).getName();
+  }
+
+  static Organization organization(String id, String name, String parent) {
+    Organization organization = new Organization();
+    organization.setId(id);
+    organization.setName(name);
+
+    if (parent != null) {
+      organization.getPartOf().setReference("Organization/" + parent);
+    }
+
+    return organization;
+  }
+
+  static String id(int i) {
+    return "OrgUnit%04d".formatted(i);
+  }
+}
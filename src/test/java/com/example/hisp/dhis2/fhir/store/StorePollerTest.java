@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.hisp.dhis2.fhir.camel.common.Dhis2PageDecoder;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.engine.DefaultProducerTemplate;
+import org.apache.camel.support.TypeConverterSupport;
+import org.hisp.dhis.api.model.v2_39_1.OrganisationUnit;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StorePollerTest {
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+  private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+  @TempDir Path directory;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  // the org units DHIS2 holds, as id and lastUpdated
+  private final List<Unit> units = new ArrayList<>();
+
+  // the filters of the paged org unit requests
+  private final List<List<String>> filters = new ArrayList<>();
+
+  // run against DHIS2 right before it answers the second paged request
+  private Runnable onSecondPage;
+
+  private MainProperties properties;
+
+  private ResourceStore store;
+
+  private DefaultCamelContext camelContext;
+
+  private StorePoller storePoller;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    properties = new MainProperties();
+    properties.getStore().setEnabled(true);
+    properties.getStore().setDirectory(directory.toString());
+    properties.getStore().setPageSize(2);
+
+    store = new ResourceStore(FHIR_CONTEXT, properties);
+    store.open();
+
+    camelContext = new DefaultCamelContext();
+    addConverter(Organization.class, Organization::new);
+    addConverter(Location.class, Location::new);
+
+    storePoller =
+        new StorePoller(
+            camelContext,
+            new Dhis2(camelContext),
+            new Dhis2PageDecoder(objectMapper),
+            store,
+            properties);
+
+    for (int i = 1; i <= 5; i++) {
+      units.add(new Unit("Unit0000000" + i, Date.from(START.plusSeconds(i))));
+    }
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    store.close();
+    camelContext.close();
+  }
+
+  @Test
+  void aDeletionBetweenPagesDoesNotSkipTheNextUnit() throws Exception {
+    // deleted in DHIS2 once the first page was read, page numbers would now skip Unit00000003
+    onSecondPage = () -> units.remove(0);
+
+    storePoller.run();
+
+    assertEquals(
+        Set.of("Unit00000002", "Unit00000003", "Unit00000004", "Unit00000005"),
+        ids("Organization"));
+    assertEquals(ids("Organization"), ids("Location"));
+    assertEquals(Date.from(START.plusSeconds(5)), store.getWatermark("organisationUnits").get());
+  }
+
+  @Test
+  void unitsSharingATimestampAcrossPagesAreAllStored() throws Exception {
+    units.clear();
+
+    for (int i = 1; i <= 5; i++) {
+      units.add(new Unit("Unit0000000" + i, Date.from(START)));
+    }
+
+    storePoller.run();
+
+    assertEquals(5, ids("Organization").size());
+  }
+
+  @Test
+  void picksUpFromTheWatermarkNextRun() throws Exception {
+    storePoller.run();
+    units.add(new Unit("Unit00000006", Date.from(START.plusSeconds(6))));
+    filters.clear();
+
+    storePoller.run();
+
+    assertEquals(6, ids("Organization").size());
+    assertEquals(List.of("lastUpdated:ge:2023-01-01T00:00:05.000"), filters.get(0));
+  }
+
+  private Set<String> ids(String type) {
+    return store.entries(type).stream()
+        .map(ResourceStore.Entry::id)
+        .collect(Collectors.toCollection(TreeSet::new));
+  }
+
+  private <R extends Resource> void addConverter(Class<R> type, Supplier<R> resource) {
+    camelContext
+        .getTypeConverterRegistry()
+        .addTypeConverter(
+            type,
+            OrganisationUnit.class,
+            new TypeConverterSupport() {
+              @Override
+              public <T> T convertTo(Class<T> to, Exchange exchange, Object value) {
+                OrganisationUnit ou = (OrganisationUnit) value;
+                R converted = resource.get();
+                converted.setId(ou.getId().get());
+                converted.getMeta().setLastUpdated(ou.getLastUpdated().get());
+
+                return to.cast(converted);
+              }
+            });
+  }
+
+  record Unit(String id, Date lastUpdated) {}
+
+  // pages through the units the way DHIS2 does, the other paths have nothing
+  private class Dhis2 extends DefaultProducerTemplate {
+    Dhis2(DefaultCamelContext camelContext) {
+      super(camelContext);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T requestBodyAndHeader(
+        String endpointUri, Object body, String header, Object headerValue, Class<T> type) {
+      Map<String, Object> queryParams = (Map<String, Object>) headerValue;
+      String response;
+
+      if (!endpointUri.contains("organisationUnits")) {
+        String path = endpointUri.contains("optionSets") ? "optionSets" : "trackedEntityInstances";
+        response = "{\"%s\": []}".formatted(path);
+      } else if ("false".equals(queryParams.get("paging"))) {
+        response = write(units, null, false);
+      } else {
+        filters.add((List<String>) queryParams.get("filter"));
+
+        if (filters.size() == 2 && onSecondPage != null) {
+          onSecondPage.run();
+        }
+
+        List<Unit> changes = changes(queryParams);
+        int page = Integer.parseInt((String) queryParams.get("page"));
+        int pageSize = Integer.parseInt((String) queryParams.get("pageSize"));
+        Map<String, Object> pager =
+            Map.of("page", page, "pageSize", pageSize, "total", changes.size());
+
+        response =
+            write(
+                changes.stream().skip((long) (page - 1) * pageSize).limit(pageSize).toList(),
+                pager,
+                true);
+      }
+
+      return type.cast(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private List<Unit> changes(Map<String, Object> queryParams) {
+      Date since = null;
+
+      for (String filter : (List<String>) queryParams.get("filter")) {
+        if (filter.startsWith("lastUpdated:ge:")) {
+          since = Date.from(Instant.parse(filter.substring("lastUpdated:ge:".length()) + "Z"));
+        }
+      }
+
+      Date from = since;
+
+      return units.stream()
+          .filter(unit -> from == null || !unit.lastUpdated().before(from))
+          .sorted(Comparator.comparing(Unit::lastUpdated).thenComparing(Unit::id))
+          .toList();
+    }
+
+    private String write(List<Unit> page, Map<String, Object> pager, boolean lastUpdated) {
+      try {
+        List<Map<String, Object>> items = new ArrayList<>();
+
+        for (Unit unit : page) {
+          items.add(
+              lastUpdated
+                  ? Map.of("id", unit.id(), "lastUpdated", unit.lastUpdated())
+                  : Map.of("id", unit.id()));
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+
+        if (pager != null) {
+          response.put("pager", pager);
+        }
+
+        response.put("organisationUnits", items);
+
+        return objectMapper.writeValueAsString(response);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Organization;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StoreSearchTest {
+  private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+  @TempDir Path directory;
+
+  private ResourceStore store;
+
+  private StoreSearch storeSearch;
+
+  private DefaultCamelContext camelContext;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    MainProperties properties = new MainProperties();
+    properties.getStore().setEnabled(true);
+    properties.getStore().setDirectory(directory.toString());
+
+    store = new ResourceStore(FHIR_CONTEXT, properties);
+    store.open();
+    storeSearch = new StoreSearch(store);
+    camelContext = new DefaultCamelContext();
+
+    // Country > Region > District > Facility, and a branch whose parent is not stored
+    store.put(organization("Country0001", null, "NATIONAL"));
+    store.put(organization("Region00001", "Country0001", null));
+    store.put(organization("District001", "Region00001", null));
+    store.put(organization("Facility001", "District001", null));
+    store.put(organization("Branch00001", "Invisible01", null));
+    store.put(organization("BranchUnit1", "Branch00001", "BRANCH"));
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    store.close();
+    camelContext.close();
+  }
+
+  @Test
+  void topTwoLevelsByDefault() throws IOException {
+    assertEquals(List.of("Branch00001", "Country0001", "Region00001"), search(""));
+  }
+
+  @Test
+  void partOfIsTheDirectChildren() throws IOException {
+    assertEquals(List.of("District001"), search("partof=Region00001"));
+  }
+
+  @Test
+  void partOfBelowIsTheWholeSubtree() throws IOException {
+    assertEquals(
+        List.of("District001", "Facility001", "Region00001"), search("partof:below=Country0001"));
+  }
+
+  @Test
+  void levelCountsAMissingParentAsALevel() throws IOException {
+    assertEquals(List.of("BranchUnit1", "District001"), search("level=3"));
+  }
+
+  @Test
+  void identifierWithoutASystemMatchesAnySystem() throws IOException {
+    assertEquals(List.of("Country0001"), search("identifier=NATIONAL"));
+    assertEquals(List.of("Region00001"), search("identifier=Region00001"));
+    assertEquals(List.of("BranchUnit1"), search("identifier=BRANCH&level=3"));
+  }
+
+  // filters stay within the top two levels unless the search says where to look, as live
+  @Test
+  void idsAreLookedUpWithinTheLevels() throws IOException {
+    assertEquals(List.of("Country0001", "Region00001"), search("_id=Region00001,Country0001"));
+    assertEquals(List.of(), search("_id=Facility001"));
+    assertEquals(List.of("Facility001"), search("_id=Facility001&level=4"));
+  }
+
+  private List<String> search(String query) throws IOException {
+    Exchange exchange = new DefaultExchange(camelContext);
+    exchange.getIn().setHeader(Exchange.HTTP_QUERY, query);
+
+    storeSearch.search("Organization", exchange);
+
+    Bundle bundle =
+        FHIR_CONTEXT
+            .newJsonParser()
+            .parseResource(Bundle.class, exchange.getMessage().getBody(String.class));
+
+    return bundle.getEntry().stream()
+        .map(entry -> entry.getResource().getIdElement().getIdPart())
+        .toList();
+  }
+
+  private static Organization organization(String id, String parent, String code) {
+    Organization organization = new Organization();
+    organization.setId(id);
+    organization.setName(id);
+
+    if (parent != null) {
+      organization.getPartOf().setReference("Organization/" + parent);
+    }
+
+    if (code != null) {
+      organization.addIdentifier().setSystem("http://example.com/code").setValue(code);
+    }
+
+    return organization;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2004-2023, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.example.hisp.dhis2.fhir.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitHierarchy;
+import com.example.hisp.dhis2.fhir.cache.OrganisationUnitHierarchy.Node;
+import com.example.hisp.dhis2.fhir.configuration.MainProperties;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PatientShardsTest {
+  private final List<Node> nodes = new ArrayList<>();
+
+  private final Map<String, Node> byId = new HashMap<>();
+
+  private final OrganisationUnitHierarchy hierarchy =
+      new OrganisationUnitHierarchy(null, null, null, null) {
+        @Override
+        public List<Node> select(
+            Collection<String> partOf, Collection<String> below, IntPredicate level) {
+          return nodes;
+        }
+      };
+
+  @BeforeEach
+  void setUp() {
+    // a country of 3 regions, 4 districts each and 3 facilities per district
+    add("Country0000", null, 1);
+
+    for (int r = 0; r < 3; r++) {
+      String region = add("Region%04d".formatted(r), "Country0000", 2);
+
+      for (int d = 0; d < 4; d++) {
+        String district = add("Distr%d%05d".formatted(r, d), region, 3);
+
+        for (int f = 0; f < 3; f++) {
+          add("Facil%d%d%04d".formatted(r, d, f), district, 4);
+        }
+      }
+    }
+
+    // branches whose parents the DHIS2 user cannot see, above, on and below the shard level
+    String upper = add("UpperTop000", "Invisible00", 2);
+    String middle = add("MiddleTop00", "Invisible01", 3);
+    String lower = add("LowerTop000", "Invisible02", 4);
+
+    for (int i = 0; i < 5; i++) {
+      String unit = add("UpperUnit%02d".formatted(i), upper, 3);
+      add("UpperLeaf%02d".formatted(i), unit, 4);
+      add("MiddleUnit%d".formatted(i), middle, 4);
+      add("LowerUnit%02d".formatted(i), lower, 5);
+    }
+  }
+
+  @Test
+  void everyUnitIsOwnedExactlyOnce() {
+    for (int count = 1; count <= 5; count++) {
+      Map<String, Integer> owners = new HashMap<>();
+
+      for (int index = 0; index < count; index++) {
+        for (Map<String, Object> query : shards(count, index).queries(Map.of())) {
+          String ouMode = (String) query.getOrDefault("ouMode", "ALL");
+
+          for (Node node : nodes) {
+            if (covers(query, ouMode, node)) {
+              owners.merge(node.id(), 1, Integer::sum);
+            }
+          }
+        }
+      }
+
+      for (Node node : nodes) {
+        assertEquals(1, (int) owners.getOrDefault(node.id(), 0), node.id() + " of " + count);
+      }
+    }
+  }
+
+  @Test
+  void unshardedQueryIsUnchanged() {
+    Map<String, Object> query = Map.of("program", "Xh88p1nyefp");
+
+    assertEquals(List.of(query), shards(1, 0).queries(query));
+  }
+
+  @Test
+  void unitsPerRequestLimitsEachQuery() {
+    MainProperties properties = properties(2, 1);
+    properties.getSync().getShard().setUnitsPerRequest(2);
+
+    for (Map<String, Object> query : new PatientShards(hierarchy, properties).queries(Map.of())) {
+      assertTrue(((String) query.get("ou")).split(";").length <= 2);
+    }
+  }
+
+  @Test
+  void indexMustBeBelowCount() {
+    MainProperties.Shard shard = new MainProperties.Shard();
+    shard.setCount(2);
+    shard.setIndex(1);
+
+    assertTrue(shard.isIndexInRange());
+
+    shard.setIndex(2);
+
+    assertFalse(shard.isIndexInRange());
+  }
+
+  private boolean covers(Map<String, Object> query, String ouMode, Node node) {
+    if ("ALL".equals(ouMode)) {
+      return true;
+    }
+
+    List<String> units = List.of(((String) query.get("ou")).split(";"));
+
+    if ("SELECTED".equals(ouMode)) {
+      return units.contains(node.id());
+    }
+
+    // DESCENDANTS takes in the unit itself
+    for (Node unit = node; unit != null; unit = byId.get(unit.parent())) {
+      if (units.contains(unit.id())) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private PatientShards shards(int count, int index) {
+    return new PatientShards(hierarchy, properties(count, index));
+  }
+
+  private static MainProperties properties(int count, int index) {
+    MainProperties properties = new MainProperties();
+    properties.getSync().getShard().setCount(count);
+    properties.getSync().getShard().setIndex(index);
+
+    return properties;
+  }
+
+  private String add(String id, String parent, int level) {
+    Node node = new Node(id, parent, level, null, nodes.size(), nodes.size());
+    nodes.add(node);
+    byId.put(id, node);
+    return id;
+  }
+}